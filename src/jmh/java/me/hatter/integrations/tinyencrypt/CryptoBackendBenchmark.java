@@ -0,0 +1,58 @@
+package me.hatter.integrations.tinyencrypt;
+
+import org.cryptomator.integrations.keychain.KeychainAccessException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-unlock decrypt latency, tinyencrypt process (<code>fake-tinyencrypt.sh</code>) vs in-process JCA
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CryptoBackendBenchmark {
+    private static final String VAULT = "benchmark-vault";
+
+    private TinyEncryptConfig tinyencryptConfig;
+    private ProcessCryptoBackend processCryptoBackend;
+    private JcaCryptoBackend jcaCryptoBackend;
+    private String processEncryptedKey;
+    private String jcaEncryptedKey;
+
+    @Setup
+    public void setup() throws IOException, KeychainAccessException {
+        final File directory = Files.createTempDirectory("tinyencrypt-benchmark").toFile();
+        tinyencryptConfig = FakeTinyencrypt.newConfig(directory);
+        tinyencryptConfig.setJcaKeyFile(new File(directory, "jca.key").getAbsolutePath());
+        processCryptoBackend = new ProcessCryptoBackend();
+        jcaCryptoBackend = new JcaCryptoBackend(processCryptoBackend);
+        try (SecretBuffer password = SecretBuffer.wrap("benchmark-password")) {
+            processEncryptedKey = processCryptoBackend.encrypt(tinyencryptConfig, VAULT, password, "Vault");
+            jcaEncryptedKey = jcaCryptoBackend.encrypt(tinyencryptConfig, VAULT, password, "Vault");
+        }
+    }
+
+    @Benchmark
+    public int processDecrypt() throws KeychainAccessException {
+        try (SecretBuffer password = processCryptoBackend.decrypt(tinyencryptConfig, VAULT, processEncryptedKey)) {
+            return password.length();
+        }
+    }
+
+    @Benchmark
+    public int jcaDecrypt() throws KeychainAccessException {
+        try (SecretBuffer password = jcaCryptoBackend.decrypt(tinyencryptConfig, VAULT, jcaEncryptedKey)) {
+            return password.length();
+        }
+    }
+}
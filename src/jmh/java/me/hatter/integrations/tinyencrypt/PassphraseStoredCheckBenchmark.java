@@ -0,0 +1,52 @@
+package me.hatter.integrations.tinyencrypt;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * isPassphraseStored caller detection, full stack trace capture vs bounded StackWalker,
+ * called below <code>depth</code> extra frames to mimic the UI thread stack
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PassphraseStoredCheckBenchmark {
+    @Param({"16", "128"})
+    public int depth;
+
+    @Benchmark
+    public boolean stackTrace() {
+        return callAtDepth(depth, true);
+    }
+
+    @Benchmark
+    public boolean stackWalker() {
+        return callAtDepth(depth, false);
+    }
+
+    private static boolean callAtDepth(int depth, boolean stackTrace) {
+        if (depth > 0) {
+            return callAtDepth(depth - 1, stackTrace);
+        }
+        return stackTrace ? isCheckPassphraseStoredByStackTrace() : Utils.isCheckPassphraseStored();
+    }
+
+    // the detection before StackWalker
+    private static boolean isCheckPassphraseStoredByStackTrace() {
+        final StackTraceElement[] stackTraceElements = Thread.currentThread().getStackTrace();
+        for (int i = 0; i < stackTraceElements.length; i++) {
+            final StackTraceElement stack = stackTraceElements[i];
+            if ("org.cryptomator.common.keychain.KeychainManager".equals(stack.getClassName())) {
+                return "isPassphraseStored".equals(stack.getMethodName());
+            }
+        }
+        return false;
+    }
+}
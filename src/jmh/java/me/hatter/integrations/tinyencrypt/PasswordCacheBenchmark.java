@@ -0,0 +1,53 @@
+package me.hatter.integrations.tinyencrypt;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PasswordCache get/put under contention
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Threads(8)
+public class PasswordCacheBenchmark {
+    private static final int KEY_COUNT = 512;
+
+    private final TinyEncryptConfig tinyencryptConfig = new TinyEncryptConfig();
+    private final String[] keys = new String[KEY_COUNT];
+    private PasswordCache passwordCache;
+
+    @Setup
+    public void setup() {
+        passwordCache = new PasswordCache("benchmark");
+        for (int i = 0; i < KEY_COUNT; i++) {
+            keys[i] = "vault-" + i;
+            passwordCache.putPassword(tinyencryptConfig, keys[i], "password-" + i);
+        }
+    }
+
+    @Benchmark
+    public char[] getPassword() {
+        final char[] password = passwordCache.getPassword(tinyencryptConfig, keys[ThreadLocalRandom.current().nextInt(KEY_COUNT)]);
+        if (password != null) {
+            Arrays.fill(password, '\0');
+        }
+        return password;
+    }
+
+    @Benchmark
+    public void putPassword() {
+        final int index = ThreadLocalRandom.current().nextInt(KEY_COUNT);
+        passwordCache.putPassword(tinyencryptConfig, keys[index], "password-" + index);
+    }
+}
@@ -0,0 +1,44 @@
+package me.hatter.integrations.tinyencrypt;
+
+import org.cryptomator.integrations.keychain.KeychainAccessException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Full storePassword/loadPassword round trips against <code>fake-tinyencrypt.sh</code>, vault password cache disabled
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RoundTripBenchmark {
+    private static final String VAULT = "benchmark-vault";
+
+    private TinyEncryptConfig tinyencryptConfig;
+
+    @Setup
+    public void setup() throws IOException, KeychainAccessException {
+        final File directory = Files.createTempDirectory("tinyencrypt-benchmark").toFile();
+        tinyencryptConfig = FakeTinyencrypt.newConfig(directory);
+        Utils.storePassword(tinyencryptConfig, VAULT, "Vault", "benchmark-password");
+    }
+
+    @Benchmark
+    public char[] loadPassword() throws KeychainAccessException {
+        return Utils.loadPassword(tinyencryptConfig, VAULT);
+    }
+
+    @Benchmark
+    public void storePassword() throws KeychainAccessException {
+        Utils.storePassword(tinyencryptConfig, VAULT, "Vault", "benchmark-password");
+    }
+}
@@ -0,0 +1,85 @@
+package me.hatter.integrations.tinyencrypt;
+
+import org.cryptomator.integrations.keychain.KeychainAccessException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Key file name encoding, key file I/O, stdout pumping and result parsing
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class UtilsBenchmark {
+    private static final String VAULT = "vault-id_With/Special Chars-0123456789";
+    private static final byte[] RESULT_STDOUT = ("[INFO ] decrypt with key: fake-key\n"
+            + "{\"code\":0,\"password\":\"pbkdf-password\",\"result\":\"vault-password-0123456789\"}\n")
+            .getBytes(StandardCharsets.UTF_8);
+
+    @Param({"1024", "65536"})
+    public int outputSize;
+
+    private byte[] output;
+    private File keyFile;
+
+    @Setup
+    public void setup() throws IOException {
+        output = new byte[outputSize];
+        Arrays.fill(output, (byte) 'x');
+        keyFile = Files.createTempFile("tinyencrypt-benchmark", ".key").toFile();
+        Files.writeString(keyFile.toPath(), "fake:" + "A".repeat(512));
+    }
+
+    @TearDown
+    public void tearDown() {
+        keyFile.delete();
+    }
+
+    @Benchmark
+    public String getKeyFileName() {
+        return Utils.getKeyFileName(VAULT);
+    }
+
+    @Benchmark
+    public String readFile() throws KeychainAccessException {
+        return Utils.readFile(keyFile);
+    }
+
+    @Benchmark
+    public void writeFile() throws KeychainAccessException {
+        Utils.writeFile(keyFile, "fake:" + VAULT, false);
+    }
+
+    @Benchmark
+    public void writeFileSync() throws KeychainAccessException {
+        Utils.writeFile(keyFile, "fake:" + VAULT, true);
+    }
+
+    @Benchmark
+    public byte[] readAllOutput() throws IOException {
+        return IoUtils.readAll(new ByteArrayInputStream(output), IoUtils.DEFAULT_MAX_OUTPUT_BYTES);
+    }
+
+    @Benchmark
+    public TinyEncryptResult parseResult() throws IOException {
+        final TinyEncryptResult result = TinyEncryptResultParser.parse(RESULT_STDOUT);
+        result.getPassword().wipe();
+        result.getResult().wipe();
+        return result;
+    }
+}
@@ -0,0 +1,243 @@
+package me.hatter.integrations.tinyencrypt;
+
+import org.cryptomator.integrations.keychain.KeychainAccessException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fast-fails tinyencrypt calls after failures, so an unplugged token or a cancelled PIN entry does not start
+ * a new process, which fails only after its timeout, for every vault Cryptomator polls.
+ * <p>
+ * A failure which affects all vaults (token or tinyencrypt unavailable, timeout) opens the circuit for a back-off
+ * which doubles on every repeated failure up to {@link #MAX_BACKOFF_MILLIS}. When the back-off is over the circuit is
+ * half-open, one caller at a time runs its real call as trial, the circuit closes only when a call succeeds,
+ * as <code>tinyencrypt version</code> succeeds without the token.
+ * A failure of one vault (PIN cancelled, key rejected) is cached for that vault for the back-off.
+ * Failures are classified by exit value and stderr, see {@link #classify(UtilsCommandResult)}.
+ */
+public class CircuitBreaker {
+    private static final Logger LOG = LoggerFactory.getLogger(CircuitBreaker.class);
+    public static final long DEFAULT_BACKOFF_SECONDS = 10;
+    private static final long MAX_BACKOFF_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    private static final int MAX_MESSAGE_LENGTH = 200;
+
+    public enum Failure {
+        /**
+         * all vaults fail the same way, e.g. token unplugged, tinyencrypt missing, timeout
+         */
+        UNAVAILABLE,
+        /**
+         * PIN entry cancelled for the vault
+         */
+        CANCELLED,
+        /**
+         * the vault key is rejected, e.g. wrong PIN or encrypted with another key
+         */
+        REJECTED,
+        /**
+         * not classified, not cached
+         */
+        OTHER
+    }
+
+    private static class FailureState {
+        private final Failure failure;
+        private final String message;
+        private final long untilMillis;
+
+        private FailureState(Failure failure, String message, long untilMillis) {
+            this.failure = failure;
+            this.message = message;
+            this.untilMillis = untilMillis;
+        }
+    }
+
+    private final ConcurrentMap<String, FailureState> vaultFailures = new ConcurrentHashMap<>();
+    // end of the running half-open trial call, 0 when none
+    private final AtomicLong trialUntilMillis = new AtomicLong();
+    private volatile FailureState openState;
+    private volatile long openBackoffMillis;
+
+    /**
+     * Let the caller run its call as the half-open trial once the back-off is over,
+     * the result of the call must be reported by <code>recordResult</code>, <code>recordSuccess</code> or <code>recordFailure</code>
+     *
+     * @throws KeychainAccessException when the circuit is open, or another caller runs the trial
+     */
+    public void checkClosed(TinyEncryptConfig tinyencryptConfig) throws KeychainAccessException {
+        final FailureState state = openState;
+        if ((state == null) || !isEnabled(tinyencryptConfig)) {
+            return;
+        }
+        final long nowMillis = System.currentTimeMillis();
+        final long trialMillis = trialUntilMillis.get();
+        // a trial not reported within the command timeout is given up
+        if ((nowMillis < state.untilMillis) || (nowMillis < trialMillis)
+                || !trialUntilMillis.compareAndSet(trialMillis, nowMillis + ProcessExecutor.getTimeoutMillis(tinyencryptConfig))) {
+            throw fastFail(state, nowMillis);
+        }
+        LOG.info("Try tinyencrypt call in half-open circuit, last failure: " + state.message);
+    }
+
+    /**
+     * Like {@link #checkClosed(TinyEncryptConfig)} without taking the trial, for batches whose calls check one by one
+     *
+     * @throws KeychainAccessException when the circuit is open and the back-off is not over
+     */
+    public void checkBackoffOver(TinyEncryptConfig tinyencryptConfig) throws KeychainAccessException {
+        final FailureState state = openState;
+        if ((state == null) || !isEnabled(tinyencryptConfig)) {
+            return;
+        }
+        final long nowMillis = System.currentTimeMillis();
+        if (nowMillis < state.untilMillis) {
+            throw fastFail(state, nowMillis);
+        }
+    }
+
+    /**
+     * @throws KeychainAccessException when <code>vault</code> failed within the back-off
+     */
+    public void checkVault(TinyEncryptConfig tinyencryptConfig, String vault) throws KeychainAccessException {
+        final FailureState state = vaultFailures.get(vault);
+        if ((state == null) || !isEnabled(tinyencryptConfig)) {
+            return;
+        }
+        final long nowMillis = System.currentTimeMillis();
+        if (nowMillis >= state.untilMillis) {
+            vaultFailures.remove(vault, state);
+            return;
+        }
+        KeychainMetrics.increment("circuit.vaultFastFail");
+        throw new KeychainAccessException("tinyencrypt failed for vault: " + vault + " (" + state.failure + "), retry in "
+                + getRetrySeconds(state, nowMillis) + "s, last failure: " + state.message);
+    }
+
+    public void recordSuccess(String vault) {
+        openBackoffMillis = 0;
+        if (openState != null) {
+            LOG.info("Close circuit, tinyencrypt call succeeded");
+            openState = null;
+        }
+        trialUntilMillis.set(0);
+        if (vault != null) {
+            vaultFailures.remove(vault);
+        }
+    }
+
+    /**
+     * @param vault <code>null</code> when the call is not for one vault
+     */
+    public void recordFailure(TinyEncryptConfig tinyencryptConfig, String vault, Failure failure, String message) {
+        if (!isEnabled(tinyencryptConfig)) {
+            return;
+        }
+        if (failure == Failure.UNAVAILABLE) {
+            open(tinyencryptConfig, message);
+            return;
+        }
+        // not known whether the token is reachable, the circuit stays half-open for the next caller
+        trialUntilMillis.set(0);
+        if ((vault != null) && ((failure == Failure.CANCELLED) || (failure == Failure.REJECTED))) {
+            final long backoffMillis = getBackoffMillis(tinyencryptConfig);
+            LOG.warn("Cache failure of vault: " + vault + " (" + failure + ") for " + backoffMillis + "ms: " + message);
+            vaultFailures.put(vault, new FailureState(failure, message, System.currentTimeMillis() + backoffMillis));
+        }
+    }
+
+    public void recordResult(TinyEncryptConfig tinyencryptConfig, String vault, UtilsCommandResult result) {
+        final Failure failure = classify(result);
+        if (failure == null) {
+            recordSuccess(vault);
+        } else {
+            recordFailure(tinyencryptConfig, vault, failure, getMessage(result));
+        }
+    }
+
+    /**
+     * @return <code>null</code> on success
+     */
+    public static Failure classify(UtilsCommandResult result) {
+        if (result.getExitValue() == 0) {
+            return null;
+        }
+        final String stderr = (result.getStderr() == null) ? "" : new String(result.getStderr(), StandardCharsets.UTF_8).toLowerCase(Locale.ROOT);
+        if (containsAny(stderr, "cancel")) {
+            return Failure.CANCELLED;
+        }
+        if (containsAny(stderr, "no card", "card not present", "no smart card", "no such device", "device not found",
+                "not connected", "no yubikey", "pcsc", "timeout", "timed out")) {
+            return Failure.UNAVAILABLE;
+        }
+        if (containsAny(stderr, "incorrect pin", "wrong pin", "invalid pin", "pin blocked", "decrypt failed", "bad decrypt", "key not found")) {
+            return Failure.REJECTED;
+        }
+        return Failure.OTHER;
+    }
+
+    public static Failure classify(Throwable throwable) {
+        for (Throwable cause = throwable; cause != null; cause = cause.getCause()) {
+            if (cause instanceof TimeoutException) {
+                // waited for the token or the PIN until the timeout
+                return Failure.UNAVAILABLE;
+            }
+            if ((cause.getMessage() != null) && cause.getMessage().startsWith("Cannot run program")) {
+                return Failure.UNAVAILABLE;
+            }
+        }
+        return Failure.OTHER;
+    }
+
+    private void open(TinyEncryptConfig tinyencryptConfig, String message) {
+        final long backoffMillis = Math.min(MAX_BACKOFF_MILLIS, Math.max(getBackoffMillis(tinyencryptConfig), openBackoffMillis * 2));
+        openBackoffMillis = backoffMillis;
+        LOG.warn("Open circuit for " + backoffMillis + "ms: " + message);
+        KeychainMetrics.increment("circuit.open");
+        openState = new FailureState(Failure.UNAVAILABLE, message, System.currentTimeMillis() + backoffMillis);
+        trialUntilMillis.set(0);
+    }
+
+    private static KeychainAccessException fastFail(FailureState state, long nowMillis) {
+        KeychainMetrics.increment("circuit.fastFail");
+        return new KeychainAccessException("tinyencrypt unavailable, retry in " + getRetrySeconds(state, nowMillis)
+                + "s, last failure: " + state.message);
+    }
+
+    private static String getMessage(UtilsCommandResult result) {
+        final String stderr = (result.getStderr() == null) ? "" : new String(result.getStderr(), StandardCharsets.UTF_8).trim();
+        final String message = "exit value: " + result.getExitValue() + (stderr.isEmpty() ? "" : ", " + stderr);
+        return (message.length() > MAX_MESSAGE_LENGTH) ? message.substring(0, MAX_MESSAGE_LENGTH) + "..." : message;
+    }
+
+    private static boolean containsAny(String text, String... keywords) {
+        for (String keyword : keywords) {
+            if (text.contains(keyword)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long getRetrySeconds(FailureState state, long nowMillis) {
+        return Math.max(0, TimeUnit.MILLISECONDS.toSeconds(state.untilMillis - nowMillis + 999));
+    }
+
+    private static boolean isEnabled(TinyEncryptConfig tinyencryptConfig) {
+        return getBackoffMillis(tinyencryptConfig) > 0;
+    }
+
+    private static long getBackoffMillis(TinyEncryptConfig tinyencryptConfig) {
+        if ((tinyencryptConfig != null) && (tinyencryptConfig.getFailureBackoffSeconds() != null)) {
+            return TimeUnit.SECONDS.toMillis(Math.max(0, tinyencryptConfig.getFailureBackoffSeconds()));
+        }
+        return TimeUnit.SECONDS.toMillis(DEFAULT_BACKOFF_SECONDS);
+    }
+}
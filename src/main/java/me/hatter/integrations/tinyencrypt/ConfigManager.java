@@ -0,0 +1,196 @@
+package me.hatter.integrations.tinyencrypt;
+
+import org.cryptomator.integrations.keychain.KeychainAccessException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Holds the current {@link TinyEncryptConfig}, reloaded by a background thread when a config file changes.
+ * <p>
+ * A published config is frozen, see {@link TinyEncryptConfig#freeze()}, all readers share it without locking or copying.
+ * An invalid config file or a new tinyencrypt command which fails the readiness check keeps the old config.
+ */
+public class ConfigManager {
+    private static final Logger LOG = LoggerFactory.getLogger(ConfigManager.class);
+    /**
+     * Editors write a file in several steps, reload once after changes settle
+     */
+    private static final long RELOAD_DEBOUNCE_MILLIS = 200;
+
+    private final AtomicReference<LoadedConfig> loadedConfigRef = new AtomicReference<>();
+
+    private static class LoadedConfig {
+        private final String configJson;
+        private final TinyEncryptConfig tinyencryptConfig;
+
+        private LoadedConfig(String configJson, TinyEncryptConfig tinyencryptConfig) {
+            this.configJson = configJson;
+            this.tinyencryptConfig = tinyencryptConfig;
+        }
+    }
+
+    /**
+     * Load the config and start watching the config files
+     */
+    public ConfigManager() throws KeychainAccessException {
+        loadedConfigRef.set(load());
+        startWatching();
+    }
+
+    /**
+     * @return current config, read-only
+     */
+    public TinyEncryptConfig getConfig() {
+        return loadedConfigRef.get().tinyencryptConfig;
+    }
+
+    private static LoadedConfig load() throws KeychainAccessException {
+        final File configFile = Utils.getTinyencryptConfigFile();
+        final String configJson = Utils.readFile(configFile);
+        return new LoadedConfig(configJson, Utils.parseTinyencryptConfig(configFile, configJson).freeze());
+    }
+
+    void reload() {
+        final LoadedConfig oldLoadedConfig = loadedConfigRef.get();
+        final LoadedConfig newLoadedConfig;
+        try {
+            newLoadedConfig = load();
+        } catch (KeychainAccessException e) {
+            LOG.warn("Reload tinyencrypt config failed, keep current config", e);
+            return;
+        }
+        if (newLoadedConfig.configJson.equals(oldLoadedConfig.configJson)) {
+            return;
+        }
+        final TinyEncryptConfig oldConfig = oldLoadedConfig.tinyencryptConfig;
+        final TinyEncryptConfig newConfig = newLoadedConfig.tinyencryptConfig;
+        if ((!Objects.equals(oldConfig.getTinyencryptCommand(), newConfig.getTinyencryptCommand())
+                || !Objects.equals(oldConfig.getCryptoBackend(), newConfig.getCryptoBackend()))
+                && !Utils.checkTinyencryptReady(newConfig)) {
+            LOG.warn("Check tinyencrypt of reloaded config failed, keep current config");
+            return;
+        }
+        loadedConfigRef.set(newLoadedConfig);
+        LOG.info("Reloaded tinyencrypt config");
+        Utils.applyConfigChange(oldConfig, newConfig);
+    }
+
+    private void startWatching() {
+        final List<File> configFiles = Utils.getTinyencryptConfigFiles();
+        final WatchService watchService;
+        final int watchedDirCount;
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            watchedDirCount = registerConfigDirs(watchService, configFiles);
+        } catch (IOException e) {
+            LOG.warn("Watch tinyencrypt config files failed, config changes require a restart", e);
+            return;
+        }
+        if (watchedDirCount == 0) {
+            LOG.warn("No tinyencrypt config dir to watch, config changes require a restart");
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                LOG.debug("Close watch service failed", e);
+            }
+            return;
+        }
+        final Thread watchThread = new Thread(() -> watch(watchService, configFiles), "tinyencrypt-config-watcher");
+        watchThread.setDaemon(true);
+        watchThread.start();
+    }
+
+    /**
+     * Watch the dir of each config file, or its nearest existing parent dir while the dir is not created yet.
+     * Registering a watched dir again keeps its watch key, a deleted and created again dir gets a new one.
+     *
+     * @return count of watched dirs
+     */
+    private static int registerConfigDirs(WatchService watchService, List<File> configFiles) throws IOException {
+        int watchedDirCount = 0;
+        for (File configFile : configFiles) {
+            File configDir = configFile.getAbsoluteFile().getParentFile();
+            while ((configDir != null) && !configDir.isDirectory()) {
+                configDir = configDir.getParentFile();
+            }
+            if (configDir == null) {
+                continue;
+            }
+            try {
+                configDir.toPath().register(watchService,
+                        StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY,
+                        StandardWatchEventKinds.ENTRY_DELETE);
+                watchedDirCount++;
+            } catch (NoSuchFileException e) {
+                // deleted meanwhile, registered again with the next event of its parent dir
+                LOG.debug("Watch tinyencrypt config dir: " + configDir + " failed", e);
+            }
+        }
+        return watchedDirCount;
+    }
+
+    private void watch(WatchService watchService, List<File> configFiles) {
+        try {
+            while (true) {
+                boolean configChanged = pollConfigChanged(watchService.take(), configFiles);
+                WatchKey watchKey;
+                while ((watchKey = watchService.poll(RELOAD_DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+                    configChanged |= pollConfigChanged(watchKey, configFiles);
+                }
+                if (configChanged) {
+                    // a config dir may be created, watch it before the config file is read
+                    try {
+                        registerConfigDirs(watchService, configFiles);
+                    } catch (IOException e) {
+                        LOG.warn("Watch tinyencrypt config dirs failed", e);
+                    }
+                    reload();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ClosedWatchServiceException e) {
+            // closed
+        }
+    }
+
+    private static boolean pollConfigChanged(WatchKey watchKey, List<File> configFiles) {
+        boolean configChanged = false;
+        final Path dir = (Path) watchKey.watchable();
+        for (WatchEvent<?> event : watchKey.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                configChanged = true;
+                continue;
+            }
+            final Path changedPath = dir.resolve((Path) event.context()).toAbsolutePath();
+            for (File configFile : configFiles) {
+                // the config file, or a parent dir of it, e.g. "~/.config/cryptomator" created
+                if (configFile.getAbsoluteFile().toPath().startsWith(changedPath)) {
+                    configChanged = true;
+                }
+            }
+        }
+        if (!watchKey.reset()) {
+            LOG.warn("Stop watching tinyencrypt config dir: " + dir);
+            // the dir is deleted, its nearest existing parent dir is watched instead
+            configChanged = true;
+        }
+        return configChanged;
+    }
+}
@@ -0,0 +1,57 @@
+package me.hatter.integrations.tinyencrypt;
+
+import org.cryptomator.integrations.keychain.KeychainAccessException;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Encrypts and decrypts vault passwords, selected by <code>cryptoBackend</code> in {@link TinyEncryptConfig}.
+ */
+public interface CryptoBackend {
+    String BACKEND_PROCESS = "process";
+    String BACKEND_JCA = "jca";
+
+    /**
+     * @return <code>true</code> when the backend can encrypt and decrypt
+     */
+    boolean checkReady(TinyEncryptConfig tinyencryptConfig);
+
+    /**
+     * @return vault password owned by the caller
+     */
+    SecretBuffer decrypt(TinyEncryptConfig tinyencryptConfig, String vault, String encryptedKey) throws KeychainAccessException;
+
+    /**
+     * Decrypt many vault passwords, vaults failed to decrypt are logged and left out of the result
+     *
+     * @return vault passwords owned by the caller
+     */
+    default Map<String, SecretBuffer> decryptAll(TinyEncryptConfig tinyencryptConfig, Map<String, String> encryptedKeys) {
+        final Map<String, SecretBuffer> vaultPasswords = new LinkedHashMap<>();
+        for (Map.Entry<String, String> encryptedKey : encryptedKeys.entrySet()) {
+            try {
+                vaultPasswords.put(encryptedKey.getKey(), decrypt(tinyencryptConfig, encryptedKey.getKey(), encryptedKey.getValue()));
+            } catch (KeychainAccessException e) {
+                LoggerFactory.getLogger(CryptoBackend.class).warn("Decrypt vault: " + encryptedKey.getKey() + " failed", e);
+            }
+        }
+        return vaultPasswords;
+    }
+
+    /**
+     * @return encrypted vault password, not a secret
+     */
+    String encrypt(TinyEncryptConfig tinyencryptConfig, String vault, SecretBuffer password, String name) throws KeychainAccessException;
+
+    /**
+     * Drop state kept for <code>vault</code>, e.g. cached PBKDF passwords, the vault password is deleted
+     */
+    void forget(TinyEncryptConfig tinyencryptConfig, String vault);
+
+    /**
+     * Drop state kept for all vaults, e.g. PBKDF passwords are disabled by a reloaded config
+     */
+    void forgetAll();
+}
@@ -0,0 +1,60 @@
+package me.hatter.integrations.tinyencrypt;
+
+import org.cryptomator.integrations.keychain.KeychainAccessException;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * One key file per vault, named by {@link Utils#getKeyFileName(String)}.
+ */
+public class FileKeyStore implements KeyStore {
+    private final KeyFileIndex keyFileIndex;
+
+    public FileKeyStore(File basePath) {
+        this.keyFileIndex = KeyFileIndex.getIndex(basePath);
+    }
+
+    @Override
+    public boolean exists(String vault) {
+        return keyFileIndex.exists(vault);
+    }
+
+    @Override
+    public String read(String vault) throws KeychainAccessException {
+        if (!keyFileIndex.exists(vault)) {
+            return null;
+        }
+        final long startNanos = System.nanoTime();
+        final String encryptedKey = Utils.readFile(keyFileIndex.getKeyFile(vault));
+        KeychainMetrics.recordIo("keyFile.read", startNanos);
+        return encryptedKey;
+    }
+
+    @Override
+    public void write(String vault, String encryptedKey, boolean sync) throws KeychainAccessException {
+        final long startNanos = System.nanoTime();
+        Utils.writeFile(keyFileIndex.getKeyFile(vault), encryptedKey, sync);
+        KeychainMetrics.recordIo("keyFile.write", startNanos);
+        keyFileIndex.refreshVault(vault);
+    }
+
+    @Override
+    public void delete(String vault) {
+        final File keyFile = keyFileIndex.getKeyFile(vault);
+        if (keyFile.exists() && keyFile.isFile()) {
+            keyFile.delete();
+        }
+        keyFileIndex.refreshVault(vault);
+    }
+
+    @Override
+    public List<String> listVaults() {
+        return keyFileIndex.listVaults();
+    }
+
+    @Override
+    public String getLocation(String vault) {
+        return keyFileIndex.getKeyFile(vault).toString();
+    }
+}
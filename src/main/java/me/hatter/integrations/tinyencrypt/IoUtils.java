@@ -0,0 +1,73 @@
+package me.hatter.integrations.tinyencrypt;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Bulk stream copy with pooled buffers and a size cap
+ */
+public class IoUtils {
+    public static final int DEFAULT_MAX_OUTPUT_BYTES = 1024 * 1024;
+    private static final int BUFFER_SIZE = 8 * 1024;
+    private static final int BUFFER_POOL_SIZE = 16;
+    private static final BlockingQueue<byte[]> BUFFER_POOL = new ArrayBlockingQueue<>(BUFFER_POOL_SIZE);
+
+    public static int getMaxOutputBytes(TinyEncryptConfig tinyencryptConfig) {
+        if ((tinyencryptConfig != null) && (tinyencryptConfig.getMaxCommandOutputBytes() != null)
+                && (tinyencryptConfig.getMaxCommandOutputBytes() > 0)) {
+            return tinyencryptConfig.getMaxCommandOutputBytes();
+        }
+        return DEFAULT_MAX_OUTPUT_BYTES;
+    }
+
+    /**
+     * Read the stream to the end, reads go straight into the result array without per-byte copies.
+     *
+     * @param is       input stream
+     * @param maxBytes max bytes to read
+     * @return all bytes read
+     * @throws IOException when read failed or the stream is longer than <code>maxBytes</code>
+     */
+    public static byte[] readAll(InputStream is, int maxBytes) throws IOException {
+        final byte[] pooledBuffer = borrowBuffer();
+        byte[] buffer = pooledBuffer;
+        int count = 0;
+        try {
+            for (int len; (len = is.read(buffer, count, buffer.length - count)) != -1; ) {
+                count += len;
+                if (count > maxBytes) {
+                    throw new IOException("Output exceeds max bytes: " + maxBytes);
+                }
+                if (count == buffer.length) {
+                    // one more byte than the cap, so an over-long stream is still detected
+                    final int newLength = (int) Math.min((long) buffer.length * 2, (long) maxBytes + 1);
+                    final byte[] newBuffer = Arrays.copyOf(buffer, newLength);
+                    if (buffer != pooledBuffer) {
+                        Arrays.fill(buffer, (byte) 0);
+                    }
+                    buffer = newBuffer;
+                }
+            }
+            return Arrays.copyOf(buffer, count);
+        } finally {
+            if (buffer != pooledBuffer) {
+                Arrays.fill(buffer, (byte) 0);
+            }
+            releaseBuffer(pooledBuffer, Math.min(count, pooledBuffer.length));
+        }
+    }
+
+    private static byte[] borrowBuffer() {
+        final byte[] buffer = BUFFER_POOL.poll();
+        return (buffer != null) ? buffer : new byte[BUFFER_SIZE];
+    }
+
+    private static void releaseBuffer(byte[] buffer, int used) {
+        // buffers may hold decrypted secrets
+        Arrays.fill(buffer, 0, used, (byte) 0);
+        BUFFER_POOL.offer(buffer);
+    }
+}
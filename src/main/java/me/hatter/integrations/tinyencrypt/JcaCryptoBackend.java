@@ -0,0 +1,331 @@
+package me.hatter.integrations.tinyencrypt;
+
+import org.apache.commons.lang3.BooleanUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.cryptomator.integrations.keychain.KeychainAccessException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * In-process AES-GCM with a software key file, no tinyencrypt process is started.
+ * <p>
+ * Envelope: <code>tinyencrypt-jca:v1:</code> + base64 of <code>flags(1) salt(16) iterations(4) iv(12) ciphertext+tag</code>,
+ * the prefix, the header and the vault ID are authenticated. With <code>enablePbkdfEncryptionPassword</code>
+ * the AES key is derived from both the software key and a PBKDF2 password asked by <code>pinentry</code>,
+ * the derived key (not the password) is cached per vault, so repeat unlocks skip PBKDF2 and new encryptions
+ * of the vault reuse its salt.
+ * Values not in this envelope, e.g. encrypted by tinyencrypt before switching backend, are decrypted by the fallback backend.
+ */
+public class JcaCryptoBackend implements CryptoBackend {
+    private static final Logger LOG = LoggerFactory.getLogger(JcaCryptoBackend.class);
+    public static final String ENVELOPE_PREFIX = "tinyencrypt-jca:v1:";
+    private static final File DEFAULT_KEY_FILE = new File(System.getProperty("user.home"), ".config/cryptomator/tinyencrypt_jca.key");
+    private static final byte FLAG_PBKDF = 1;
+    private static final int KEY_LENGTH = 32;
+    private static final int SALT_LENGTH = 16;
+    private static final int IV_LENGTH = 12;
+    private static final int HEADER_LENGTH = 1 + SALT_LENGTH + 4 + IV_LENGTH;
+    private static final int TAG_BITS = 128;
+    private static final int PBKDF_ITERATIONS = 600_000;
+    private static final byte[] PBKDF_KEY_INFO = "tinyencrypt-jca-pbkdf".getBytes(StandardCharsets.UTF_8);
+
+    private final CryptoBackend fallbackBackend;
+    /**
+     * base64 of <code>salt(16) iterations(4) key(32)</code> per vault, wiped on eviction like passwords
+     */
+    private final PasswordCache derivedKeyCache = new PasswordCache("jca-derived-key");
+    private final ConcurrentMap<File, SecretKeySpec> softwareKeys = new ConcurrentHashMap<>();
+    private final SecureRandom secureRandom = new SecureRandom();
+
+    public JcaCryptoBackend(CryptoBackend fallbackBackend) {
+        this.fallbackBackend = fallbackBackend;
+    }
+
+    @Override
+    public boolean checkReady(TinyEncryptConfig tinyencryptConfig) {
+        // the software key file is created on first encrypt
+        return true;
+    }
+
+    @Override
+    public SecretBuffer decrypt(TinyEncryptConfig tinyencryptConfig, String vault, String encryptedKey) throws KeychainAccessException {
+        if (!encryptedKey.startsWith(ENVELOPE_PREFIX)) {
+            LOG.info("Decrypt vault: " + vault + " with fallback crypto backend");
+            return fallbackBackend.decrypt(tinyencryptConfig, vault, encryptedKey);
+        }
+        final byte[] envelope;
+        try {
+            envelope = Base64.getDecoder().decode(encryptedKey.substring(ENVELOPE_PREFIX.length()).trim());
+        } catch (IllegalArgumentException e) {
+            throw new KeychainAccessException("Decode encrypted key of vault: " + vault + " failed", e);
+        }
+        if (envelope.length < HEADER_LENGTH + TAG_BITS / 8) {
+            throw new KeychainAccessException("Encrypted key of vault: " + vault + " is too short");
+        }
+        final ByteBuffer header = ByteBuffer.wrap(envelope, 0, HEADER_LENGTH);
+        final byte flags = header.get();
+        final byte[] salt = new byte[SALT_LENGTH];
+        header.get(salt);
+        final int iterations = header.getInt();
+        final byte[] iv = new byte[IV_LENGTH];
+        header.get(iv);
+
+        final boolean pbkdf = (flags & FLAG_PBKDF) != 0;
+        final SecretKeySpec softwareKey = getSoftwareKey(tinyencryptConfig, false);
+        final SecretKeySpec key;
+        if (pbkdf) {
+            final DerivedKey cachedDerivedKey = getCachedDerivedKey(tinyencryptConfig, vault);
+            key = ((cachedDerivedKey != null) && cachedDerivedKey.matches(salt, iterations))
+                    ? cachedDerivedKey.key : deriveKey(tinyencryptConfig, vault, softwareKey, salt, iterations).key;
+        } else {
+            key = softwareKey;
+        }
+        byte[] plaintext = null;
+        try {
+            final Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, iv));
+            cipher.updateAAD(getAad(vault, envelope));
+            plaintext = cipher.doFinal(envelope, HEADER_LENGTH, envelope.length - HEADER_LENGTH);
+            return toSecretBuffer(plaintext);
+        } catch (AEADBadTagException e) {
+            if (pbkdf) {
+                // most likely a wrong PBKDF password, ask again next time
+                derivedKeyCache.removePassword(tinyencryptConfig, vault);
+            }
+            throw new KeychainAccessException("Decrypt vault: " + vault + " failed, key or password mismatch", e);
+        } catch (GeneralSecurityException e) {
+            throw new KeychainAccessException("Decrypt vault: " + vault + " failed", e);
+        } finally {
+            if (plaintext != null) {
+                Arrays.fill(plaintext, (byte) 0);
+            }
+        }
+    }
+
+    @Override
+    public String encrypt(TinyEncryptConfig tinyencryptConfig, String vault, SecretBuffer password, String name) throws KeychainAccessException {
+        final boolean pbkdf = BooleanUtils.isTrue(tinyencryptConfig.getEnablePbkdfEncryptionPassword());
+        final SecretKeySpec softwareKey = getSoftwareKey(tinyencryptConfig, true);
+        final byte[] salt;
+        final int iterations;
+        final SecretKeySpec key;
+        if (pbkdf) {
+            DerivedKey derivedKey = getCachedDerivedKey(tinyencryptConfig, vault);
+            if (derivedKey == null) {
+                final byte[] newSalt = new byte[SALT_LENGTH];
+                secureRandom.nextBytes(newSalt);
+                derivedKey = deriveKey(tinyencryptConfig, vault, softwareKey, newSalt, PBKDF_ITERATIONS);
+            }
+            salt = derivedKey.salt;
+            iterations = derivedKey.iterations;
+            key = derivedKey.key;
+        } else {
+            salt = new byte[SALT_LENGTH];
+            secureRandom.nextBytes(salt);
+            iterations = PBKDF_ITERATIONS;
+            key = softwareKey;
+        }
+        final byte[] iv = new byte[IV_LENGTH];
+        secureRandom.nextBytes(iv);
+
+        final byte[] plaintext = password.toUtf8Bytes();
+        try {
+            final ByteBuffer envelope = ByteBuffer.allocate(HEADER_LENGTH + plaintext.length + TAG_BITS / 8);
+            envelope.put(pbkdf ? FLAG_PBKDF : 0).put(salt).putInt(iterations).put(iv);
+            final Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, iv));
+            cipher.updateAAD(getAad(vault, envelope.array()));
+            cipher.doFinal(ByteBuffer.wrap(plaintext), envelope);
+            return ENVELOPE_PREFIX + Base64.getEncoder().encodeToString(envelope.array());
+        } catch (GeneralSecurityException e) {
+            throw new KeychainAccessException("Encrypt vault: " + vault + " failed", e);
+        } finally {
+            Arrays.fill(plaintext, (byte) 0);
+        }
+    }
+
+    @Override
+    public void forget(TinyEncryptConfig tinyencryptConfig, String vault) {
+        derivedKeyCache.removePassword(tinyencryptConfig, vault);
+        fallbackBackend.forget(tinyencryptConfig, vault);
+    }
+
+    @Override
+    public void forgetAll() {
+        derivedKeyCache.clear();
+        fallbackBackend.forgetAll();
+    }
+
+    PasswordCache getDerivedKeyCache() {
+        return derivedKeyCache;
+    }
+
+    private static class DerivedKey {
+        private final byte[] salt;
+        private final int iterations;
+        private final SecretKeySpec key;
+
+        private DerivedKey(byte[] salt, int iterations, SecretKeySpec key) {
+            this.salt = salt;
+            this.iterations = iterations;
+            this.key = key;
+        }
+
+        private boolean matches(byte[] otherSalt, int otherIterations) {
+            return (iterations == otherIterations) && MessageDigest.isEqual(salt, otherSalt);
+        }
+    }
+
+    private DerivedKey getCachedDerivedKey(TinyEncryptConfig tinyencryptConfig, String vault) {
+        final char[] cachedDerivedKey = derivedKeyCache.getPassword(tinyencryptConfig, vault);
+        if (cachedDerivedKey == null) {
+            return null;
+        }
+        final byte[] encoded = new byte[cachedDerivedKey.length];
+        for (int i = 0; i < cachedDerivedKey.length; i++) {
+            encoded[i] = (byte) cachedDerivedKey[i];
+        }
+        Arrays.fill(cachedDerivedKey, '\0');
+        final byte[] decoded = Base64.getDecoder().decode(encoded);
+        Arrays.fill(encoded, (byte) 0);
+        try {
+            final ByteBuffer buffer = ByteBuffer.wrap(decoded);
+            final byte[] salt = new byte[SALT_LENGTH];
+            buffer.get(salt);
+            final int iterations = buffer.getInt();
+            return new DerivedKey(salt, iterations, new SecretKeySpec(decoded, buffer.position(), KEY_LENGTH, "AES"));
+        } finally {
+            Arrays.fill(decoded, (byte) 0);
+        }
+    }
+
+    /**
+     * Ask the PBKDF password, derive the key and cache it, the password itself is not kept
+     */
+    private DerivedKey deriveKey(TinyEncryptConfig tinyencryptConfig, String vault, SecretKeySpec softwareKey,
+                                 byte[] salt, int iterations) throws KeychainAccessException {
+        final SecretBuffer pbkdfPassword = Pinentry.getPin(tinyencryptConfig, "TinyEncrypt", "Enter PBKDF password for vault: " + vault);
+        final char[] pbkdfPasswordChars = Utils.toCharArray(pbkdfPassword);
+        pbkdfPassword.wipe();
+        byte[] pbkdfKey = null;
+        byte[] key = null;
+        byte[] cacheValue = null;
+        char[] cacheChars = null;
+        try {
+            final PBEKeySpec pbeKeySpec = new PBEKeySpec(pbkdfPasswordChars, salt, iterations, KEY_LENGTH * 8);
+            try {
+                pbkdfKey = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(pbeKeySpec).getEncoded();
+            } finally {
+                pbeKeySpec.clearPassword();
+            }
+            // both the software key and the password are needed
+            final Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(softwareKey);
+            mac.update(PBKDF_KEY_INFO);
+            key = mac.doFinal(pbkdfKey);
+
+            cacheValue = ByteBuffer.allocate(SALT_LENGTH + 4 + KEY_LENGTH).put(salt).putInt(iterations).put(key).array();
+            final byte[] encoded = Base64.getEncoder().encode(cacheValue);
+            cacheChars = new char[encoded.length];
+            for (int i = 0; i < encoded.length; i++) {
+                cacheChars[i] = (char) encoded[i];
+            }
+            Arrays.fill(encoded, (byte) 0);
+            LOG.info("Store PBKDF derived key to cache");
+            try (SecretBuffer cacheBuffer = SecretBuffer.wrap(cacheChars, 0, cacheChars.length)) {
+                derivedKeyCache.putPassword(tinyencryptConfig, vault, cacheBuffer);
+            }
+            return new DerivedKey(salt, iterations, new SecretKeySpec(key, "AES"));
+        } catch (GeneralSecurityException e) {
+            throw new KeychainAccessException("Derive PBKDF key failed", e);
+        } finally {
+            Arrays.fill(pbkdfPasswordChars, '\0');
+            for (byte[] bytes : Arrays.asList(pbkdfKey, key, cacheValue)) {
+                if (bytes != null) {
+                    Arrays.fill(bytes, (byte) 0);
+                }
+            }
+            if (cacheChars != null) {
+                Arrays.fill(cacheChars, '\0');
+            }
+        }
+    }
+
+    private SecretKeySpec getSoftwareKey(TinyEncryptConfig tinyencryptConfig, boolean create) throws KeychainAccessException {
+        final File keyFile = (StringUtils.isNoneEmpty(tinyencryptConfig.getJcaKeyFile()))
+                ? new File(tinyencryptConfig.getJcaKeyFile()) : DEFAULT_KEY_FILE;
+        final SecretKeySpec cachedSoftwareKey = softwareKeys.get(keyFile);
+        if (cachedSoftwareKey != null) {
+            return cachedSoftwareKey;
+        }
+        synchronized (softwareKeys) {
+            if (!keyFile.isFile()) {
+                if (!create) {
+                    throw new KeychainAccessException("JCA key file: " + keyFile + " not found");
+                }
+                LOG.info("Create JCA key file: " + keyFile);
+                final byte[] newKey = new byte[KEY_LENGTH];
+                secureRandom.nextBytes(newKey);
+                keyFile.getAbsoluteFile().getParentFile().mkdirs();
+                // temp file is created owner-only, then moved into place
+                Utils.writeFile(keyFile, Base64.getEncoder().encodeToString(newKey), true);
+                Arrays.fill(newKey, (byte) 0);
+            }
+            final byte[] key;
+            try {
+                key = Base64.getDecoder().decode(Utils.readFile(keyFile).trim());
+            } catch (IllegalArgumentException e) {
+                throw new KeychainAccessException("Decode JCA key file: " + keyFile + " failed", e);
+            }
+            if (key.length != KEY_LENGTH) {
+                Arrays.fill(key, (byte) 0);
+                throw new KeychainAccessException("JCA key file: " + keyFile + " must hold " + KEY_LENGTH + " bytes");
+            }
+            final SecretKeySpec softwareKey = new SecretKeySpec(key, "AES");
+            Arrays.fill(key, (byte) 0);
+            softwareKeys.put(keyFile, softwareKey);
+            return softwareKey;
+        }
+    }
+
+    private static byte[] getAad(String vault, byte[] envelope) {
+        final byte[] prefixBytes = ENVELOPE_PREFIX.getBytes(StandardCharsets.UTF_8);
+        final byte[] vaultBytes = vault.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(prefixBytes.length + HEADER_LENGTH + vaultBytes.length)
+                .put(prefixBytes).put(envelope, 0, HEADER_LENGTH).put(vaultBytes).array();
+    }
+
+    private static SecretBuffer toSecretBuffer(byte[] utf8Bytes) throws KeychainAccessException {
+        CharBuffer chars = null;
+        try {
+            chars = StandardCharsets.UTF_8.newDecoder().decode(ByteBuffer.wrap(utf8Bytes));
+            return SecretBuffer.wrap(chars.array(), chars.arrayOffset(), chars.remaining());
+        } catch (CharacterCodingException e) {
+            throw new KeychainAccessException("Decode decrypted password failed", e);
+        } finally {
+            if (chars != null) {
+                Arrays.fill(chars.array(), '\0');
+            }
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package me.hatter.integrations.tinyencrypt;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * In-memory index of key files under <code>encryptKeyBasePath</code>, built by one directory scan and
+ * kept current by a <code>WatchService</code>, so existence checks need no file system calls.
+ * <p>
+ * Changes made by this process are applied to the index directly, changes made by other processes
+ * show up once the watch event arrives. When the directory cannot be watched every lookup stats the file.
+ * <p>
+ * The index is keyed by key file name, lookups go through {@link Utils#getKeyFileName(String)}, vault IDs of
+ * {@link #listVaults()} are decoded from file names. Key files of vaults with chars above 0xFF written with the
+ * legacy escaping, see {@link Utils#getLegacyKeyFileName(String)}, are renamed on the first lookup of their vault.
+ */
+public class KeyFileIndex {
+    private static final Logger LOG = LoggerFactory.getLogger(KeyFileIndex.class);
+    private static final ConcurrentMap<File, KeyFileIndex> KEY_FILE_INDEXES = new ConcurrentHashMap<>();
+
+    private final File basePath;
+    // key file name to entry
+    private final ConcurrentMap<String, KeyFileEntry> keyFileEntries = new ConcurrentHashMap<>();
+    private final WatchService watchService;
+
+    public static class KeyFileEntry {
+        private final String vault;
+        private final File keyFile;
+        private final long size;
+        private final long lastModifiedMillis;
+
+        private KeyFileEntry(String vault, File keyFile, long size, long lastModifiedMillis) {
+            this.vault = vault;
+            this.keyFile = keyFile;
+            this.size = size;
+            this.lastModifiedMillis = lastModifiedMillis;
+        }
+
+        /**
+         * @return vault ID decoded from the key file name
+         */
+        public String getVault() {
+            return vault;
+        }
+
+        public File getKeyFile() {
+            return keyFile;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLastModifiedMillis() {
+            return lastModifiedMillis;
+        }
+    }
+
+    /**
+     * @return index of <code>basePath</code>, the directory is created and scanned on first use
+     */
+    public static KeyFileIndex getIndex(File basePath) {
+        return KEY_FILE_INDEXES.computeIfAbsent(basePath.getAbsoluteFile(), KeyFileIndex::new);
+    }
+
+    private KeyFileIndex(File basePath) {
+        this.basePath = basePath;
+        if (!basePath.isDirectory()) {
+            LOG.info("Make dirs: " + basePath);
+            basePath.mkdirs();
+        }
+        this.watchService = startWatch();
+        rescan();
+    }
+
+    public File getBasePath() {
+        return basePath;
+    }
+
+    public File getKeyFile(String vault) {
+        renameLegacyKeyFile(vault);
+        return new File(basePath, Utils.getKeyFileName(vault));
+    }
+
+    public boolean exists(String vault) {
+        renameLegacyKeyFile(vault);
+        if (watchService == null) {
+            return getKeyFile(vault).isFile();
+        }
+        return keyFileEntries.containsKey(Utils.getKeyFileName(vault));
+    }
+
+    /**
+     * @return key file metadata, <code>null</code> when the key file does not exist
+     */
+    public KeyFileEntry getEntry(String vault) {
+        renameLegacyKeyFile(vault);
+        final String keyFileName = Utils.getKeyFileName(vault);
+        if (watchService == null) {
+            refresh(keyFileName);
+        }
+        return keyFileEntries.get(keyFileName);
+    }
+
+    public List<String> listVaults() {
+        if (watchService == null) {
+            rescan();
+        }
+        final List<String> vaults = new ArrayList<>();
+        for (KeyFileEntry keyFileEntry : keyFileEntries.values()) {
+            vaults.add(keyFileEntry.vault);
+        }
+        return vaults;
+    }
+
+    /**
+     * Key file of <code>vault</code> was written or deleted by this process
+     */
+    public void refreshVault(String vault) {
+        refresh(Utils.getKeyFileName(vault));
+    }
+
+    private synchronized void rescan() {
+        final File[] files = basePath.listFiles();
+        final List<String> scannedKeyFileNames = new ArrayList<>();
+        if (files != null) {
+            for (File file : files) {
+                if (refresh(file.getName()) != null) {
+                    scannedKeyFileNames.add(file.getName());
+                }
+            }
+        }
+        keyFileEntries.keySet().retainAll(scannedKeyFileNames);
+    }
+
+    private synchronized KeyFileEntry refresh(String keyFileName) {
+        final String vault = Utils.decodeKeyFileName(keyFileName);
+        if (vault == null) {
+            // not a key file, e.g. temp file
+            return null;
+        }
+        final File keyFile = new File(basePath, keyFileName);
+        if (!keyFile.isFile()) {
+            keyFileEntries.remove(keyFileName);
+            return null;
+        }
+        final KeyFileEntry keyFileEntry = new KeyFileEntry(vault, keyFile, keyFile.length(), keyFile.lastModified());
+        keyFileEntries.put(keyFileName, keyFileEntry);
+        return keyFileEntry;
+    }
+
+    private synchronized void renameLegacyKeyFile(String vault) {
+        final String legacyKeyFileName = Utils.getLegacyKeyFileName(vault);
+        if (legacyKeyFileName == null) {
+            return;
+        }
+        final String keyFileName = Utils.getKeyFileName(vault);
+        if ((watchService != null) && keyFileEntries.containsKey(keyFileName)) {
+            return;
+        }
+        final File legacyKeyFile = new File(basePath, legacyKeyFileName);
+        final File keyFile = new File(basePath, keyFileName);
+        if (!legacyKeyFile.isFile() || keyFile.exists()) {
+            return;
+        }
+        try {
+            Files.move(legacyKeyFile.toPath(), keyFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            LOG.info("Rename legacy key file: " + legacyKeyFile + " to: " + keyFile);
+        } catch (IOException e) {
+            LOG.warn("Rename legacy key file: " + legacyKeyFile + " failed", e);
+        }
+        refresh(legacyKeyFileName);
+        refresh(keyFileName);
+    }
+
+    private WatchService startWatch() {
+        final WatchService newWatchService;
+        try {
+            newWatchService = basePath.toPath().getFileSystem().newWatchService();
+            basePath.toPath().register(newWatchService,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException | UnsupportedOperationException e) {
+            LOG.warn("Watch key file dir: " + basePath + " failed, check key files on each access", e);
+            return null;
+        }
+        final Thread watchThread = new Thread(() -> watch(newWatchService), "tinyencrypt-key-file-watcher");
+        watchThread.setDaemon(true);
+        watchThread.start();
+        return newWatchService;
+    }
+
+    private void watch(WatchService watchService) {
+        while (true) {
+            final WatchKey watchKey;
+            try {
+                watchKey = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            for (WatchEvent<?> event : watchKey.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    rescan();
+                } else {
+                    refresh(((Path) event.context()).getFileName().toString());
+                }
+            }
+            if (!watchKey.reset()) {
+                // dir deleted or became inaccessible, the next access builds a new index
+                LOG.warn("Stop watching key file dir: " + basePath);
+                KEY_FILE_INDEXES.remove(basePath, this);
+                try {
+                    watchService.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package me.hatter.integrations.tinyencrypt;
+
+import org.cryptomator.integrations.keychain.KeychainAccessException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Re-encrypt all vault keys, e.g. with a new <code>keyId</code> or with <code>enablePbkdfEncryptionPassword</code> turned on:
+ * <pre>
+ * java -cp ... me.hatter.integrations.tinyencrypt.KeyRotation &lt;old config.json&gt; &lt;new config.json&gt; [--parallelism N] [--resume-file FILE]
+ * </pre>
+ * Each vault key is decrypted with the old config, encrypted with the new config, verified by decrypting it again,
+ * then written over the old key (atomically replaced key file, or an appended record of the packed key store).
+ * Rotated vaults are appended to the resume file, a rerun skips them, the resume file is deleted once all vaults are rotated.
+ * Cryptomator should not run while rotating.
+ */
+public class KeyRotation {
+    public static final int DEFAULT_PARALLELISM = 4;
+    public static final String DEFAULT_RESUME_FILE_NAME = "~rotation.progress";
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: KeyRotation <old config.json> <new config.json> [--parallelism N] [--resume-file FILE]");
+            System.exit(1);
+        }
+        final TinyEncryptConfig oldConfig = loadConfig(new File(args[0]));
+        final TinyEncryptConfig newConfig = loadConfig(new File(args[1]));
+        int parallelism = DEFAULT_PARALLELISM;
+        File resumeFile = null;
+        for (int i = 2; i < args.length; i++) {
+            if ("--parallelism".equals(args[i]) && (i + 1 < args.length)) {
+                parallelism = Integer.parseInt(args[++i]);
+            } else if ("--resume-file".equals(args[i]) && (i + 1 < args.length)) {
+                resumeFile = new File(args[++i]);
+            } else {
+                throw new IllegalArgumentException("Unknown argument: " + args[i]);
+            }
+        }
+        if (resumeFile == null) {
+            // '~' never appears in key file names, so the resume file is never taken as a key file
+            resumeFile = new File(Utils.getEncryptKeyBasePath(newConfig), DEFAULT_RESUME_FILE_NAME);
+        }
+        final int failed = rotate(oldConfig, newConfig, parallelism, resumeFile, System.out);
+        System.exit((failed == 0) ? 0 : 2);
+    }
+
+    /**
+     * @return count of vaults failed to rotate, they are rotated again by a rerun with the same resume file
+     */
+    public static int rotate(TinyEncryptConfig oldConfig, TinyEncryptConfig newConfig, int parallelism,
+                             File resumeFile, PrintStream progress) throws KeychainAccessException {
+        final KeyStore oldKeyStore = Utils.getKeyStore(oldConfig);
+        final KeyStore newKeyStore = Utils.getKeyStore(newConfig);
+        // own PBKDF password caches per config, both are keyed by vault only,
+        // a password cached while decrypting with the old config must never encrypt with the new one
+        final CryptoBackend oldCryptoBackend = Utils.newCryptoBackend(oldConfig);
+        final CryptoBackend newCryptoBackend = Utils.newCryptoBackend(newConfig);
+
+        final Set<String> rotatedVaults = readResumeFile(resumeFile);
+        final List<String> vaults = new ArrayList<>();
+        for (String vault : oldKeyStore.listVaults()) {
+            if (!rotatedVaults.contains(vault)) {
+                vaults.add(vault);
+            }
+        }
+        progress.println("Rotate " + vaults.size() + " vault key(s), " + rotatedVaults.size() + " rotated before, parallelism: " + parallelism);
+
+        final AtomicInteger doneCount = new AtomicInteger();
+        final AtomicInteger failedCount = new AtomicInteger();
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, parallelism));
+        try (Writer resumeWriter = Files.newBufferedWriter(resumeFile.toPath(), StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            final List<Future<?>> futures = new ArrayList<>();
+            for (String vault : vaults) {
+                futures.add(executor.submit(() -> {
+                    String status;
+                    try {
+                        rotateVault(vault, oldConfig, oldKeyStore, oldCryptoBackend, newConfig, newKeyStore, newCryptoBackend);
+                        synchronized (resumeWriter) {
+                            resumeWriter.write(vault + "\n");
+                            resumeWriter.flush();
+                        }
+                        status = "rotated";
+                    } catch (Exception e) {
+                        failedCount.incrementAndGet();
+                        status = "FAILED: " + e.getMessage();
+                    }
+                    progress.println("[" + doneCount.incrementAndGet() + "/" + vaults.size() + "] " + vault + " " + status);
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (IOException e) {
+            throw new KeychainAccessException("Write resume file: " + resumeFile + " failed", e);
+        } catch (Exception e) {
+            throw new KeychainAccessException("Rotate vault keys failed", e);
+        } finally {
+            executor.shutdownNow();
+        }
+        if (failedCount.get() == 0) {
+            progress.println("Rotated all vault keys");
+            if (!resumeFile.delete()) {
+                progress.println("Delete resume file: " + resumeFile + " failed");
+            }
+        } else {
+            progress.println(failedCount.get() + " vault key(s) failed, rerun to retry them, resume file: " + resumeFile);
+        }
+        return failedCount.get();
+    }
+
+    private static void rotateVault(String vault,
+                                    TinyEncryptConfig oldConfig, KeyStore oldKeyStore, CryptoBackend oldCryptoBackend,
+                                    TinyEncryptConfig newConfig, KeyStore newKeyStore, CryptoBackend newCryptoBackend) throws KeychainAccessException {
+        final String oldEncryptedKey = oldKeyStore.read(vault);
+        if (oldEncryptedKey == null) {
+            throw new KeychainAccessException("Key of vault: " + vault + " not found");
+        }
+        try (SecretBuffer password = oldCryptoBackend.decrypt(oldConfig, vault, oldEncryptedKey)) {
+            final String newEncryptedKey = newCryptoBackend.encrypt(newConfig, vault, password, "Vault");
+            try (SecretBuffer verifyPassword = newCryptoBackend.decrypt(newConfig, vault, newEncryptedKey)) {
+                final byte[] passwordBytes = password.toUtf8Bytes();
+                final byte[] verifyPasswordBytes = verifyPassword.toUtf8Bytes();
+                try {
+                    if (!Arrays.equals(passwordBytes, verifyPasswordBytes)) {
+                        throw new KeychainAccessException("Verify re-encrypted key of vault: " + vault + " failed");
+                    }
+                } finally {
+                    Arrays.fill(passwordBytes, (byte) 0);
+                    Arrays.fill(verifyPasswordBytes, (byte) 0);
+                }
+            }
+            newKeyStore.write(vault, newEncryptedKey, true);
+        } finally {
+            oldCryptoBackend.forget(oldConfig, vault);
+            newCryptoBackend.forget(newConfig, vault);
+        }
+    }
+
+    private static Set<String> readResumeFile(File resumeFile) throws KeychainAccessException {
+        final Set<String> rotatedVaults = new HashSet<>();
+        if (resumeFile.isFile()) {
+            for (String vault : Utils.readFile(resumeFile).split("\n")) {
+                if (!vault.isEmpty()) {
+                    rotatedVaults.add(vault);
+                }
+            }
+        }
+        return rotatedVaults;
+    }
+
+    private static TinyEncryptConfig loadConfig(File configFile) throws KeychainAccessException {
+        return Utils.parseTinyencryptConfig(configFile, Utils.readFile(configFile));
+    }
+}
@@ -0,0 +1,34 @@
+package me.hatter.integrations.tinyencrypt;
+
+import org.cryptomator.integrations.keychain.KeychainAccessException;
+
+import java.util.List;
+
+/**
+ * Storage of encrypted vault passwords under <code>encryptKeyBasePath</code>.
+ */
+public interface KeyStore {
+    String FORMAT_FILE = "file";
+    String FORMAT_PACKED = "packed";
+
+    boolean exists(String vault);
+
+    /**
+     * @return encrypted vault password, <code>null</code> when not stored
+     */
+    String read(String vault) throws KeychainAccessException;
+
+    /**
+     * @param sync flush to the storage device before returning
+     */
+    void write(String vault, String encryptedKey, boolean sync) throws KeychainAccessException;
+
+    void delete(String vault) throws KeychainAccessException;
+
+    List<String> listVaults();
+
+    /**
+     * @return where the key of <code>vault</code> is stored, for messages
+     */
+    String getLocation(String vault);
+}
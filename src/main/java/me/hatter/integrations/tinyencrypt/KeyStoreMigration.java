@@ -0,0 +1,62 @@
+package me.hatter.integrations.tinyencrypt;
+
+import org.cryptomator.integrations.keychain.KeychainAccessException;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Copy vault keys from one key store format to the other, e.g. from one file per vault to the packed key store:
+ * <pre>
+ * java -cp ... me.hatter.integrations.tinyencrypt.KeyStoreMigration &lt;encryptKeyBasePath&gt; [packed|file] [--delete-source]
+ * </pre>
+ * Keys are copied as they are, no tinyencrypt call is needed. Cryptomator should not run while migrating.
+ */
+public class KeyStoreMigration {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: KeyStoreMigration <encryptKeyBasePath> [packed|file] [--delete-source]");
+            System.exit(1);
+        }
+        final File basePath = new File(args[0]);
+        final String targetFormat = (args.length > 1) ? args[1] : KeyStore.FORMAT_PACKED;
+        final boolean deleteSource = (args.length > 2) && "--delete-source".equals(args[2]);
+        final KeyStore source;
+        final KeyStore target;
+        if (KeyStore.FORMAT_PACKED.equals(targetFormat)) {
+            source = new FileKeyStore(basePath);
+            target = new PackedKeyStore(basePath);
+        } else if (KeyStore.FORMAT_FILE.equals(targetFormat)) {
+            source = new PackedKeyStore(basePath);
+            target = new FileKeyStore(basePath);
+        } else {
+            throw new IllegalArgumentException("Unknown key store format: " + targetFormat);
+        }
+        final int count = migrate(source, target, deleteSource);
+        System.out.println("Migrated " + count + " vault key(s) to " + targetFormat + " key store");
+    }
+
+    /**
+     * @return count of migrated vault keys
+     */
+    public static int migrate(KeyStore source, KeyStore target, boolean deleteSource) throws KeychainAccessException {
+        final List<String> vaults = source.listVaults();
+        int count = 0;
+        for (String vault : vaults) {
+            final String encryptedKey = source.read(vault);
+            if (encryptedKey == null) {
+                continue;
+            }
+            target.write(vault, encryptedKey, true);
+            if (!encryptedKey.equals(target.read(vault))) {
+                throw new KeychainAccessException("Verify migrated key failed: " + target.getLocation(vault));
+            }
+            if (deleteSource) {
+                source.delete(vault);
+            }
+            count++;
+        }
+        return count;
+    }
+}
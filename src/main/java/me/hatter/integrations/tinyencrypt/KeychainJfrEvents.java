@@ -0,0 +1,72 @@
+package me.hatter.integrations.tinyencrypt;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * JFR events, only loaded when the <code>jdk.jfr</code> module is present, recorded only while a recording is running.
+ */
+class KeychainJfrEvents {
+
+    @Name("me.hatter.tinyencrypt.Operation")
+    @Label("Keychain Operation")
+    @Category("TinyEncrypt")
+    public static class OperationEvent extends Event {
+        @Label("Operation")
+        String operation;
+        @Label("Latency")
+        @Timespan
+        long latency;
+        @Label("Success")
+        boolean success;
+    }
+
+    @Name("me.hatter.tinyencrypt.Process")
+    @Label("tinyencrypt Process")
+    @Category("TinyEncrypt")
+    public static class ProcessEvent extends Event {
+        @Label("Command")
+        String command;
+        @Label("Spawn Time")
+        @Timespan
+        long spawnTime;
+        @Label("Runtime")
+        @Timespan
+        long runtime;
+        @Label("Exit Value")
+        int exitValue;
+        @Label("Stdout Bytes")
+        @DataAmount
+        long stdoutBytes;
+        @Label("Stderr Bytes")
+        @DataAmount
+        long stderrBytes;
+    }
+
+    static void commitOperation(String operation, long latencyNanos, boolean success) {
+        final OperationEvent event = new OperationEvent();
+        if (event.isEnabled()) {
+            event.operation = operation;
+            event.latency = latencyNanos;
+            event.success = success;
+            event.commit();
+        }
+    }
+
+    static void commitProcess(String command, long spawnNanos, long runtimeNanos, UtilsCommandResult result) {
+        final ProcessEvent event = new ProcessEvent();
+        if (event.isEnabled()) {
+            event.command = command;
+            event.spawnTime = spawnNanos;
+            event.runtime = runtimeNanos;
+            event.exitValue = result.getExitValue();
+            event.stdoutBytes = (result.getStdout() == null) ? 0 : result.getStdout().length;
+            event.stderrBytes = (result.getStderr() == null) ? 0 : result.getStderr().length;
+            event.commit();
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package me.hatter.integrations.tinyencrypt;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histograms and counters of keychain operations, tinyencrypt processes and key store I/O,
+ * exposed by JMX and, when available, as JFR events.
+ */
+public class KeychainMetrics implements KeychainMetricsMXBean {
+    private static final Logger LOG = LoggerFactory.getLogger(KeychainMetrics.class);
+    public static final String OBJECT_NAME = "me.hatter.integrations.tinyencrypt:type=KeychainMetrics";
+    private static final ConcurrentMap<String, LatencyHistogram> HISTOGRAMS = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, LongAdder> COUNTERS = new ConcurrentHashMap<>();
+    // e.g. jlink runtime without jdk.jfr
+    private static final boolean JFR_AVAILABLE = ModuleLayer.boot().findModule("jdk.jfr").isPresent();
+
+    static {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new KeychainMetrics(), new ObjectName(OBJECT_NAME));
+        } catch (Exception | LinkageError e) {
+            // e.g. already registered by another class loader
+            LOG.warn("Register keychain metrics MBean failed: " + e);
+        }
+    }
+
+    /**
+     * @param operation  e.g. <code>load</code>, <code>store</code>, <code>delete</code>, <code>change</code>
+     * @param startNanos <code>System.nanoTime()</code> when the operation started
+     */
+    public static void recordOperation(String operation, long startNanos, boolean success) {
+        final long latencyNanos = System.nanoTime() - startNanos;
+        getHistogram("operation." + operation).record(latencyNanos);
+        if (!success) {
+            increment("operation." + operation + ".failure");
+        }
+        if (JFR_AVAILABLE) {
+            KeychainJfrEvents.commitOperation(operation, latencyNanos, success);
+        }
+    }
+
+    /**
+     * @param command      tinyencrypt sub command, never arguments which may hold secrets
+     * @param spawnNanos   time to start the child process
+     * @param runtimeNanos time from started to exited
+     */
+    public static void recordProcess(String command, long spawnNanos, long runtimeNanos, UtilsCommandResult result) {
+        getHistogram("process.spawn").record(spawnNanos);
+        getHistogram("process.runtime").record(runtimeNanos);
+        recordResult("process", result);
+        if (JFR_AVAILABLE) {
+            KeychainJfrEvents.commitProcess(command, spawnNanos, runtimeNanos, result);
+        }
+    }
+
+    public static void recordWorkerRequest(String command, long startNanos, UtilsCommandResult result) {
+        final long runtimeNanos = System.nanoTime() - startNanos;
+        getHistogram("worker.request").record(runtimeNanos);
+        recordResult("worker", result);
+        if (JFR_AVAILABLE) {
+            KeychainJfrEvents.commitProcess(command, 0, runtimeNanos, result);
+        }
+    }
+
+    /**
+     * @param name e.g. <code>keyFile.read</code>
+     */
+    public static void recordIo(String name, long startNanos) {
+        getHistogram("io." + name).record(System.nanoTime() - startNanos);
+    }
+
+    public static void increment(String name) {
+        COUNTERS.computeIfAbsent(name, n -> new LongAdder()).increment();
+    }
+
+    public static LatencyHistogram getHistogram(String name) {
+        return HISTOGRAMS.computeIfAbsent(name, n -> new LatencyHistogram());
+    }
+
+    private static void recordResult(String prefix, UtilsCommandResult result) {
+        increment(prefix + ".exit." + result.getExitValue());
+        if (result.getStdout() != null) {
+            COUNTERS.computeIfAbsent(prefix + ".stdoutBytes", n -> new LongAdder()).add(result.getStdout().length);
+        }
+        if (result.getStderr() != null) {
+            COUNTERS.computeIfAbsent(prefix + ".stderrBytes", n -> new LongAdder()).add(result.getStderr().length);
+        }
+    }
+
+    @Override
+    public Map<String, Long> getCounters() {
+        final Map<String, Long> counters = new TreeMap<>();
+        COUNTERS.forEach((name, counter) -> counters.put(name, counter.sum()));
+        return counters;
+    }
+
+    @Override
+    public Map<String, LatencySnapshot> getLatencies() {
+        final Map<String, LatencySnapshot> latencies = new TreeMap<>();
+        HISTOGRAMS.forEach((name, histogram) -> latencies.put(name, new LatencySnapshot(histogram)));
+        return latencies;
+    }
+
+    @Override
+    public Map<String, PasswordCacheSnapshot> getPasswordCaches() {
+        final Map<String, PasswordCacheSnapshot> passwordCaches = new TreeMap<>();
+        for (PasswordCache passwordCache : PasswordCache.getPasswordCaches()) {
+            passwordCaches.put(passwordCache.getName(), new PasswordCacheSnapshot(passwordCache));
+        }
+        return passwordCaches;
+    }
+}
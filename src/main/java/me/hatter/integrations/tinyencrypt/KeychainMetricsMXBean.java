@@ -0,0 +1,92 @@
+package me.hatter.integrations.tinyencrypt;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link KeychainMetrics}, registered as <code>me.hatter.integrations.tinyencrypt:type=KeychainMetrics</code>.
+ */
+public interface KeychainMetricsMXBean {
+
+    /**
+     * @return counters, e.g. <code>process.exit.0</code>, <code>process.stdoutBytes</code>, <code>operation.load.failure</code>
+     */
+    Map<String, Long> getCounters();
+
+    /**
+     * @return latencies, e.g. <code>operation.load</code>, <code>process.spawn</code>, <code>process.runtime</code>, <code>io.keyFile.read</code>
+     */
+    Map<String, LatencySnapshot> getLatencies();
+
+    Map<String, PasswordCacheSnapshot> getPasswordCaches();
+
+    class LatencySnapshot {
+        private final long count;
+        private final long meanMicros;
+        private final long p50Micros;
+        private final long p99Micros;
+        private final long maxMicros;
+
+        public LatencySnapshot(LatencyHistogram histogram) {
+            this.count = histogram.getCount();
+            this.meanMicros = histogram.getMeanNanos() / 1000;
+            this.p50Micros = histogram.getPercentileNanos(50) / 1000;
+            this.p99Micros = histogram.getPercentileNanos(99) / 1000;
+            this.maxMicros = histogram.getMaxNanos() / 1000;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMeanMicros() {
+            return meanMicros;
+        }
+
+        public long getP50Micros() {
+            return p50Micros;
+        }
+
+        public long getP99Micros() {
+            return p99Micros;
+        }
+
+        public long getMaxMicros() {
+            return maxMicros;
+        }
+    }
+
+    class PasswordCacheSnapshot {
+        private final int size;
+        private final long hitCount;
+        private final long missCount;
+        private final long evictionCount;
+
+        public PasswordCacheSnapshot(PasswordCache passwordCache) {
+            this.size = passwordCache.size();
+            this.hitCount = passwordCache.getHitCount();
+            this.missCount = passwordCache.getMissCount();
+            this.evictionCount = passwordCache.getEvictionCount();
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        public long getHitCount() {
+            return hitCount;
+        }
+
+        public long getMissCount() {
+            return missCount;
+        }
+
+        public long getEvictionCount() {
+            return evictionCount;
+        }
+
+        public double getHitRate() {
+            final long total = hitCount + missCount;
+            return (total == 0) ? 0 : ((double) hitCount / total);
+        }
+    }
+}
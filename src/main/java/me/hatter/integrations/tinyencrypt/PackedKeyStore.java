@@ -0,0 +1,426 @@
+package me.hatter.integrations.tinyencrypt;
+
+import org.cryptomator.integrations.keychain.KeychainAccessException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * All vault keys in one append-only file, read through a <code>MappedByteBuffer</code>.
+ * <p>
+ * File layout: header <code>magic(4) version(4)</code>, then records
+ * <code>bodyLength(4) crc32(4) body</code>, body is <code>type(1) vaultLength(4) vault value</code>.
+ * A write appends a put record, a delete appends a delete record, the index of vault to value offset
+ * is rebuilt from the records on open. A torn record at the tail (crash while appending) is truncated.
+ * When dead records outweigh live ones the live records are copied to a new file which replaces the old one.
+ * <p>
+ * Several processes may share the pack file, e.g. Cryptomator and the key rotation CLI. Appends and compaction hold
+ * an exclusive lock of {@link #LOCK_FILE_NAME}, which is never replaced. Every access stats the pack file first,
+ * records appended by another process are scanned, a pack file replaced by another process's compaction is reopened.
+ */
+public class PackedKeyStore implements KeyStore {
+    private static final Logger LOG = LoggerFactory.getLogger(PackedKeyStore.class);
+    /**
+     * '~' never appears in key file names, so the pack file is never taken as a key file
+     */
+    public static final String PACK_FILE_NAME = "~keys.pack";
+    public static final String LOCK_FILE_NAME = "~keys.pack.lock";
+    // a JVM holds a file lock once, overlapping locks of other channels throw
+    private static final Object FILE_LOCK_GUARD = new Object();
+    private static final int MAGIC = 0x54454B50; // TEKP
+    private static final int VERSION = 1;
+    private static final int FILE_HEADER_LENGTH = 8;
+    private static final int RECORD_HEADER_LENGTH = 8;
+    private static final int RECORD_BODY_MIN_LENGTH = 5;
+    private static final byte RECORD_PUT = 1;
+    private static final byte RECORD_DELETE = 2;
+    private static final long COMPACT_MIN_DEAD_BYTES = 64 * 1024;
+
+    private final File packFile;
+    private final File lockFile;
+    private final Map<String, PackedEntry> entries = new HashMap<>();
+    private FileChannel channel;
+    private MappedByteBuffer mappedBuffer;
+    // identity of the opened pack file, changes when another process replaces it
+    private Object fileIdentity;
+    // end of the last valid record
+    private long size;
+    // pack file size at the last scan, may end with a record still being appended by another process
+    private long scannedSize;
+    private long liveBytes;
+    private long deadBytes;
+    private boolean fileLockHeld;
+
+    private interface IoAction {
+        void run() throws IOException;
+    }
+
+    private static class PackedEntry {
+        private final int recordOffset;
+        private final int recordLength;
+        private final int valueOffset;
+        private final int valueLength;
+
+        private PackedEntry(int recordOffset, int recordLength, int valueOffset, int valueLength) {
+            this.recordOffset = recordOffset;
+            this.recordLength = recordLength;
+            this.valueOffset = valueOffset;
+            this.valueLength = valueLength;
+        }
+    }
+
+    public PackedKeyStore(File basePath) throws KeychainAccessException {
+        if (!basePath.isDirectory()) {
+            LOG.info("Make dirs: " + basePath);
+            basePath.mkdirs();
+        }
+        this.packFile = new File(basePath, PACK_FILE_NAME);
+        this.lockFile = new File(basePath, LOCK_FILE_NAME);
+        try {
+            open();
+            withFileLock(() -> {
+                refreshIfChanged();
+                compactIfNeeded();
+            });
+        } catch (IOException e) {
+            throw new KeychainAccessException("Open packed key store: " + packFile + " failed", e);
+        }
+    }
+
+    public File getPackFile() {
+        return packFile;
+    }
+
+    @Override
+    public synchronized boolean exists(String vault) {
+        tryRefreshIfChanged();
+        return entries.containsKey(vault);
+    }
+
+    @Override
+    public synchronized String read(String vault) throws KeychainAccessException {
+        final long startNanos = System.nanoTime();
+        try {
+            refreshIfChanged();
+            final PackedEntry entry = entries.get(vault);
+            if (entry == null) {
+                return null;
+            }
+            final ByteBuffer valueBuffer = getMappedBuffer();
+            final byte[] value = new byte[entry.valueLength];
+            valueBuffer.get(entry.valueOffset, value);
+            KeychainMetrics.recordIo("packFile.read", startNanos);
+            return new String(value, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new KeychainAccessException("Read packed key store: " + packFile + " failed", e);
+        }
+    }
+
+    @Override
+    public synchronized void write(String vault, String encryptedKey, boolean sync) throws KeychainAccessException {
+        append(RECORD_PUT, vault, encryptedKey.getBytes(StandardCharsets.UTF_8), sync);
+    }
+
+    @Override
+    public synchronized void delete(String vault) throws KeychainAccessException {
+        tryRefreshIfChanged();
+        if (entries.containsKey(vault)) {
+            append(RECORD_DELETE, vault, new byte[0], true);
+        }
+    }
+
+    @Override
+    public synchronized List<String> listVaults() {
+        tryRefreshIfChanged();
+        return new ArrayList<>(entries.keySet());
+    }
+
+    @Override
+    public String getLocation(String vault) {
+        return packFile + "#" + vault;
+    }
+
+    private void append(byte type, String vault, byte[] value, boolean sync) throws KeychainAccessException {
+        final byte[] vaultBytes = vault.getBytes(StandardCharsets.UTF_8);
+        final int bodyLength = RECORD_BODY_MIN_LENGTH + vaultBytes.length + value.length;
+        final ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_LENGTH + bodyLength);
+        record.putInt(bodyLength).putInt(0).put(type).putInt(vaultBytes.length).put(vaultBytes).put(value);
+        final CRC32 crc32 = new CRC32();
+        crc32.update(record.array(), RECORD_HEADER_LENGTH, bodyLength);
+        record.putInt(4, (int) crc32.getValue());
+        record.flip();
+
+        final long startNanos = System.nanoTime();
+        try {
+            withFileLock(() -> {
+                // records of other processes first, the record goes after them
+                refreshIfChanged();
+                final long recordOffset = size;
+                if (channel.size() > recordOffset) {
+                    // torn record, nobody appends while the lock is held
+                    channel.truncate(recordOffset);
+                }
+                try {
+                    long position = recordOffset;
+                    while (record.hasRemaining()) {
+                        position += channel.write(record, position);
+                    }
+                    if (sync) {
+                        channel.force(true);
+                    }
+                } catch (IOException e) {
+                    try {
+                        channel.truncate(recordOffset);
+                    } catch (IOException truncateException) {
+                        e.addSuppressed(truncateException);
+                    }
+                    throw e;
+                }
+                size = recordOffset + record.limit();
+                scannedSize = size;
+                // remapped on next read
+                mappedBuffer = null;
+                applyRecord(type, vault, (int) recordOffset, record.limit(), value.length);
+
+                try {
+                    compactIfNeeded();
+                } catch (IOException e) {
+                    LOG.warn("Compact packed key store: " + packFile + " failed", e);
+                }
+            });
+        } catch (IOException e) {
+            throw new KeychainAccessException("Write packed key store: " + packFile + " failed", e);
+        }
+        KeychainMetrics.recordIo("packFile.append", startNanos);
+    }
+
+    private void applyRecord(byte type, String vault, int recordOffset, int recordLength, int valueLength) {
+        final PackedEntry replaced = entries.remove(vault);
+        if (replaced != null) {
+            liveBytes -= replaced.recordLength;
+            deadBytes += replaced.recordLength;
+        }
+        if (type == RECORD_PUT) {
+            entries.put(vault, new PackedEntry(recordOffset, recordLength, recordOffset + recordLength - valueLength, valueLength));
+            liveBytes += recordLength;
+        } else {
+            deadBytes += recordLength;
+        }
+    }
+
+    private void open() throws IOException {
+        final Path packPath = packFile.toPath();
+        final Set<StandardOpenOption> openOptions = EnumSet.of(StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        // no compaction of another process between opening and reading the identity
+        withFileLock(() -> {
+            channel = isPosix(packPath)
+                    ? FileChannel.open(packPath, openOptions, ownerOnlyFileAttribute())
+                    : FileChannel.open(packPath, openOptions);
+            fileIdentity = getFileIdentity(Files.readAttributes(packPath, BasicFileAttributes.class));
+            if (channel.size() == 0) {
+                final ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_LENGTH).putInt(MAGIC).putInt(VERSION);
+                header.flip();
+                while (header.hasRemaining()) {
+                    channel.write(header, header.position());
+                }
+                channel.force(true);
+            }
+            scan(true);
+        });
+    }
+
+    private void tryRefreshIfChanged() {
+        try {
+            refreshIfChanged();
+        } catch (IOException e) {
+            LOG.warn("Refresh packed key store: " + packFile + " failed, use current index", e);
+        }
+    }
+
+    /**
+     * Catch up with changes of other processes, by one stat when there are none
+     */
+    private void refreshIfChanged() throws IOException {
+        final BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(packFile.toPath(), BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            // being replaced without atomic move, the current pack file is still readable
+            return;
+        }
+        if (!Objects.equals(fileIdentity, getFileIdentity(attributes)) || (attributes.size() < size)) {
+            LOG.info("Packed key store: " + packFile + " replaced by another process, reopen");
+            channel.close();
+            mappedBuffer = null;
+            open();
+        } else if (attributes.size() != scannedSize) {
+            scan(false);
+        }
+    }
+
+    /**
+     * @param full rebuild the index from the header, otherwise scan records after the last valid one
+     */
+    private void scan(boolean full) throws IOException {
+        mappedBuffer = null;
+        scannedSize = channel.size();
+        final ByteBuffer buffer = getMappedBuffer();
+        if (full) {
+            entries.clear();
+            liveBytes = 0;
+            deadBytes = 0;
+            if ((scannedSize < FILE_HEADER_LENGTH) || (buffer.getInt(0) != MAGIC)) {
+                throw new IOException("Not a packed key store: " + packFile);
+            }
+            if (buffer.getInt(4) != VERSION) {
+                throw new IOException("Unsupported packed key store version: " + buffer.getInt(4));
+            }
+            size = FILE_HEADER_LENGTH;
+        }
+        int offset = (int) size;
+        final CRC32 crc32 = new CRC32();
+        while (offset + RECORD_HEADER_LENGTH <= scannedSize) {
+            final int bodyLength = buffer.getInt(offset);
+            if ((bodyLength < RECORD_BODY_MIN_LENGTH) || (offset + RECORD_HEADER_LENGTH + (long) bodyLength > scannedSize)) {
+                break;
+            }
+            final int bodyOffset = offset + RECORD_HEADER_LENGTH;
+            crc32.reset();
+            crc32.update(buffer.duplicate().position(bodyOffset).limit(bodyOffset + bodyLength));
+            if ((int) crc32.getValue() != buffer.getInt(offset + 4)) {
+                break;
+            }
+            final byte type = buffer.get(bodyOffset);
+            final int vaultLength = buffer.getInt(bodyOffset + 1);
+            if ((vaultLength < 0) || (vaultLength > bodyLength - RECORD_BODY_MIN_LENGTH)) {
+                break;
+            }
+            final byte[] vaultBytes = new byte[vaultLength];
+            buffer.get(bodyOffset + RECORD_BODY_MIN_LENGTH, vaultBytes);
+            final int recordLength = RECORD_HEADER_LENGTH + bodyLength;
+            applyRecord(type, new String(vaultBytes, StandardCharsets.UTF_8), offset, recordLength,
+                    bodyLength - RECORD_BODY_MIN_LENGTH - vaultLength);
+            offset += recordLength;
+        }
+        size = offset;
+        // without the lock the tail may be a record another process is appending, scanned again next time
+        if ((offset < scannedSize) && fileLockHeld) {
+            LOG.warn("Truncate torn records of packed key store: " + packFile + ", from: " + offset + ", size: " + scannedSize);
+            channel.truncate(offset);
+            channel.force(true);
+            scannedSize = offset;
+            mappedBuffer = null;
+        }
+    }
+
+    /**
+     * Run <code>action</code> holding the exclusive lock of the lock file, reentrant
+     */
+    private void withFileLock(IoAction action) throws IOException {
+        if (fileLockHeld) {
+            action.run();
+            return;
+        }
+        synchronized (FILE_LOCK_GUARD) {
+            final Path lockPath = lockFile.toPath();
+            final Set<StandardOpenOption> openOptions = EnumSet.of(StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+            try (FileChannel lockChannel = isPosix(lockPath)
+                    ? FileChannel.open(lockPath, openOptions, ownerOnlyFileAttribute())
+                    : FileChannel.open(lockPath, openOptions);
+                 FileLock ignored = lockChannel.lock()) {
+                fileLockHeld = true;
+                try {
+                    action.run();
+                } finally {
+                    fileLockHeld = false;
+                }
+            }
+        }
+    }
+
+    private static Object getFileIdentity(BasicFileAttributes attributes) {
+        // no file key on Windows, the temp file of a compaction has its own creation time
+        return (attributes.fileKey() != null) ? attributes.fileKey() : attributes.creationTime();
+    }
+
+    private void compactIfNeeded() throws IOException {
+        if ((deadBytes < COMPACT_MIN_DEAD_BYTES) || (deadBytes <= liveBytes)) {
+            return;
+        }
+        LOG.info("Compact packed key store: " + packFile + ", live bytes: " + liveBytes + ", dead bytes: " + deadBytes);
+        final Path packPath = packFile.toPath().toAbsolutePath();
+        final Path tempPath = isPosix(packPath)
+                ? Files.createTempFile(packPath.getParent(), PACK_FILE_NAME, ".tmp", ownerOnlyFileAttribute())
+                : Files.createTempFile(packPath.getParent(), PACK_FILE_NAME, ".tmp");
+        try {
+            final ByteBuffer buffer = getMappedBuffer();
+            try (FileChannel tempChannel = FileChannel.open(tempPath, StandardOpenOption.WRITE)) {
+                final ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_LENGTH).putInt(MAGIC).putInt(VERSION);
+                header.flip();
+                while (header.hasRemaining()) {
+                    tempChannel.write(header);
+                }
+                for (PackedEntry entry : entries.values()) {
+                    final ByteBuffer record = buffer.duplicate().position(entry.recordOffset).limit(entry.recordOffset + entry.recordLength);
+                    while (record.hasRemaining()) {
+                        tempChannel.write(record);
+                    }
+                }
+                tempChannel.force(true);
+            }
+            channel.close();
+            mappedBuffer = null;
+            try {
+                Files.move(tempPath, packPath, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempPath, packPath, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tempPath);
+            if (!channel.isOpen()) {
+                // new pack file after a successful move, the old one otherwise
+                open();
+            }
+        }
+    }
+
+    private ByteBuffer getMappedBuffer() throws IOException {
+        if ((mappedBuffer == null) || (mappedBuffer.capacity() != scannedSize)) {
+            mappedBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, scannedSize);
+        }
+        return mappedBuffer;
+    }
+
+    private static boolean isPosix(Path path) {
+        return path.getFileSystem().supportedFileAttributeViews().contains("posix");
+    }
+
+    private static FileAttribute<Set<PosixFilePermission>> ownerOnlyFileAttribute() {
+        return PosixFilePermissions.asFileAttribute(EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE));
+    }
+}
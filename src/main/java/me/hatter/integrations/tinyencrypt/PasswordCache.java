@@ -1,42 +1,394 @@
 package me.hatter.integrations.tinyencrypt;
 
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded password cache with idle and absolute TTL, expired entries are evicted by one shared scheduler thread
+ * and their off-heap {@link SecretBuffer} is wiped.
+ * <p>
+ * Entries are kept in access order, so the least recently used entry is evicted in O(1) when the cache is full.
+ * The map is guarded by its own lock, passwords are copied and wiped outside of it.
+ */
 public class PasswordCache {
-    private final ConcurrentMap<String, CachedPasswordWithTime> passwordCacheMap = new ConcurrentHashMap<>();
-    private final long passwordCacheTimeMillis;
+    private static final Logger LOG = LoggerFactory.getLogger(PasswordCache.class);
+    public static final int DEFAULT_MAX_SIZE = 1000;
+    public static final long DEFAULT_IDLE_TIMEOUT_SECONDS = TimeUnit.HOURS.toSeconds(1);
+    public static final long DEFAULT_MAX_AGE_SECONDS = TimeUnit.HOURS.toSeconds(8);
+    private static final long EVICTION_INTERVAL_SECONDS = 30;
+    private static final List<PasswordCache> PASSWORD_CACHES = new CopyOnWriteArrayList<>();
+    private static final ScheduledExecutorService EVICTION_SCHEDULER = Executors.newSingleThreadScheduledExecutor(r -> {
+        final Thread thread = new Thread(r, "tinyencrypt-cache-evictor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        EVICTION_SCHEDULER.scheduleWithFixedDelay(() -> {
+            for (PasswordCache passwordCache : PASSWORD_CACHES) {
+                try {
+                    passwordCache.evictExpired();
+                } catch (Exception e) {
+                    LOG.warn("Evict password cache: " + passwordCache.name + " failed", e);
+                }
+            }
+        }, EVICTION_INTERVAL_SECONDS, EVICTION_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
 
-    public PasswordCache(long passwordCacheTimeMillis) {
-        this.passwordCacheTimeMillis = passwordCacheTimeMillis;
+    private final String name;
+    // guarded by itself, iterates from least to most recently used
+    private final LinkedHashMap<String, CachedPasswordWithTime> passwordCacheMap = new LinkedHashMap<>(16, 0.75f, true);
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder evictionCount = new LongAdder();
+    private volatile Runnable changeListener;
+
+    public PasswordCache(String name) {
+        this.name = name;
+        PASSWORD_CACHES.add(this);
+    }
+
+    /**
+     * Cached password with its wall clock times, e.g. saved to and restored from the {@link SessionBundle}
+     */
+    static class CachedPassword {
+        private final String key;
+        private final SecretBuffer password;
+        private final long createdMillis;
+        private final long lastAccessMillis;
+
+        CachedPassword(String key, SecretBuffer password, long createdMillis, long lastAccessMillis) {
+            this.key = key;
+            this.password = password;
+            this.createdMillis = createdMillis;
+            this.lastAccessMillis = lastAccessMillis;
+        }
+
+        String getKey() {
+            return key;
+        }
+
+        SecretBuffer getPassword() {
+            return password;
+        }
+
+        long getCreatedMillis() {
+            return createdMillis;
+        }
+
+        long getLastAccessMillis() {
+            return lastAccessMillis;
+        }
     }
 
     private static class CachedPasswordWithTime {
-        private String password;
-        private long timestamp;
+        private final SecretBuffer password;
+        private final long createdMillis;
+        private volatile long idleTimeoutMillis;
+        private volatile long maxAgeMillis;
+        private volatile long lastAccessMillis;
+
+        private CachedPasswordWithTime(SecretBuffer password, long idleTimeoutMillis, long maxAgeMillis) {
+            this(password, System.currentTimeMillis(), idleTimeoutMillis, maxAgeMillis);
+        }
+
+        private CachedPasswordWithTime(SecretBuffer password, long createdMillis, long idleTimeoutMillis, long maxAgeMillis) {
+            this.password = password;
+            this.createdMillis = createdMillis;
+            this.idleTimeoutMillis = idleTimeoutMillis;
+            this.maxAgeMillis = maxAgeMillis;
+            this.lastAccessMillis = createdMillis;
+        }
+
+        private boolean isExpired(long nowMillis) {
+            return ((nowMillis - lastAccessMillis) > idleTimeoutMillis) || ((nowMillis - createdMillis) > maxAgeMillis);
+        }
     }
 
     public void removePassword(TinyEncryptConfig tinyEncryptConfig, String key) {
-        passwordCacheMap.remove(key);
+        final CachedPasswordWithTime removed;
+        synchronized (passwordCacheMap) {
+            removed = passwordCacheMap.remove(key);
+        }
+        if (removed != null) {
+            removed.password.wipe();
+            notifyChange();
+        }
+    }
+
+    public void putPassword(TinyEncryptConfig tinyencryptConfig, String key, CharSequence password) {
+        putPasswordBuffer(tinyencryptConfig, key, SecretBuffer.wrap(password));
+    }
+
+    /**
+     * Store a copy of <code>password</code>, the caller still owns <code>password</code>
+     */
+    public void putPassword(TinyEncryptConfig tinyencryptConfig, String key, SecretBuffer password) {
+        final SecretBuffer passwordCopy = password.copy();
+        if (passwordCopy != null) {
+            putPasswordBuffer(tinyencryptConfig, key, passwordCopy);
+        }
     }
 
-    public void putPassword(TinyEncryptConfig tinyencryptConfig, String key, String password) {
-        final CachedPasswordWithTime cachedPasswordWithTime = new CachedPasswordWithTime();
-        cachedPasswordWithTime.password = password;
-        cachedPasswordWithTime.timestamp = System.currentTimeMillis();
-        passwordCacheMap.put(key, cachedPasswordWithTime);
+    private void putPasswordBuffer(TinyEncryptConfig tinyencryptConfig, String key, SecretBuffer password) {
+        final CachedPasswordWithTime cachedPasswordWithTime = new CachedPasswordWithTime(
+                password,
+                TimeUnit.SECONDS.toMillis(getIdleTimeoutSeconds(tinyencryptConfig)),
+                TimeUnit.SECONDS.toMillis(getMaxAgeSeconds(tinyencryptConfig))
+        );
+        final CachedPasswordWithTime replaced;
+        final List<CachedPasswordWithTime> evicted;
+        synchronized (passwordCacheMap) {
+            replaced = passwordCacheMap.put(key, cachedPasswordWithTime);
+            evicted = removeLeastRecentlyUsed(getMaxSize(tinyencryptConfig));
+        }
+        if (replaced != null) {
+            replaced.password.wipe();
+        }
+        wipeEvicted(evicted);
+        notifyChange();
     }
 
-    public String getPassword(TinyEncryptConfig tinyencryptConfig, String key) {
-        final CachedPasswordWithTime cachedPasswordWithTime = passwordCacheMap.get(key);
+    /**
+     * @return new <code>char[]</code> owned by the caller, or <code>null</code> when not cached
+     */
+    public char[] getPassword(TinyEncryptConfig tinyencryptConfig, String key) {
+        final CachedPasswordWithTime cachedPasswordWithTime;
+        synchronized (passwordCacheMap) {
+            // moves the entry to the most recently used end
+            cachedPasswordWithTime = passwordCacheMap.get(key);
+        }
         if (cachedPasswordWithTime == null) {
+            missCount.increment();
             return null;
         }
-        if ((System.currentTimeMillis() - cachedPasswordWithTime.timestamp) > passwordCacheTimeMillis) {
-            passwordCacheMap.remove(key);
+        final long nowMillis = System.currentTimeMillis();
+        if (cachedPasswordWithTime.isExpired(nowMillis)) {
+            evict(key, cachedPasswordWithTime);
+            missCount.increment();
             return null;
         }
-        cachedPasswordWithTime.timestamp = System.currentTimeMillis();
-        return cachedPasswordWithTime.password;
+        final char[] password = cachedPasswordWithTime.password.toCharArray();
+        if (password == null) {
+            // evicted concurrently
+            missCount.increment();
+            return null;
+        }
+        cachedPasswordWithTime.lastAccessMillis = nowMillis;
+        hitCount.increment();
+        return password;
+    }
+
+    /**
+     * Apply size and timeouts of a reloaded config to cached entries
+     */
+    public void reconfigure(TinyEncryptConfig tinyencryptConfig) {
+        final long idleTimeoutMillis = TimeUnit.SECONDS.toMillis(getIdleTimeoutSeconds(tinyencryptConfig));
+        final long maxAgeMillis = TimeUnit.SECONDS.toMillis(getMaxAgeSeconds(tinyencryptConfig));
+        synchronized (passwordCacheMap) {
+            for (CachedPasswordWithTime cachedPasswordWithTime : passwordCacheMap.values()) {
+                cachedPasswordWithTime.idleTimeoutMillis = idleTimeoutMillis;
+                cachedPasswordWithTime.maxAgeMillis = maxAgeMillis;
+            }
+        }
+        evictExpired();
+        final List<CachedPasswordWithTime> evicted;
+        synchronized (passwordCacheMap) {
+            evicted = removeLeastRecentlyUsed(getMaxSize(tinyencryptConfig));
+        }
+        wipeEvicted(evicted);
+    }
+
+    public void clear() {
+        final List<CachedPasswordWithTime> evicted;
+        synchronized (passwordCacheMap) {
+            evicted = new ArrayList<>(passwordCacheMap.values());
+            passwordCacheMap.clear();
+        }
+        wipeEvicted(evicted);
+    }
+
+    /**
+     * @return copies of unexpired entries owned by the caller
+     */
+    List<CachedPassword> snapshot() {
+        final long nowMillis = System.currentTimeMillis();
+        final List<Map.Entry<String, CachedPasswordWithTime>> entries;
+        synchronized (passwordCacheMap) {
+            entries = new ArrayList<>(passwordCacheMap.entrySet());
+        }
+        final List<CachedPassword> cachedPasswords = new ArrayList<>();
+        for (Map.Entry<String, CachedPasswordWithTime> entry : entries) {
+            final CachedPasswordWithTime cachedPasswordWithTime = entry.getValue();
+            if (cachedPasswordWithTime.isExpired(nowMillis)) {
+                continue;
+            }
+            final SecretBuffer passwordCopy = cachedPasswordWithTime.password.copy();
+            if (passwordCopy != null) {
+                cachedPasswords.add(new CachedPassword(entry.getKey(), passwordCopy,
+                        cachedPasswordWithTime.createdMillis, cachedPasswordWithTime.lastAccessMillis));
+            }
+        }
+        return cachedPasswords;
+    }
+
+    /**
+     * Put a copy of a saved entry back with its times, so it expires as if never dropped,
+     * an expired entry or a key cached meanwhile is skipped, the change listener is not notified
+     *
+     * @return <code>true</code> when restored
+     */
+    boolean restore(TinyEncryptConfig tinyencryptConfig, CachedPassword cachedPassword) {
+        final SecretBuffer passwordCopy = cachedPassword.getPassword().copy();
+        if (passwordCopy == null) {
+            return false;
+        }
+        final CachedPasswordWithTime cachedPasswordWithTime = new CachedPasswordWithTime(
+                passwordCopy,
+                cachedPassword.getCreatedMillis(),
+                TimeUnit.SECONDS.toMillis(getIdleTimeoutSeconds(tinyencryptConfig)),
+                TimeUnit.SECONDS.toMillis(getMaxAgeSeconds(tinyencryptConfig))
+        );
+        cachedPasswordWithTime.lastAccessMillis = cachedPassword.getLastAccessMillis();
+        boolean restored = false;
+        if (!cachedPasswordWithTime.isExpired(System.currentTimeMillis())) {
+            synchronized (passwordCacheMap) {
+                if ((passwordCacheMap.size() < getMaxSize(tinyencryptConfig)) && !passwordCacheMap.containsKey(cachedPassword.getKey())) {
+                    passwordCacheMap.put(cachedPassword.getKey(), cachedPasswordWithTime);
+                    restored = true;
+                }
+            }
+        }
+        if (!restored) {
+            passwordCopy.wipe();
+        }
+        return restored;
+    }
+
+    /**
+     * Called after an entry is put or removed, not on reads
+     */
+    void setChangeListener(Runnable changeListener) {
+        this.changeListener = changeListener;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int size() {
+        synchronized (passwordCacheMap) {
+            return passwordCacheMap.size();
+        }
+    }
+
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    public long getMissCount() {
+        return missCount.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.sum();
+    }
+
+    static List<PasswordCache> getPasswordCaches() {
+        return PASSWORD_CACHES;
+    }
+
+    void evictExpired() {
+        final long nowMillis = System.currentTimeMillis();
+        final List<CachedPasswordWithTime> evicted = new ArrayList<>();
+        synchronized (passwordCacheMap) {
+            final Iterator<CachedPasswordWithTime> iterator = passwordCacheMap.values().iterator();
+            while (iterator.hasNext()) {
+                final CachedPasswordWithTime cachedPasswordWithTime = iterator.next();
+                if (cachedPasswordWithTime.isExpired(nowMillis)) {
+                    iterator.remove();
+                    evicted.add(cachedPasswordWithTime);
+                }
+            }
+        }
+        wipeEvicted(evicted);
+    }
+
+    /**
+     * Remove least recently used entries from the head of the access ordered map, called with the map lock held
+     */
+    private List<CachedPasswordWithTime> removeLeastRecentlyUsed(int maxSize) {
+        final List<CachedPasswordWithTime> evicted = new ArrayList<>();
+        final Iterator<CachedPasswordWithTime> iterator = passwordCacheMap.values().iterator();
+        while ((passwordCacheMap.size() > maxSize) && iterator.hasNext()) {
+            evicted.add(iterator.next());
+            iterator.remove();
+        }
+        return evicted;
+    }
+
+    private void wipeEvicted(List<CachedPasswordWithTime> evicted) {
+        if (evicted.isEmpty()) {
+            return;
+        }
+        for (CachedPasswordWithTime cachedPasswordWithTime : evicted) {
+            cachedPasswordWithTime.password.wipe();
+        }
+        evictionCount.add(evicted.size());
+        notifyChange();
+    }
+
+    private void evict(String key, CachedPasswordWithTime cachedPasswordWithTime) {
+        final boolean removed;
+        synchronized (passwordCacheMap) {
+            removed = passwordCacheMap.remove(key, cachedPasswordWithTime);
+        }
+        if (removed) {
+            cachedPasswordWithTime.password.wipe();
+            evictionCount.increment();
+            notifyChange();
+        }
+    }
+
+    private void notifyChange() {
+        final Runnable listener = changeListener;
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    private static int getMaxSize(TinyEncryptConfig tinyencryptConfig) {
+        if ((tinyencryptConfig != null) && (tinyencryptConfig.getPasswordCacheMaxSize() != null)
+                && (tinyencryptConfig.getPasswordCacheMaxSize() > 0)) {
+            return tinyencryptConfig.getPasswordCacheMaxSize();
+        }
+        return DEFAULT_MAX_SIZE;
+    }
+
+    private static long getIdleTimeoutSeconds(TinyEncryptConfig tinyencryptConfig) {
+        if ((tinyencryptConfig != null) && (tinyencryptConfig.getPasswordCacheIdleTimeoutSeconds() != null)
+                && (tinyencryptConfig.getPasswordCacheIdleTimeoutSeconds() > 0)) {
+            return tinyencryptConfig.getPasswordCacheIdleTimeoutSeconds();
+        }
+        return DEFAULT_IDLE_TIMEOUT_SECONDS;
+    }
+
+    private static long getMaxAgeSeconds(TinyEncryptConfig tinyencryptConfig) {
+        if ((tinyencryptConfig != null) && (tinyencryptConfig.getPasswordCacheMaxAgeSeconds() != null)
+                && (tinyencryptConfig.getPasswordCacheMaxAgeSeconds() > 0)) {
+            return tinyencryptConfig.getPasswordCacheMaxAgeSeconds();
+        }
+        return DEFAULT_MAX_AGE_SECONDS;
     }
 }
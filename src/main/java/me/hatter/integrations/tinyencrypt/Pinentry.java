@@ -0,0 +1,133 @@
+package me.hatter.integrations.tinyencrypt;
+
+import org.cryptomator.integrations.keychain.KeychainAccessException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Asks for a password with a <code>pinentry</code> program over the Assuan protocol, as GnuPG does.
+ */
+public class Pinentry {
+    public static final String DEFAULT_PINENTRY_COMMAND = "pinentry";
+
+    /**
+     * @return entered password owned by the caller
+     */
+    public static SecretBuffer getPin(TinyEncryptConfig tinyencryptConfig, String title, String description) throws KeychainAccessException {
+        final String pinentryCommand = ((tinyencryptConfig != null) && (tinyencryptConfig.getPinentryCommand() != null))
+                ? tinyencryptConfig.getPinentryCommand() : DEFAULT_PINENTRY_COMMAND;
+        final Process process;
+        try {
+            process = new ProcessBuilder(pinentryCommand).redirectError(ProcessBuilder.Redirect.DISCARD).start();
+        } catch (IOException e) {
+            throw new KeychainAccessException("Start pinentry: " + pinentryCommand + " failed", e);
+        }
+        try (OutputStream pinentryIn = process.getOutputStream(); InputStream pinentryOut = process.getInputStream()) {
+            expectOk(pinentryOut, "greeting");
+            command(pinentryIn, pinentryOut, "SETTITLE " + escape(title));
+            command(pinentryIn, pinentryOut, "SETDESC " + escape(description));
+            command(pinentryIn, pinentryOut, "SETPROMPT Password:");
+            pinentryIn.write("GETPIN\n".getBytes(StandardCharsets.UTF_8));
+            pinentryIn.flush();
+            SecretBuffer pin = null;
+            while (true) {
+                final byte[] line = readLine(pinentryOut);
+                try {
+                    if (startsWith(line, "D ")) {
+                        pin = unescape(line, 2);
+                    } else if (startsWith(line, "OK")) {
+                        break;
+                    } else if (startsWith(line, "ERR")) {
+                        throw new KeychainAccessException("pinentry failed: " + new String(line, StandardCharsets.UTF_8));
+                    }
+                } finally {
+                    Arrays.fill(line, (byte) 0);
+                }
+            }
+            pinentryIn.write("BYE\n".getBytes(StandardCharsets.UTF_8));
+            pinentryIn.flush();
+            if (pin == null) {
+                throw new KeychainAccessException("pinentry returned empty password");
+            }
+            return pin;
+        } catch (IOException e) {
+            throw new KeychainAccessException("Run pinentry: " + pinentryCommand + " failed", e);
+        } finally {
+            process.destroy();
+        }
+    }
+
+    private static void command(OutputStream pinentryIn, InputStream pinentryOut, String command) throws IOException, KeychainAccessException {
+        pinentryIn.write((command + "\n").getBytes(StandardCharsets.UTF_8));
+        pinentryIn.flush();
+        expectOk(pinentryOut, command);
+    }
+
+    private static void expectOk(InputStream pinentryOut, String command) throws IOException, KeychainAccessException {
+        final byte[] line = readLine(pinentryOut);
+        if (!startsWith(line, "OK")) {
+            throw new KeychainAccessException("pinentry " + command + " failed: " + new String(line, StandardCharsets.UTF_8));
+        }
+    }
+
+    private static byte[] readLine(InputStream pinentryOut) throws IOException {
+        final ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = pinentryOut.read()) != '\n') {
+            if (b == -1) {
+                throw new IOException("pinentry exited");
+            }
+            line.write(b);
+        }
+        return line.toByteArray();
+    }
+
+    private static boolean startsWith(byte[] line, String prefix) {
+        if (line.length < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (line[i] != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String escape(String text) {
+        return text.replace("%", "%25").replace("\r", "%0D").replace("\n", "%0A");
+    }
+
+    private static SecretBuffer unescape(byte[] line, int offset) throws KeychainAccessException {
+        final ByteBuffer bytes = ByteBuffer.allocate(line.length - offset);
+        for (int i = offset; i < line.length; i++) {
+            if ((line[i] == '%') && (i + 2 < line.length)) {
+                bytes.put((byte) ((Character.digit(line[i + 1], 16) << 4) + Character.digit(line[i + 2], 16)));
+                i += 2;
+            } else {
+                bytes.put(line[i]);
+            }
+        }
+        bytes.flip();
+        CharBuffer chars = null;
+        try {
+            chars = StandardCharsets.UTF_8.newDecoder().decode(bytes);
+            return SecretBuffer.wrap(chars.array(), chars.arrayOffset(), chars.remaining());
+        } catch (CharacterCodingException e) {
+            throw new KeychainAccessException("Decode pinentry password failed", e);
+        } finally {
+            Arrays.fill(bytes.array(), (byte) 0);
+            if (chars != null) {
+                Arrays.fill(chars.array(), '\0');
+            }
+        }
+    }
+}
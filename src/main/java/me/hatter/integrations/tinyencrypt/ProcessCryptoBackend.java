@@ -0,0 +1,669 @@
+package me.hatter.integrations.tinyencrypt;
+
+import org.apache.commons.lang3.BooleanUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.cryptomator.integrations.keychain.KeychainAccessException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the tinyencrypt command, one process per call or requests to a long-lived tinyencrypt worker.
+ */
+public class ProcessCryptoBackend implements CryptoBackend {
+    private static final Logger LOG = LoggerFactory.getLogger(ProcessCryptoBackend.class);
+
+    private static final String PASSWORD_ARGUMENT = "--password";
+    private static final String PASSWORD_ENV_ARGUMENT = "--password-env";
+    /**
+     * Environment variable of a tinyencrypt process which holds the cached PBKDF password, named by <code>--password-env</code>
+     */
+    static final String PASSWORD_ENV_NAME = "TINYENCRYPT_PBKDF_PASSWORD";
+    /**
+     * With <code>keyIds</code> or <code>profiles</code> configured, encrypted keys are written as
+     * <code>tinyencrypt-key-id:&lt;URL encoded key ID&gt;:&lt;tinyencrypt encrypted value&gt;</code>,
+     * so decrypt picks the tinyencrypt command of the key without trial decryption
+     */
+    static final String KEY_ID_HEADER_PREFIX = "tinyencrypt-key-id:";
+    /**
+     * PBKDF password cache key of the {@link SessionBundle}, '~' never appears in vault IDs
+     */
+    static final String SESSION_BUNDLE_KEY = "~session-bundle";
+    /**
+     * Holds <code>path|mtime|size</code> of the tinyencrypt binary which passed the last version probe
+     */
+    private static final File READY_PROBE_CACHE_FILE = new File(System.getProperty("user.home"), ".config/cryptomator/tinyencrypt_ready.cache");
+    private static final AtomicBoolean ARGV_PASSWORD_WARNED = new AtomicBoolean(false);
+    /**
+     * tinyencrypt commands which rejected <code>--password-env</code>, e.g. older releases
+     */
+    private static final Set<String> PASSWORD_ENV_UNSUPPORTED_COMMANDS = ConcurrentHashMap.newKeySet();
+
+    private final PasswordCache pbkdfPasswordCache = new PasswordCache("pbkdf");
+    private final CircuitBreaker circuitBreaker = new CircuitBreaker();
+
+    @Override
+    public boolean checkReady(TinyEncryptConfig tinyencryptConfig) {
+        final String probeKey = getReadyProbeKey(Utils.getTinyencryptCommand(tinyencryptConfig));
+        if ((probeKey != null) && probeKey.equals(readReadyProbeCache())) {
+            LOG.info("tinyencrypt ready, probed before: " + probeKey);
+            return true;
+        }
+        try {
+            final UtilsCommandResult versionResult = runTinyencrypt(tinyencryptConfig, null, "version");
+            if (versionResult.getExitValue() == 0) {
+                if (probeKey != null) {
+                    writeReadyProbeCache(probeKey);
+                }
+                return true;
+            }
+            LOG.warn("Check tinyencrypt not success: " + versionResult);
+            return false;
+        } catch (KeychainAccessException e) {
+            LOG.warn("Check tinyencrypt failed", e);
+            return false;
+        }
+    }
+
+    /**
+     * @return <code>path|mtime|size</code> of the tinyencrypt binary, <code>null</code> when not found,
+     * a replaced or upgraded binary gets a new key and is probed again
+     */
+    private static String getReadyProbeKey(String tinyencryptCommand) {
+        File binary = null;
+        if (tinyencryptCommand.indexOf(File.separatorChar) >= 0) {
+            binary = new File(tinyencryptCommand);
+        } else {
+            final String path = System.getenv("PATH");
+            if (path != null) {
+                for (String dir : path.split(File.pathSeparator)) {
+                    final File candidate = new File(dir, tinyencryptCommand);
+                    if (candidate.isFile() && candidate.canExecute()) {
+                        binary = candidate;
+                        break;
+                    }
+                }
+            }
+        }
+        if ((binary == null) || !binary.isFile()) {
+            return null;
+        }
+        return binary.getAbsolutePath() + "|" + binary.lastModified() + "|" + binary.length();
+    }
+
+    private static String readReadyProbeCache() {
+        if (!READY_PROBE_CACHE_FILE.isFile()) {
+            return null;
+        }
+        try {
+            return Utils.readFile(READY_PROBE_CACHE_FILE).trim();
+        } catch (KeychainAccessException e) {
+            LOG.warn("Read tinyencrypt ready probe cache failed", e);
+            return null;
+        }
+    }
+
+    private static void writeReadyProbeCache(String probeKey) {
+        try {
+            READY_PROBE_CACHE_FILE.getParentFile().mkdirs();
+            Utils.writeFile(READY_PROBE_CACHE_FILE, probeKey, false);
+        } catch (KeychainAccessException e) {
+            LOG.warn("Write tinyencrypt ready probe cache failed", e);
+        }
+    }
+
+    @Override
+    public void forget(TinyEncryptConfig tinyencryptConfig, String vault) {
+        pbkdfPasswordCache.removePassword(tinyencryptConfig, vault);
+    }
+
+    @Override
+    public void forgetAll() {
+        pbkdfPasswordCache.clear();
+    }
+
+    PasswordCache getPbkdfPasswordCache() {
+        return pbkdfPasswordCache;
+    }
+
+    /**
+     * A cached PBKDF password is passed to tinyencrypt's own worker over its stdin, and to a tinyencrypt process
+     * in its environment, see {@link #executeTinyencrypt(TinyEncryptConfig, List, byte[])}. A tinyencrypt without
+     * <code>--password-env</code> gets it in argv, readable by other local users from the process list, only when
+     * <code>allowPbkdfPasswordInArgv</code> is on, otherwise tinyencrypt asks it again.
+     */
+    boolean canPassPbkdfPassword(TinyEncryptConfig tinyencryptConfig) {
+        return canPassPbkdfPassword(tinyencryptConfig, Collections.singletonList(Utils.getTinyencryptCommand(tinyencryptConfig)));
+    }
+
+    /**
+     * @param tinyencryptCommands commands which run the arguments, more than one are raced with one process each
+     */
+    private static boolean canPassPbkdfPassword(TinyEncryptConfig tinyencryptConfig, List<String> tinyencryptCommands) {
+        if (isPbkdfPasswordInArgvAllowed(tinyencryptConfig)) {
+            return true;
+        }
+        for (String tinyencryptCommand : tinyencryptCommands) {
+            if (PASSWORD_ENV_UNSUPPORTED_COMMANDS.contains(tinyencryptCommand)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isPbkdfPasswordInArgvAllowed(TinyEncryptConfig tinyencryptConfig) {
+        return (tinyencryptConfig != null) && BooleanUtils.isTrue(tinyencryptConfig.getAllowPbkdfPasswordInArgv());
+    }
+
+    @Override
+    public SecretBuffer decrypt(TinyEncryptConfig tinyencryptConfig, String vault, String input) throws KeychainAccessException {
+        circuitBreaker.checkVault(tinyencryptConfig, vault);
+        final List<String> tinyencryptCommands = getDecryptCommands(tinyencryptConfig, input);
+        final List<String> arguments = new ArrayList<>();
+        final boolean inputNewPassword = buildDecryptArguments(tinyencryptConfig, vault,
+                canPassPbkdfPassword(tinyencryptConfig, tinyencryptCommands), arguments);
+        final byte[] inputBytes = removeKeyIdHeader(input).getBytes(StandardCharsets.UTF_8);
+
+        circuitBreaker.checkClosed(tinyencryptConfig);
+        final UtilsCommandResult decryptResult;
+        try {
+            if (tinyencryptCommands.size() > 1) {
+                decryptResult = raceTinyencrypt(tinyencryptConfig, tinyencryptCommands, inputBytes, arguments);
+            } else {
+                decryptResult = runTinyencrypt(
+                        tinyencryptConfig,
+                        tinyencryptCommands.get(0),
+                        inputBytes,
+                        arguments.toArray(new String[0])
+                );
+            }
+        } catch (KeychainAccessException | RuntimeException e) {
+            circuitBreaker.recordFailure(tinyencryptConfig, vault, CircuitBreaker.classify(e), String.valueOf(e.getMessage()));
+            throw e;
+        }
+        return parseDecryptResult(tinyencryptConfig, vault, inputNewPassword, decryptResult);
+    }
+
+    /**
+     * Run the same arguments with every command at once, the first success wins and the other processes are killed
+     */
+    private UtilsCommandResult raceTinyencrypt(TinyEncryptConfig tinyencryptConfig, List<String> tinyencryptCommands,
+                                               byte[] input, List<String> arguments) throws KeychainAccessException {
+        LOG.info("Race tinyencrypt commands: " + tinyencryptCommands);
+        final CompletableFuture<UtilsCommandResult> winnerFuture = new CompletableFuture<>();
+        final AtomicInteger remainingCandidates = new AtomicInteger(tinyencryptCommands.size());
+        final List<CompletableFuture<UtilsCommandResult>> candidateFutures = new ArrayList<>();
+        for (String tinyencryptCommand : tinyencryptCommands) {
+            final List<String> commands = new ArrayList<>();
+            commands.add(tinyencryptCommand);
+            commands.addAll(arguments);
+            final CompletableFuture<UtilsCommandResult> candidateFuture = runTinyencryptAsync(tinyencryptConfig, commands, input);
+            candidateFutures.add(candidateFuture);
+            candidateFuture.whenComplete((result, throwable) -> {
+                if ((throwable == null) && (result.getExitValue() == 0) && winnerFuture.complete(result)) {
+                    return;
+                }
+                if (result != null) {
+                    Arrays.fill(result.getStdout(), (byte) 0);
+                }
+                if (remainingCandidates.decrementAndGet() == 0) {
+                    winnerFuture.completeExceptionally(new KeychainAccessException("tinyencrypt decrypt failed with all commands: "
+                            + tinyencryptCommands + ", last: " + ((throwable != null) ? throwable : result)));
+                }
+            });
+        }
+        try {
+            return winnerFuture.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof KeychainAccessException) {
+                throw (KeychainAccessException) e.getCause();
+            }
+            throw new KeychainAccessException("Race tinyencrypt commands failed", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new KeychainAccessException("Race tinyencrypt commands interrupted", e);
+        } finally {
+            for (CompletableFuture<UtilsCommandResult> candidateFuture : candidateFutures) {
+                // a cancelled future kills its process, see ProcessExecutor
+                candidateFuture.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * @return <code>keyId</code> with <code>tinyencryptCommand</code> first, then <code>keyIds</code> and <code>profiles</code>
+     */
+    static List<TinyEncryptProfile> getProfiles(TinyEncryptConfig tinyencryptConfig) {
+        final String defaultCommand = Utils.getTinyencryptCommand(tinyencryptConfig);
+        final List<TinyEncryptProfile> profiles = new ArrayList<>();
+        profiles.add(new TinyEncryptProfile(tinyencryptConfig.getKeyId(), defaultCommand));
+        if (tinyencryptConfig.getKeyIds() != null) {
+            for (String keyId : tinyencryptConfig.getKeyIds()) {
+                profiles.add(new TinyEncryptProfile(keyId, defaultCommand));
+            }
+        }
+        if (tinyencryptConfig.getProfiles() != null) {
+            for (TinyEncryptProfile profile : tinyencryptConfig.getProfiles()) {
+                profiles.add(new TinyEncryptProfile(profile.getKeyId(),
+                        StringUtils.isNoneEmpty(profile.getTinyencryptCommand()) ? profile.getTinyencryptCommand() : defaultCommand));
+            }
+        }
+        return profiles;
+    }
+
+    private static boolean isMultiKey(TinyEncryptConfig tinyencryptConfig) {
+        return ((tinyencryptConfig.getKeyIds() != null) && !tinyencryptConfig.getKeyIds().isEmpty())
+                || ((tinyencryptConfig.getProfiles() != null) && !tinyencryptConfig.getProfiles().isEmpty());
+    }
+
+    /**
+     * @return the command of the key ID in the header, or all distinct commands when the key ID is unknown
+     */
+    private static List<String> getDecryptCommands(TinyEncryptConfig tinyencryptConfig, String encryptedKey) {
+        if (!isMultiKey(tinyencryptConfig)) {
+            return Collections.singletonList(Utils.getTinyencryptCommand(tinyencryptConfig));
+        }
+        final String keyId = getKeyIdHeader(encryptedKey);
+        final List<TinyEncryptProfile> profiles = getProfiles(tinyencryptConfig);
+        if (keyId != null) {
+            for (TinyEncryptProfile profile : profiles) {
+                if (keyId.equals(profile.getKeyId())) {
+                    return Collections.singletonList(profile.getTinyencryptCommand());
+                }
+            }
+            LOG.warn("Key ID: " + keyId + " not configured, try all tinyencrypt commands");
+        }
+        final Set<String> tinyencryptCommands = new LinkedHashSet<>();
+        for (TinyEncryptProfile profile : profiles) {
+            tinyencryptCommands.add(profile.getTinyencryptCommand());
+        }
+        return new ArrayList<>(tinyencryptCommands);
+    }
+
+    /**
+     * @return key ID in the header, <code>null</code> when written without header
+     */
+    static String getKeyIdHeader(String encryptedKey) {
+        if (!encryptedKey.startsWith(KEY_ID_HEADER_PREFIX)) {
+            return null;
+        }
+        final int keyIdEnd = encryptedKey.indexOf(':', KEY_ID_HEADER_PREFIX.length());
+        if (keyIdEnd < 0) {
+            return null;
+        }
+        return URLDecoder.decode(encryptedKey.substring(KEY_ID_HEADER_PREFIX.length(), keyIdEnd), StandardCharsets.UTF_8);
+    }
+
+    private static String removeKeyIdHeader(String encryptedKey) {
+        if (getKeyIdHeader(encryptedKey) == null) {
+            return encryptedKey;
+        }
+        return encryptedKey.substring(encryptedKey.indexOf(':', KEY_ID_HEADER_PREFIX.length()) + 1);
+    }
+
+    /**
+     * Still one decrypt per vault, tinyencrypt has no multi-value decrypt. In worker mode the requests are pipelined
+     * into one worker process, a native <code>tinyencrypt worker</code> may keep the hardware key unlocked across them.
+     * Otherwise, and with {@link TinyEncryptWorkerStandIn}, every vault runs its own tinyencrypt process and asks
+     * its own PIN or touch, unless the token or its agent caches the unlock.
+     */
+    @Override
+    public Map<String, SecretBuffer> decryptAll(TinyEncryptConfig tinyencryptConfig, Map<String, String> encryptedKeys) {
+        final Map<String, SecretBuffer> vaultPasswords = new LinkedHashMap<>();
+        final Map<String, String> remainEncryptedKeys = new LinkedHashMap<>(encryptedKeys);
+        try {
+            // each decrypt below checks the circuit, in half-open only one runs as trial
+            circuitBreaker.checkBackoffOver(tinyencryptConfig);
+        } catch (KeychainAccessException e) {
+            LOG.warn("Skip decrypt of vaults: " + encryptedKeys.keySet(), e);
+            return vaultPasswords;
+        }
+        if (BooleanUtils.isTrue(tinyencryptConfig.getEnableWorkerMode()) && (encryptedKeys.size() > 1)) {
+            final TinyEncryptWorker worker = TinyEncryptWorker.getWorker(tinyencryptConfig, Utils.getTinyencryptCommand(tinyencryptConfig));
+            final Map<String, CompletableFuture<UtilsCommandResult>> decryptFutures = new LinkedHashMap<>();
+            final Map<String, Boolean> inputNewPasswords = new HashMap<>();
+            final String tinyencryptCommand = Utils.getTinyencryptCommand(tinyencryptConfig);
+            try {
+                for (Map.Entry<String, String> encryptedKey : encryptedKeys.entrySet()) {
+                    if (!Collections.singletonList(tinyencryptCommand).equals(getDecryptCommands(tinyencryptConfig, encryptedKey.getValue()))) {
+                        // key of another profile, decrypted below
+                        continue;
+                    }
+                    try {
+                        circuitBreaker.checkVault(tinyencryptConfig, encryptedKey.getKey());
+                    } catch (KeychainAccessException e) {
+                        // failed recently, decrypt below fails fast and logs it
+                        continue;
+                    }
+                    final List<String> arguments = new ArrayList<>();
+                    inputNewPasswords.put(encryptedKey.getKey(), buildDecryptArguments(tinyencryptConfig, encryptedKey.getKey(),
+                            canPassPbkdfPassword(tinyencryptConfig, Collections.singletonList(tinyencryptCommand)), arguments));
+                    final CompletableFuture<UtilsCommandResult> decryptFuture = worker.submit(
+                            removeKeyIdHeader(encryptedKey.getValue()).getBytes(StandardCharsets.UTF_8),
+                            arguments.toArray(new String[0])
+                    );
+                    if (decryptFuture == null) {
+                        // worker mode not supported
+                        break;
+                    }
+                    decryptFutures.put(encryptedKey.getKey(), decryptFuture);
+                }
+            } catch (Exception e) {
+                LOG.warn("Submit decrypt to tinyencrypt worker failed", e);
+            }
+            final long timeoutMillis = ProcessExecutor.getTimeoutMillis(tinyencryptConfig);
+            for (Map.Entry<String, CompletableFuture<UtilsCommandResult>> decryptFuture : decryptFutures.entrySet()) {
+                final String vault = decryptFuture.getKey();
+                try {
+                    final UtilsCommandResult decryptResult = decryptFuture.getValue().get(timeoutMillis, TimeUnit.MILLISECONDS);
+                    remainEncryptedKeys.remove(vault);
+                    vaultPasswords.put(vault, parseDecryptResult(tinyencryptConfig, vault, inputNewPasswords.get(vault), decryptResult));
+                } catch (ExecutionException e) {
+                    // worker crashed, the vault is decrypted again one process per call
+                    LOG.warn("Decrypt vault: " + vault + " in tinyencrypt worker failed", e.getCause());
+                } catch (Exception e) {
+                    remainEncryptedKeys.remove(vault);
+                    circuitBreaker.recordFailure(tinyencryptConfig, vault, CircuitBreaker.classify(e), String.valueOf(e.getMessage()));
+                    LOG.warn("Decrypt vault: " + vault + " in tinyencrypt worker failed", e);
+                }
+            }
+        }
+        for (Map.Entry<String, String> encryptedKey : remainEncryptedKeys.entrySet()) {
+            try {
+                vaultPasswords.put(encryptedKey.getKey(), decrypt(tinyencryptConfig, encryptedKey.getKey(), encryptedKey.getValue()));
+            } catch (KeychainAccessException e) {
+                LOG.warn("Decrypt vault: " + encryptedKey.getKey() + " failed", e);
+            }
+        }
+        return vaultPasswords;
+    }
+
+    /**
+     * @param passCachedPassword <code>false</code> asks the PBKDF password again instead of passing the cached one
+     * @return <code>true</code> when the PBKDF password is asked and returned by tinyencrypt
+     */
+    private boolean buildDecryptArguments(TinyEncryptConfig tinyencryptConfig, String vault, boolean passCachedPassword, List<String> arguments) {
+        arguments.add("simple-decrypt");
+        arguments.add("--value-stdin");
+        arguments.add("--pin");
+        arguments.add("#INPUT#");
+
+        final char[] cachedPassword = passCachedPassword ? pbkdfPasswordCache.getPassword(tinyencryptConfig, vault) : null;
+        if ((cachedPassword != null) && (cachedPassword.length > 0)) {
+            arguments.add(PASSWORD_ARGUMENT);
+            arguments.add(new String(cachedPassword));
+            Arrays.fill(cachedPassword, '\0');
+            return false;
+        }
+        arguments.add("--outputs-password");
+        return true;
+    }
+
+    private SecretBuffer parseDecryptResult(TinyEncryptConfig tinyencryptConfig, String vault, boolean inputNewPassword, UtilsCommandResult decryptResult) throws KeychainAccessException {
+        circuitBreaker.recordResult(tinyencryptConfig, vault, decryptResult);
+        if (decryptResult.getExitValue() != 0) {
+            throw new KeychainAccessException("tinyencrypt decrypt failed: " + decryptResult);
+        }
+        final TinyEncryptResult result = parseResult("decrypt", decryptResult);
+        storePbkdfPassword(tinyencryptConfig, vault, inputNewPassword, result);
+        if (result.getResult() == null) {
+            throw new KeychainAccessException("tinyencrypt decrypt result is empty");
+        }
+        return result.getResult();
+    }
+
+    @Override
+    public String encrypt(TinyEncryptConfig tinyencryptConfig, String vault, SecretBuffer input, String name) throws KeychainAccessException {
+        List<String> arguments = new ArrayList<>();
+        arguments.add("simple-encrypt");
+        arguments.add("--key-filter");
+        arguments.add(tinyencryptConfig.getKeyId());
+        arguments.add("--value-stdin");
+
+        boolean inputNewPassword = false;
+        if (BooleanUtils.isTrue(tinyencryptConfig.getEnablePbkdfEncryptionPassword())) {
+            arguments.add("--with-pbkdf-encryption");
+            final char[] cachedPassword = canPassPbkdfPassword(tinyencryptConfig) ? pbkdfPasswordCache.getPassword(tinyencryptConfig, vault) : null;
+            if ((cachedPassword != null) && (cachedPassword.length > 0)) {
+                arguments.add(PASSWORD_ARGUMENT);
+                arguments.add(new String(cachedPassword));
+                Arrays.fill(cachedPassword, '\0');
+            } else {
+                inputNewPassword = true;
+                arguments.add("--outputs-password");
+            }
+        }
+
+        circuitBreaker.checkClosed(tinyencryptConfig);
+        final byte[] inputBytes = input.toUtf8Bytes();
+        final UtilsCommandResult encryptResult;
+        try {
+            encryptResult = runTinyencrypt(
+                    tinyencryptConfig,
+                    inputBytes,
+                    arguments.toArray(new String[0])
+            );
+        } catch (KeychainAccessException | RuntimeException e) {
+            circuitBreaker.recordFailure(tinyencryptConfig, null, CircuitBreaker.classify(e), String.valueOf(e.getMessage()));
+            throw e;
+        } finally {
+            Arrays.fill(inputBytes, (byte) 0);
+        }
+        // a failure of encrypt only opens the circuit, it is not cached for the vault
+        circuitBreaker.recordResult(tinyencryptConfig, null, encryptResult);
+        if (encryptResult.getExitValue() != 0) {
+            throw new KeychainAccessException("tinyencrypt encrypt failed: " + encryptResult);
+        }
+        final TinyEncryptResult result = parseResult("encrypt", encryptResult);
+        storePbkdfPassword(tinyencryptConfig, vault, inputNewPassword, result);
+        if (result.getResult() == null) {
+            throw new KeychainAccessException("tinyencrypt encrypt result is empty");
+        }
+        // encrypted result is not a secret
+        return addKeyIdHeader(tinyencryptConfig, new String(Utils.toCharArray(result.getResult())));
+    }
+
+    /**
+     * Encrypt like the key of a vault, with PBKDF encryption when enabled, e.g. the {@link SessionBundle}
+     *
+     * @param input ASCII bytes
+     * @return encrypted value, not a secret
+     */
+    String encryptBundle(TinyEncryptConfig tinyencryptConfig, byte[] input) throws KeychainAccessException {
+        final char[] inputChars = new char[input.length];
+        for (int i = 0; i < input.length; i++) {
+            inputChars[i] = (char) (input[i] & 0xFF);
+        }
+        try (SecretBuffer inputBuffer = SecretBuffer.wrap(inputChars, 0, inputChars.length)) {
+            return encrypt(tinyencryptConfig, SESSION_BUNDLE_KEY, inputBuffer, "Session bundle");
+        } finally {
+            Arrays.fill(inputChars, '\0');
+        }
+    }
+
+    /**
+     * Decrypt a value of {@link #encryptBundle(TinyEncryptConfig, byte[])}, its PBKDF password is asked once and cached
+     *
+     * @return decrypted value owned by the caller
+     */
+    SecretBuffer decryptBundle(TinyEncryptConfig tinyencryptConfig, String input) throws KeychainAccessException {
+        return decrypt(tinyencryptConfig, SESSION_BUNDLE_KEY, input);
+    }
+
+    private static String addKeyIdHeader(TinyEncryptConfig tinyencryptConfig, String encryptedKey) {
+        if (isMultiKey(tinyencryptConfig)) {
+            return KEY_ID_HEADER_PREFIX + URLEncoder.encode(tinyencryptConfig.getKeyId(), StandardCharsets.UTF_8) + ":" + encryptedKey;
+        }
+        return encryptedKey;
+    }
+
+    private TinyEncryptResult parseResult(String operation, UtilsCommandResult commandResult) throws KeychainAccessException {
+        try {
+            return TinyEncryptResultParser.parse(commandResult.getStdout());
+        } catch (IOException | RuntimeException e) {
+            // do not log stdout, it may hold secrets
+            throw new KeychainAccessException("Parse tinyencrypt " + operation + " result failed", e);
+        } finally {
+            Arrays.fill(commandResult.getStdout(), (byte) 0);
+        }
+    }
+
+    private void storePbkdfPassword(TinyEncryptConfig tinyencryptConfig, String vault, boolean inputNewPassword, TinyEncryptResult result) {
+        final SecretBuffer pbkdfPassword = result.getPassword();
+        if (pbkdfPassword == null) {
+            return;
+        }
+        if (inputNewPassword && (pbkdfPassword.length() > 0)) {
+            LOG.info("Store PBKDF password to cache");
+            pbkdfPasswordCache.putPassword(tinyencryptConfig, vault, pbkdfPassword);
+        }
+        pbkdfPassword.wipe();
+    }
+
+    private UtilsCommandResult runTinyencrypt(TinyEncryptConfig tinyencryptConfig, byte[] input, String... arguments) throws KeychainAccessException {
+        return runTinyencrypt(tinyencryptConfig, Utils.getTinyencryptCommand(tinyencryptConfig), input, arguments);
+    }
+
+    private UtilsCommandResult runTinyencrypt(TinyEncryptConfig tinyencryptConfig, String tinyencryptCmd, byte[] input, String... arguments) throws KeychainAccessException {
+        final List<String> commands = new ArrayList<>();
+        commands.add(tinyencryptCmd);
+        if ((arguments == null) || (arguments.length == 0)) {
+            throw new KeychainAccessException("tinyencrypt not arguments");
+        }
+        commands.addAll(Arrays.asList(arguments));
+        if ((tinyencryptConfig != null) && BooleanUtils.isTrue(tinyencryptConfig.getEnableWorkerMode())) {
+            final UtilsCommandResult workerResult = runTinyencryptWorker(tinyencryptConfig, tinyencryptCmd, input, arguments);
+            if (workerResult != null) {
+                return workerResult;
+            }
+        }
+        final int passwordIndex = commands.indexOf(PASSWORD_ARGUMENT);
+        final List<String> maskedCommands = new ArrayList<>(commands);
+        if ((passwordIndex >= 0) && (passwordIndex + 1 < maskedCommands.size())) {
+            maskedCommands.set(passwordIndex + 1, "******");
+        }
+        try {
+            return runTinyencryptAsync(tinyencryptConfig, commands, input).get();
+        } catch (ExecutionException e) {
+            throw new KeychainAccessException("Run tinyencrypt command failed: " + maskedCommands, e.getCause());
+        } catch (Exception e) {
+            throw new KeychainAccessException("Run tinyencrypt command failed: " + maskedCommands, e);
+        }
+    }
+
+    private CompletableFuture<UtilsCommandResult> runTinyencryptAsync(TinyEncryptConfig tinyencryptConfig, List<String> commands, byte[] input) {
+        return executeTinyencrypt(tinyencryptConfig, commands, input);
+    }
+
+    /**
+     * Run one tinyencrypt process. A PBKDF password given as <code>--password</code> is moved out of argv into the
+     * environment of the process, named by <code>--password-env</code>. A tinyencrypt which rejects
+     * <code>--password-env</code> is remembered and run again, with the password in argv when
+     * <code>allowPbkdfPasswordInArgv</code> is on, otherwise without it, so tinyencrypt asks it.
+     *
+     * @param tinyencryptConfig <code>null</code> for defaults, e.g. in {@link TinyEncryptWorkerStandIn}
+     */
+    static CompletableFuture<UtilsCommandResult> executeTinyencrypt(TinyEncryptConfig tinyencryptConfig, List<String> commands, byte[] input) {
+        final Map<String, String> environment = new HashMap<>();
+        final CompletableFuture<UtilsCommandResult> processFuture = ProcessExecutor.execute(
+                toProcessCommands(tinyencryptConfig, commands, environment),
+                input,
+                IoUtils.getMaxOutputBytes(tinyencryptConfig),
+                ProcessExecutor.getTimeoutMillis(tinyencryptConfig),
+                environment
+        );
+        if (environment.isEmpty()) {
+            return processFuture;
+        }
+        final CompletableFuture<UtilsCommandResult> resultFuture = new CompletableFuture<>();
+        // a cancelled future kills its process, see ProcessExecutor
+        resultFuture.whenComplete((result, throwable) -> processFuture.cancel(true));
+        processFuture.whenComplete((result, throwable) -> {
+            if ((throwable != null) || !isPasswordEnvRejected(result)) {
+                complete(resultFuture, result, throwable);
+                return;
+            }
+            LOG.warn("tinyencrypt: " + commands.get(0) + " does not support " + PASSWORD_ENV_ARGUMENT + ", run it again");
+            PASSWORD_ENV_UNSUPPORTED_COMMANDS.add(commands.get(0));
+            final CompletableFuture<UtilsCommandResult> retryFuture = executeTinyencrypt(tinyencryptConfig, commands, input);
+            resultFuture.whenComplete((retryResult, retryThrowable) -> retryFuture.cancel(true));
+            retryFuture.whenComplete((retryResult, retryThrowable) -> complete(resultFuture, retryResult, retryThrowable));
+        });
+        return resultFuture;
+    }
+
+    /**
+     * @param environment gets the environment of the process
+     * @return commands of the process, without the PBKDF password unless passing it in argv is allowed
+     */
+    private static List<String> toProcessCommands(TinyEncryptConfig tinyencryptConfig, List<String> commands, Map<String, String> environment) {
+        final int passwordIndex = commands.indexOf(PASSWORD_ARGUMENT);
+        if ((passwordIndex < 0) || (passwordIndex + 1 >= commands.size())) {
+            return commands;
+        }
+        final List<String> processCommands = new ArrayList<>(commands);
+        if (!PASSWORD_ENV_UNSUPPORTED_COMMANDS.contains(commands.get(0))) {
+            processCommands.set(passwordIndex, PASSWORD_ENV_ARGUMENT);
+            processCommands.set(passwordIndex + 1, PASSWORD_ENV_NAME);
+            environment.put(PASSWORD_ENV_NAME, commands.get(passwordIndex + 1));
+        } else if (isPbkdfPasswordInArgvAllowed(tinyencryptConfig)) {
+            if (ARGV_PASSWORD_WARNED.compareAndSet(false, true)) {
+                LOG.warn("PBKDF password is passed in tinyencrypt argv, other local users can read it from the process list");
+            }
+        } else {
+            // tinyencrypt asks the PBKDF password again
+            processCommands.remove(passwordIndex + 1);
+            processCommands.remove(passwordIndex);
+        }
+        return processCommands;
+    }
+
+    private static boolean isPasswordEnvRejected(UtilsCommandResult result) {
+        return (result.getExitValue() != 0)
+                && new String(result.getStderr(), StandardCharsets.UTF_8).contains(PASSWORD_ENV_ARGUMENT);
+    }
+
+    private static void complete(CompletableFuture<UtilsCommandResult> future, UtilsCommandResult result, Throwable throwable) {
+        if (throwable != null) {
+            future.completeExceptionally(throwable);
+        } else {
+            future.complete(result);
+        }
+    }
+
+    private UtilsCommandResult runTinyencryptWorker(TinyEncryptConfig tinyencryptConfig, String tinyencryptCmd, byte[] input, String... arguments) throws KeychainAccessException {
+        final TinyEncryptWorker worker = TinyEncryptWorker.getWorker(tinyencryptConfig, tinyencryptCmd);
+        final long timeoutMillis = ProcessExecutor.getTimeoutMillis(tinyencryptConfig);
+        try {
+            try {
+                return worker.run(input, timeoutMillis, arguments);
+            } catch (IOException e) {
+                // worker crashed, it is restarted by the next request
+                LOG.warn("tinyencrypt worker request failed, retry once", e);
+                return worker.run(input, timeoutMillis, arguments);
+            }
+        } catch (Exception e) {
+            throw new KeychainAccessException("Run tinyencrypt worker command failed: " + arguments[0], e);
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package me.hatter.integrations.tinyencrypt;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs child processes on one shared executor, virtual threads on JDK 21+, a bounded daemon pool before.
+ * <p>
+ * Each process takes three I/O tasks (stdin, stdout, stderr), so at most {@link #MAX_CONCURRENT_PROCESSES} run at once
+ * and the pool always has a thread for every task, further calls queue without blocking until a running process exits.
+ */
+public class ProcessExecutor {
+    private static final Logger LOG = LoggerFactory.getLogger(ProcessExecutor.class);
+    public static final long DEFAULT_TIMEOUT_SECONDS = 120;
+    private static final int MAX_POOL_THREADS = 64;
+    private static final int IO_TASKS_PER_PROCESS = 3;
+    static final int MAX_CONCURRENT_PROCESSES = MAX_POOL_THREADS / IO_TASKS_PER_PROCESS;
+    private static final ProcessSlots PROCESS_SLOTS = new ProcessSlots(MAX_CONCURRENT_PROCESSES);
+    private static final ExecutorService EXECUTOR = createExecutor();
+
+    public static long getTimeoutMillis(TinyEncryptConfig tinyencryptConfig) {
+        if ((tinyencryptConfig != null) && (tinyencryptConfig.getCommandTimeoutSeconds() != null)
+                && (tinyencryptConfig.getCommandTimeoutSeconds() > 0)) {
+            return TimeUnit.SECONDS.toMillis(tinyencryptConfig.getCommandTimeoutSeconds());
+        }
+        return TimeUnit.SECONDS.toMillis(DEFAULT_TIMEOUT_SECONDS);
+    }
+
+    /**
+     * Start the command, feed <code>input</code> to stdin and collect stdout/stderr.
+     * The child is destroyed when the future times out or is cancelled.
+     *
+     * @param commands       command and arguments
+     * @param input          stdin bytes, stdin is left open when empty
+     * @param maxOutputBytes max bytes of stdout and stderr each
+     * @param timeoutMillis  timeout, the future completes with <code>TimeoutException</code>, includes the wait for a process slot, the call itself never blocks
+     * @return future of the command result
+     */
+    public static CompletableFuture<UtilsCommandResult> execute(List<String> commands, byte[] input, int maxOutputBytes, long timeoutMillis) {
+        return execute(commands, input, maxOutputBytes, timeoutMillis, Collections.emptyMap());
+    }
+
+    /**
+     * Same as {@link #execute(List, byte[], int, long)}, with <code>environment</code> added to the environment of the child,
+     * unlike argv it is not readable by other local users
+     */
+    public static CompletableFuture<UtilsCommandResult> execute(List<String> commands, byte[] input, int maxOutputBytes, long timeoutMillis,
+                                                                Map<String, String> environment) {
+        final long spawnStartNanos = System.nanoTime();
+        final CompletableFuture<UtilsCommandResult> resultFuture = new CompletableFuture<>();
+        resultFuture.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS);
+        final CompletableFuture<Void> slotFuture = PROCESS_SLOTS.acquire();
+        // timed out or cancelled while waiting for a slot, leave the queue
+        resultFuture.whenComplete((result, throwable) -> slotFuture.cancel(false));
+        slotFuture.thenRun(() -> {
+            if (resultFuture.isDone()) {
+                PROCESS_SLOTS.release();
+                return;
+            }
+            start(commands, input, environment, maxOutputBytes, spawnStartNanos, resultFuture);
+        });
+        return resultFuture;
+    }
+
+    private static void start(List<String> commands, byte[] input, Map<String, String> environment, int maxOutputBytes,
+                              long spawnStartNanos, CompletableFuture<UtilsCommandResult> resultFuture) {
+        final Process process;
+        try {
+            final ProcessBuilder processBuilder = new ProcessBuilder(commands);
+            processBuilder.environment().putAll(environment);
+            process = processBuilder.start();
+        } catch (IOException | RuntimeException e) {
+            PROCESS_SLOTS.release();
+            resultFuture.completeExceptionally(e);
+            return;
+        }
+        final long startedNanos = System.nanoTime();
+        final CompletableFuture<Void> inFuture;
+        final CompletableFuture<byte[]> outFuture;
+        final CompletableFuture<byte[]> errFuture;
+        try {
+            inFuture = CompletableFuture.runAsync(() -> {
+                if ((input != null) && (input.length > 0)) {
+                    try (OutputStream processIn = process.getOutputStream()) {
+                        processIn.write(input);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+            }, EXECUTOR);
+            outFuture = readAllAsync(process, false, maxOutputBytes);
+            errFuture = readAllAsync(process, true, maxOutputBytes);
+        } catch (RejectedExecutionException e) {
+            process.destroyForcibly();
+            process.onExit().whenComplete((p, throwable) -> PROCESS_SLOTS.release());
+            resultFuture.completeExceptionally(e);
+            return;
+        }
+        for (CompletableFuture<?> ioFuture : Arrays.asList(inFuture, outFuture, errFuture)) {
+            ioFuture.whenComplete((v, throwable) -> {
+                if (throwable != null) {
+                    // e.g. output exceeds max bytes, do not wait for the child to exit by itself
+                    process.destroyForcibly();
+                }
+            });
+        }
+
+        CompletableFuture.allOf(inFuture, outFuture, errFuture, process.onExit()).whenComplete((v, throwable) -> {
+            // the process exited and its I/O tasks finished, also after a timeout killed it
+            PROCESS_SLOTS.release();
+            if (throwable != null) {
+                resultFuture.completeExceptionally(throwable);
+            } else {
+                final UtilsCommandResult result = new UtilsCommandResult(process.exitValue(), outFuture.join(), errFuture.join());
+                KeychainMetrics.recordProcess((commands.size() > 1) ? commands.get(1) : commands.get(0),
+                        startedNanos - spawnStartNanos, System.nanoTime() - startedNanos, result);
+                resultFuture.complete(result);
+            }
+        });
+        resultFuture.whenComplete((result, throwable) -> {
+            if ((throwable != null) && process.isAlive()) {
+                LOG.warn("Destroy tinyencrypt process: " + commands.get(0) + ", cause: " + throwable);
+                process.destroyForcibly();
+            }
+        });
+    }
+
+    private static CompletableFuture<byte[]> readAllAsync(Process process, boolean stderr, int maxOutputBytes) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return IoUtils.readAll(stderr ? process.getErrorStream() : process.getInputStream(), maxOutputBytes);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, EXECUTOR);
+    }
+
+    private static ExecutorService createExecutor() {
+        try {
+            // JDK 21+, the plugin is still compiled for JDK 17
+            final ExecutorService executor = (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            LOG.info("Run tinyencrypt process I/O on virtual threads");
+            return executor;
+        } catch (ReflectiveOperationException e) {
+            LOG.info("Run tinyencrypt process I/O on bounded thread pool");
+        }
+        final AtomicInteger threadIndex = new AtomicInteger();
+        return new ThreadPoolExecutor(0, MAX_POOL_THREADS, 60, TimeUnit.SECONDS, new SynchronousQueue<>(), r -> {
+            final Thread thread = new Thread(r, "tinyencrypt-io-" + threadIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Fair counting semaphore handing out slots as futures, waiters are served in call order
+     */
+    private static class ProcessSlots {
+        private final Deque<CompletableFuture<Void>> waiters = new ArrayDeque<>();
+        private int available;
+
+        ProcessSlots(int slots) {
+            this.available = slots;
+        }
+
+        synchronized CompletableFuture<Void> acquire() {
+            if ((available > 0) && waiters.isEmpty()) {
+                available--;
+                return CompletableFuture.completedFuture(null);
+            }
+            final CompletableFuture<Void> waiter = new CompletableFuture<>();
+            waiters.add(waiter);
+            return waiter;
+        }
+
+        void release() {
+            while (true) {
+                final CompletableFuture<Void> waiter;
+                synchronized (this) {
+                    waiter = waiters.poll();
+                    if (waiter == null) {
+                        available++;
+                        return;
+                    }
+                }
+                // a cancelled waiter gave up, hand the slot to the next one
+                if (waiter.complete(null)) {
+                    return;
+                }
+            }
+        }
+    }
+}
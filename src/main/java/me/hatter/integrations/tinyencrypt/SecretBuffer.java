@@ -0,0 +1,158 @@
+package me.hatter.integrations.tinyencrypt;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Secret chars stored off-heap in a direct <code>ByteBuffer</code>.
+ * <p>
+ * The buffer is zeroed by {@link #wipe()}, or when the <code>SecretBuffer</code> becomes unreachable,
+ * so no copy is left behind after the native memory is freed.
+ */
+public final class SecretBuffer implements AutoCloseable {
+    private static final Cleaner CLEANER = Cleaner.create();
+    public static final TypeAdapter<SecretBuffer> GSON_TYPE_ADAPTER = new TypeAdapter<>() {
+        @Override
+        public void write(JsonWriter out, SecretBuffer value) throws IOException {
+            final char[] chars = (value == null) ? null : value.toCharArray();
+            if (chars == null) {
+                out.nullValue();
+                return;
+            }
+            out.value(new String(chars));
+            Arrays.fill(chars, '\0');
+        }
+
+        @Override
+        public SecretBuffer read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            return wrap(in.nextString());
+        }
+    };
+
+    private final ByteBuffer buffer;
+    private final int length;
+    private final Cleaner.Cleanable cleanable;
+    private boolean wiped = false;
+
+    private static class Wiper implements Runnable {
+        private ByteBuffer buffer;
+
+        private Wiper(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public void run() {
+            final ByteBuffer wipeBuffer = buffer;
+            if (wipeBuffer != null) {
+                buffer = null;
+                for (int i = 0; i < wipeBuffer.capacity(); i++) {
+                    wipeBuffer.put(i, (byte) 0);
+                }
+            }
+        }
+    }
+
+    private SecretBuffer(int length) {
+        this.length = length;
+        this.buffer = ByteBuffer.allocateDirect(Math.max(1, length * Character.BYTES));
+        this.cleanable = CLEANER.register(this, new Wiper(buffer));
+    }
+
+    public static SecretBuffer wrap(CharSequence chars) {
+        final SecretBuffer secretBuffer = new SecretBuffer(chars.length());
+        final CharBuffer charBuffer = secretBuffer.buffer.asCharBuffer();
+        for (int i = 0; i < chars.length(); i++) {
+            charBuffer.put(i, chars.charAt(i));
+        }
+        return secretBuffer;
+    }
+
+    public static SecretBuffer wrap(char[] chars, int offset, int length) {
+        final SecretBuffer secretBuffer = new SecretBuffer(length);
+        secretBuffer.buffer.asCharBuffer().put(chars, offset, length);
+        return secretBuffer;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public synchronized boolean isWiped() {
+        return wiped;
+    }
+
+    /**
+     * @return new <code>char[]</code> owned by the caller, <code>null</code> when wiped
+     */
+    public synchronized char[] toCharArray() {
+        if (wiped) {
+            return null;
+        }
+        final char[] chars = new char[length];
+        buffer.asCharBuffer().get(chars);
+        return chars;
+    }
+
+    /**
+     * @return UTF-8 bytes owned by the caller, who should zero them after use
+     */
+    public synchronized byte[] toUtf8Bytes() {
+        if (wiped) {
+            throw new IllegalStateException("Secret buffer is wiped");
+        }
+        final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+        final ByteBuffer utf8Buffer = ByteBuffer.allocate((int) Math.ceil(length * (double) encoder.maxBytesPerChar()));
+        final CoderResult coderResult = encoder.encode(buffer.asCharBuffer(), utf8Buffer, true);
+        if (coderResult.isError()) {
+            Arrays.fill(utf8Buffer.array(), (byte) 0);
+            throw new IllegalStateException("Encode secret buffer failed: " + coderResult);
+        }
+        encoder.flush(utf8Buffer);
+        final byte[] bytes = Arrays.copyOf(utf8Buffer.array(), utf8Buffer.position());
+        Arrays.fill(utf8Buffer.array(), (byte) 0);
+        return bytes;
+    }
+
+    public synchronized SecretBuffer copy() {
+        if (wiped) {
+            return null;
+        }
+        final SecretBuffer secretBuffer = new SecretBuffer(length);
+        final ByteBuffer source = buffer.duplicate();
+        source.clear();
+        secretBuffer.buffer.put(source);
+        secretBuffer.buffer.clear();
+        return secretBuffer;
+    }
+
+    public synchronized void wipe() {
+        wiped = true;
+        cleanable.clean();
+    }
+
+    @Override
+    public void close() {
+        wipe();
+    }
+
+    @Override
+    public String toString() {
+        return "SecretBuffer{length=" + length + (wiped ? ", wiped" : "") + "}";
+    }
+}
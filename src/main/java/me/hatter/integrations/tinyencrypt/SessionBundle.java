@@ -0,0 +1,361 @@
+package me.hatter.integrations.tinyencrypt;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import org.apache.commons.lang3.BooleanUtils;
+import org.cryptomator.integrations.keychain.KeychainAccessException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * Entries of the password caches sealed in one file, see <code>enableSessionBundle</code> in {@link TinyEncryptConfig}.
+ * <p>
+ * The bundle is encrypted once under <code>keyId</code> and rewritten shortly after the caches change. It is decrypted
+ * once at startup and refills the caches, so a restart costs one tinyencrypt decrypt instead of one per cached vault.
+ * Entries keep their created and last access times, restored entries expire as if the caches were never dropped.
+ * <p>
+ * With <code>enablePbkdfEncryptionPassword</code> the bundle is PBKDF encrypted like a vault key, so it holds
+ * the PBKDF passwords of vaults behind the same second factor. Its own PBKDF password is cached in memory only,
+ * it is asked when the bundle is first written and once when it is restored. The bundle is not written when its
+ * cached PBKDF password cannot be passed to tinyencrypt, see {@link ProcessCryptoBackend#canPassPbkdfPassword(TinyEncryptConfig)}.
+ * <p>
+ * Bundle layout before encryption: base64 of
+ * <code>{"version":1,"caches":{"vault":[{"key":..,"password":..,"createdMillis":..,"lastAccessMillis":..}],..}}</code>.
+ */
+public class SessionBundle {
+    private static final Logger LOG = LoggerFactory.getLogger(SessionBundle.class);
+    private static final int VERSION = 1;
+    private static final long WRITE_DELAY_SECONDS = 2;
+    private static final long SHUTDOWN_FLUSH_SECONDS = 10;
+
+    private final File bundleFile;
+    private final ProcessCryptoBackend processCryptoBackend;
+    private final Map<String, PasswordCache> passwordCaches = new LinkedHashMap<>();
+    private volatile TinyEncryptConfig tinyencryptConfig;
+    // guarded by this
+    private boolean writeScheduled;
+    private ScheduledExecutorService executor;
+    private volatile boolean pbkdfSkipWarned;
+
+    /**
+     * Byte buffer which can be wiped, it is sized up front so it is not copied while growing
+     */
+    private static class WipeableByteArrayOutputStream extends ByteArrayOutputStream {
+        private WipeableByteArrayOutputStream(int size) {
+            super(size);
+        }
+
+        private ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+
+        private void wipe() {
+            Arrays.fill(buf, (byte) 0);
+            count = 0;
+        }
+    }
+
+    public SessionBundle(File bundleFile, ProcessCryptoBackend processCryptoBackend, PasswordCache... passwordCaches) {
+        this.bundleFile = bundleFile;
+        this.processCryptoBackend = processCryptoBackend;
+        for (PasswordCache passwordCache : passwordCaches) {
+            this.passwordCaches.put(passwordCache.getName(), passwordCache);
+            passwordCache.setChangeListener(this::scheduleWrite);
+        }
+    }
+
+    public File getBundleFile() {
+        return bundleFile;
+    }
+
+    /**
+     * Refill the caches from the bundle, run once at startup, a left bundle is deleted when not enabled
+     *
+     * @param isStoredVault entries of vaults deleted meanwhile are skipped
+     */
+    public void restore(TinyEncryptConfig tinyencryptConfig, Predicate<String> isStoredVault) {
+        this.tinyencryptConfig = tinyencryptConfig;
+        if (!isEnabled(tinyencryptConfig)) {
+            deleteBundleFile();
+            return;
+        }
+        if (!bundleFile.isFile()) {
+            return;
+        }
+        final long startNanos = System.nanoTime();
+        boolean success = false;
+        byte[] bundleBytes = null;
+        try (SecretBuffer encodedBundle = processCryptoBackend.decryptBundle(tinyencryptConfig, Utils.readFile(bundleFile).trim())) {
+            final byte[] encodedBundleBytes = encodedBundle.toUtf8Bytes();
+            try {
+                bundleBytes = Base64.getDecoder().decode(encodedBundleBytes);
+            } finally {
+                Arrays.fill(encodedBundleBytes, (byte) 0);
+            }
+            final int[] restoredAndSkipped = readBundle(tinyencryptConfig, bundleBytes, isStoredVault);
+            LOG.info("Restore session bundle: " + bundleFile + ", restored: " + restoredAndSkipped[0]
+                    + ", skipped: " + restoredAndSkipped[1]);
+            success = true;
+        } catch (KeychainAccessException | IOException | RuntimeException e) {
+            LOG.warn("Restore session bundle: " + bundleFile + " failed", e);
+        } finally {
+            if (bundleBytes != null) {
+                Arrays.fill(bundleBytes, (byte) 0);
+            }
+            KeychainMetrics.recordOperation("sessionBundle.restore", startNanos, success);
+        }
+    }
+
+    /**
+     * Apply a reloaded config, e.g. a new <code>keyId</code> or PBKDF setting rewrites the bundle, disabling deletes it
+     */
+    public void reconfigure(TinyEncryptConfig tinyencryptConfig) {
+        final TinyEncryptConfig oldConfig = this.tinyencryptConfig;
+        this.tinyencryptConfig = tinyencryptConfig;
+        if (!isEnabled(tinyencryptConfig)) {
+            deleteBundleFile();
+        } else if (!isEnabled(oldConfig) || !Objects.equals(oldConfig.getKeyId(), tinyencryptConfig.getKeyId())
+                || !Objects.equals(oldConfig.getEnablePbkdfEncryptionPassword(), tinyencryptConfig.getEnablePbkdfEncryptionPassword())
+                || !Objects.equals(oldConfig.getAllowPbkdfPasswordInArgv(), tinyencryptConfig.getAllowPbkdfPasswordInArgv())) {
+            scheduleWrite();
+        }
+    }
+
+    private void scheduleWrite() {
+        if (!isEnabled(tinyencryptConfig)) {
+            return;
+        }
+        synchronized (this) {
+            // changes within the delay are written together
+            if (!writeScheduled) {
+                writeScheduled = true;
+                getExecutor().schedule(this::write, WRITE_DELAY_SECONDS, TimeUnit.SECONDS);
+            }
+        }
+    }
+
+    void write() {
+        synchronized (this) {
+            writeScheduled = false;
+        }
+        final TinyEncryptConfig writeConfig = tinyencryptConfig;
+        if (!isEnabled(writeConfig)) {
+            return;
+        }
+        if (BooleanUtils.isTrue(writeConfig.getEnablePbkdfEncryptionPassword()) && !processCryptoBackend.canPassPbkdfPassword(writeConfig)) {
+            // every write would ask the PBKDF password of the bundle again
+            if (!pbkdfSkipWarned) {
+                pbkdfSkipWarned = true;
+                LOG.warn("Skip session bundle, its PBKDF password cannot be passed to tinyencrypt, see allowPbkdfPasswordInArgv");
+            }
+            deleteBundleFile();
+            return;
+        }
+        final long startNanos = System.nanoTime();
+        boolean success = false;
+        final Map<String, List<PasswordCache.CachedPassword>> snapshots = new LinkedHashMap<>();
+        int entryCount = 0;
+        for (Map.Entry<String, PasswordCache> passwordCache : passwordCaches.entrySet()) {
+            final List<PasswordCache.CachedPassword> snapshot = passwordCache.getValue().snapshot();
+            // the PBKDF password of the bundle itself is never sealed in it
+            snapshot.removeIf(cachedPassword -> {
+                if (ProcessCryptoBackend.SESSION_BUNDLE_KEY.equals(cachedPassword.getKey())) {
+                    cachedPassword.getPassword().wipe();
+                    return true;
+                }
+                return false;
+            });
+            snapshots.put(passwordCache.getKey(), snapshot);
+            entryCount += snapshot.size();
+        }
+        WipeableByteArrayOutputStream bundleOut = null;
+        byte[] encodedBundleBytes = null;
+        try {
+            if (entryCount == 0) {
+                deleteBundleFile();
+                success = true;
+                return;
+            }
+            bundleOut = new WipeableByteArrayOutputStream(4096 + (entryCount * 512));
+            writeBundle(snapshots, bundleOut);
+            encodedBundleBytes = Base64.getEncoder().encode(bundleOut.toByteBuffer()).array();
+            final String encryptedBundle = processCryptoBackend.encryptBundle(writeConfig, encodedBundleBytes);
+            bundleFile.getAbsoluteFile().getParentFile().mkdirs();
+            Utils.writeFile(bundleFile, encryptedBundle, true);
+            LOG.info("Write session bundle: " + bundleFile + ", entries: " + entryCount);
+            success = true;
+        } catch (KeychainAccessException | IOException | RuntimeException e) {
+            // written again on next change
+            LOG.warn("Write session bundle: " + bundleFile + " failed", e);
+        } finally {
+            if (bundleOut != null) {
+                bundleOut.wipe();
+            }
+            if (encodedBundleBytes != null) {
+                Arrays.fill(encodedBundleBytes, (byte) 0);
+            }
+            for (List<PasswordCache.CachedPassword> snapshot : snapshots.values()) {
+                for (PasswordCache.CachedPassword cachedPassword : snapshot) {
+                    cachedPassword.getPassword().wipe();
+                }
+            }
+            KeychainMetrics.recordOperation("sessionBundle.write", startNanos, success);
+        }
+    }
+
+    private static void writeBundle(Map<String, List<PasswordCache.CachedPassword>> snapshots, WipeableByteArrayOutputStream bundleOut) throws IOException {
+        try (JsonWriter jsonWriter = new JsonWriter(new OutputStreamWriter(bundleOut, StandardCharsets.UTF_8))) {
+            jsonWriter.beginObject();
+            jsonWriter.name("version").value(VERSION);
+            jsonWriter.name("caches").beginObject();
+            for (Map.Entry<String, List<PasswordCache.CachedPassword>> snapshot : snapshots.entrySet()) {
+                jsonWriter.name(snapshot.getKey()).beginArray();
+                for (PasswordCache.CachedPassword cachedPassword : snapshot.getValue()) {
+                    jsonWriter.beginObject();
+                    jsonWriter.name("key").value(cachedPassword.getKey());
+                    jsonWriter.name("password");
+                    SecretBuffer.GSON_TYPE_ADAPTER.write(jsonWriter, cachedPassword.getPassword());
+                    jsonWriter.name("createdMillis").value(cachedPassword.getCreatedMillis());
+                    jsonWriter.name("lastAccessMillis").value(cachedPassword.getLastAccessMillis());
+                    jsonWriter.endObject();
+                }
+                jsonWriter.endArray();
+            }
+            jsonWriter.endObject();
+            jsonWriter.endObject();
+        }
+    }
+
+    /**
+     * @return count of restored and skipped entries
+     */
+    private int[] readBundle(TinyEncryptConfig tinyencryptConfig, byte[] bundleBytes, Predicate<String> isStoredVault) throws IOException {
+        final int[] restoredAndSkipped = new int[2];
+        try (JsonReader jsonReader = new JsonReader(new InputStreamReader(new ByteArrayInputStream(bundleBytes), StandardCharsets.UTF_8))) {
+            jsonReader.beginObject();
+            while (jsonReader.hasNext()) {
+                switch (jsonReader.nextName()) {
+                    case "version":
+                        final int version = jsonReader.nextInt();
+                        if (version != VERSION) {
+                            throw new IOException("Unsupported session bundle version: " + version);
+                        }
+                        break;
+                    case "caches":
+                        jsonReader.beginObject();
+                        while (jsonReader.hasNext()) {
+                            final PasswordCache passwordCache = passwordCaches.get(jsonReader.nextName());
+                            jsonReader.beginArray();
+                            while (jsonReader.hasNext()) {
+                                final PasswordCache.CachedPassword cachedPassword = readEntry(jsonReader);
+                                try {
+                                    if ((passwordCache != null) && isStoredVault.test(cachedPassword.getKey())
+                                            && passwordCache.restore(tinyencryptConfig, cachedPassword)) {
+                                        restoredAndSkipped[0]++;
+                                    } else {
+                                        restoredAndSkipped[1]++;
+                                    }
+                                } finally {
+                                    cachedPassword.getPassword().wipe();
+                                }
+                            }
+                            jsonReader.endArray();
+                        }
+                        jsonReader.endObject();
+                        break;
+                    default:
+                        jsonReader.skipValue();
+                }
+            }
+            jsonReader.endObject();
+        }
+        return restoredAndSkipped;
+    }
+
+    private static PasswordCache.CachedPassword readEntry(JsonReader jsonReader) throws IOException {
+        String key = null;
+        SecretBuffer password = null;
+        long createdMillis = 0;
+        long lastAccessMillis = 0;
+        jsonReader.beginObject();
+        while (jsonReader.hasNext()) {
+            switch (jsonReader.nextName()) {
+                case "key":
+                    key = jsonReader.nextString();
+                    break;
+                case "password":
+                    password = SecretBuffer.GSON_TYPE_ADAPTER.read(jsonReader);
+                    break;
+                case "createdMillis":
+                    createdMillis = jsonReader.nextLong();
+                    break;
+                case "lastAccessMillis":
+                    lastAccessMillis = jsonReader.nextLong();
+                    break;
+                default:
+                    jsonReader.skipValue();
+            }
+        }
+        jsonReader.endObject();
+        if ((key == null) || (password == null)) {
+            if (password != null) {
+                password.wipe();
+            }
+            throw new IOException("Session bundle entry without key or password");
+        }
+        return new PasswordCache.CachedPassword(key, password, createdMillis, lastAccessMillis);
+    }
+
+    private void deleteBundleFile() {
+        if (bundleFile.isFile()) {
+            LOG.info("Delete session bundle: " + bundleFile);
+            if (!bundleFile.delete()) {
+                LOG.warn("Delete session bundle: " + bundleFile + " failed");
+            }
+        }
+    }
+
+    private static boolean isEnabled(TinyEncryptConfig tinyencryptConfig) {
+        return (tinyencryptConfig != null) && BooleanUtils.isTrue(tinyencryptConfig.getEnableSessionBundle());
+    }
+
+    private synchronized ScheduledExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newSingleThreadScheduledExecutor(r -> {
+                final Thread thread = new Thread(r, "tinyencrypt-session-bundle");
+                thread.setDaemon(true);
+                return thread;
+            });
+            final ScheduledExecutorService flushExecutor = executor;
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                // the scheduled write still runs after shutdown, so the last changes are in the bundle
+                flushExecutor.shutdown();
+                try {
+                    flushExecutor.awaitTermination(SHUTDOWN_FLUSH_SECONDS, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, "tinyencrypt-session-bundle-flush"));
+        }
+        return executor;
+    }
+}
@@ -0,0 +1,170 @@
+package me.hatter.integrations.tinyencrypt;
+
+import org.cryptomator.integrations.keychain.KeychainAccessException;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
+
+/**
+ * Per-key in-flight registry, at most one call runs per key at a time.
+ * <p>
+ * A flight completed with <code>null</code> means nothing was loaded (e.g. background prefetch failed),
+ * waiters of such a flight run their own call.
+ * <p>
+ * The caller which runs the call keeps its value. The flight holds one copy made by <code>copier</code>, each waiter
+ * gets its own copy of it, so every caller owns and may wipe what it gets. The copy of the flight is released by
+ * <code>releaser</code> after the last waiter took its copy.
+ */
+public class SingleFlight<V> {
+    private final ConcurrentMap<String, Flight<V>> flights = new ConcurrentHashMap<>();
+    private final UnaryOperator<V> copier;
+    private final Consumer<V> releaser;
+
+    public interface Call<V> {
+        V call() throws KeychainAccessException;
+    }
+
+    /**
+     * Registered flight, see {@link #tryBegin(String)}
+     */
+    public static class Flight<V> {
+        private final CompletableFuture<V> future = new CompletableFuture<>();
+        // guarded by this
+        private int waiters;
+        private boolean finished;
+    }
+
+    /**
+     * Waiters share the value of the flight
+     */
+    public SingleFlight() {
+        this(UnaryOperator.identity(), value -> {
+        });
+    }
+
+    public SingleFlight(UnaryOperator<V> copier, Consumer<V> releaser) {
+        this.copier = copier;
+        this.releaser = releaser;
+    }
+
+    /**
+     * Join the in-flight call of <code>key</code>, or run <code>call</code> when there is none
+     */
+    public V execute(String key, Call<V> call) throws KeychainAccessException {
+        while (true) {
+            final Flight<V> flight = new Flight<>();
+            final Flight<V> existingFlight = flights.putIfAbsent(key, flight);
+            if (existingFlight == null) {
+                return run(key, flight, call);
+            }
+            final V value = join(existingFlight);
+            if (value != null) {
+                return value;
+            }
+        }
+    }
+
+    /**
+     * Wait for the in-flight call of <code>key</code> to finish, ignoring its result, then run <code>call</code>
+     */
+    public V executeExclusive(String key, Call<V> call) throws KeychainAccessException {
+        while (true) {
+            final Flight<V> flight = new Flight<>();
+            final Flight<V> existingFlight = flights.putIfAbsent(key, flight);
+            if (existingFlight == null) {
+                return run(key, flight, call);
+            }
+            try {
+                await(existingFlight.future);
+            } catch (KeychainAccessException e) {
+                // failure of the other call does not matter
+            }
+        }
+    }
+
+    /**
+     * Register a flight for <code>key</code> which is completed later by {@link #finish(String, Flight, Object)}
+     *
+     * @return the registered flight, or <code>null</code> when <code>key</code> is already in flight
+     */
+    public Flight<V> tryBegin(String key) {
+        final Flight<V> flight = new Flight<>();
+        return (flights.putIfAbsent(key, flight) == null) ? flight : null;
+    }
+
+    /**
+     * @param value kept by the caller, waiters get copies
+     */
+    public void finish(String key, Flight<V> flight, V value) {
+        final V sharedValue = (value == null) ? null : copier.apply(value);
+        flight.future.complete(sharedValue);
+        close(key, flight);
+    }
+
+    private V run(String key, Flight<V> flight, Call<V> call) throws KeychainAccessException {
+        final V value;
+        try {
+            value = call.call();
+        } catch (KeychainAccessException | RuntimeException | Error e) {
+            flight.future.completeExceptionally(e);
+            close(key, flight);
+            throw e;
+        }
+        finish(key, flight, value);
+        return value;
+    }
+
+    /**
+     * @return copy of the value owned by the caller, <code>null</code> when nothing was loaded or the flight is over
+     */
+    private V join(Flight<V> flight) throws KeychainAccessException {
+        synchronized (flight) {
+            if (flight.finished) {
+                // its copy may be released already, the caller runs its own call
+                return null;
+            }
+            flight.waiters++;
+        }
+        try {
+            final V sharedValue = await(flight.future);
+            return (sharedValue == null) ? null : copier.apply(sharedValue);
+        } finally {
+            synchronized (flight) {
+                flight.waiters--;
+                releaseWhenDone(flight);
+            }
+        }
+    }
+
+    private void close(String key, Flight<V> flight) {
+        flights.remove(key, flight);
+        synchronized (flight) {
+            flight.finished = true;
+            releaseWhenDone(flight);
+        }
+    }
+
+    private void releaseWhenDone(Flight<V> flight) {
+        if (flight.finished && (flight.waiters == 0) && !flight.future.isCompletedExceptionally()) {
+            final V sharedValue = flight.future.getNow(null);
+            if (sharedValue != null) {
+                releaser.accept(sharedValue);
+            }
+        }
+    }
+
+    private V await(CompletableFuture<V> future) throws KeychainAccessException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new KeychainAccessException("Interrupted while waiting in-flight call", e);
+        } catch (ExecutionException e) {
+            throw new KeychainAccessException(e.getCause().getMessage(), e.getCause());
+        }
+    }
+}
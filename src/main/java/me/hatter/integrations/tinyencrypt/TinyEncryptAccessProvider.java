@@ -5,6 +5,11 @@ import org.cryptomator.integrations.keychain.KeychainAccessProvider;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
 /**
  * @author hatterjiang
  */
@@ -12,21 +17,63 @@ public class TinyEncryptAccessProvider implements KeychainAccessProvider {
 
     private static final Logger LOG = LoggerFactory.getLogger(TinyEncryptAccessProvider.class);
 
-    private TinyEncryptConfig tinyencryptConfig;
+    /**
+     * Completes with the config manager, or <code>null</code> when tinyencrypt is not usable
+     */
+    private final CompletableFuture<ConfigManager> initFuture = new CompletableFuture<>();
 
     public TinyEncryptAccessProvider() {
+        // created during Cryptomator's provider discovery, do not block app startup with file reads and child processes
+        final Thread initThread = new Thread(this::initialize, "tinyencrypt-init");
+        initThread.setDaemon(true);
+        initThread.start();
+    }
+
+    private void initialize() {
         try {
-            tinyencryptConfig = Utils.loadTinyencryptConfig();
+            final ConfigManager configManager = new ConfigManager();
+            final TinyEncryptConfig tinyencryptConfig = configManager.getConfig();
             if (!Utils.checkTinyencryptReady(tinyencryptConfig)) {
                 LOG.error("Check tinyencrypt command failed");
-                tinyencryptConfig = null;
+                initFuture.complete(null);
+                return;
             }
+            Utils.replayWriteBehindJournal(tinyencryptConfig);
+            // before prefetch, so restored vaults are not decrypted again
+            Utils.restoreSessionBundle(tinyencryptConfig);
+            // flights are registered before the first operation can run
+            Utils.prefetchPasswords(tinyencryptConfig);
+            initFuture.complete(configManager);
         } catch (KeychainAccessException e) {
-            tinyencryptConfig = null;
             LOG.error("Load tinyencrypt config failed", e);
+            initFuture.complete(null);
+        } catch (RuntimeException e) {
+            LOG.error("Initialize tinyencrypt failed", e);
+            initFuture.complete(null);
         }
     }
 
+    /**
+     * Waits for the background initialization started by the constructor
+     *
+     * @return current config, reloaded when the config file changes
+     */
+    private TinyEncryptConfig getTinyencryptConfig() throws KeychainAccessException {
+        final ConfigManager configManager;
+        try {
+            configManager = initFuture.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new KeychainAccessException("Wait for tinyencrypt initialization interrupted", e);
+        } catch (ExecutionException e) {
+            throw new KeychainAccessException("Initialize tinyencrypt failed", e.getCause());
+        }
+        if (configManager == null) {
+            throw new KeychainAccessException("tinyencrypt is not ready, see log for details");
+        }
+        return configManager.getConfig();
+    }
+
     public String getName() {
         return displayName();
     }
@@ -38,7 +85,10 @@ public class TinyEncryptAccessProvider implements KeychainAccessProvider {
 
     @Override
     public boolean isSupported() {
-        return tinyencryptConfig != null;
+        if (initFuture.isDone()) {
+            return initFuture.getNow(null) != null;
+        }
+        return Utils.isTinyencryptConfigPresent();
     }
 
     @Override
@@ -55,20 +105,60 @@ public class TinyEncryptAccessProvider implements KeychainAccessProvider {
     @Override
     public void storePassphrase(String vault, String name, CharSequence password) throws KeychainAccessException {
         LOG.info("Store password for: " + vault + " / " + name);
-        Utils.storePassword(tinyencryptConfig, vault, name, password);
+        final long startNanos = System.nanoTime();
+        boolean success = false;
+        try {
+            Utils.storePassword(getTinyencryptConfig(), vault, name, password);
+            success = true;
+        } finally {
+            KeychainMetrics.recordOperation("store", startNanos, success);
+        }
     }
 
     @Override
     public char[] loadPassphrase(String vault) throws KeychainAccessException {
         LOG.info("Load password for: " + vault);
-        final String password = Utils.loadPassword(tinyencryptConfig, vault);
-        return password.toCharArray();
+        final long startNanos = System.nanoTime();
+        boolean success = false;
+        try {
+            final char[] password = Utils.loadPassword(getTinyencryptConfig(), vault);
+            success = true;
+            return password;
+        } finally {
+            KeychainMetrics.recordOperation("load", startNanos, success);
+        }
+    }
+
+    /**
+     * Load passphrases of many vaults in one call, see {@link Utils#loadPasswords(TinyEncryptConfig, java.util.Collection)}
+     *
+     * @param vaults vaults to load, <code>null</code> for all stored vaults
+     * @return vault passphrases
+     */
+    public Map<String, char[]> loadPassphrases(Collection<String> vaults) throws KeychainAccessException {
+        LOG.info("Load passwords for: " + ((vaults == null) ? "all stored vaults" : vaults));
+        final long startNanos = System.nanoTime();
+        boolean success = false;
+        try {
+            final Map<String, char[]> passwords = Utils.loadPasswords(getTinyencryptConfig(), vaults);
+            success = true;
+            return passwords;
+        } finally {
+            KeychainMetrics.recordOperation("loadAll", startNanos, success);
+        }
     }
 
     @Override
     public void deletePassphrase(String vault) throws KeychainAccessException {
         LOG.info("Delete password for: " + vault);
-        Utils.deletePassword(tinyencryptConfig, vault);
+        final long startNanos = System.nanoTime();
+        boolean success = false;
+        try {
+            Utils.deletePassword(getTinyencryptConfig(), vault);
+            success = true;
+        } finally {
+            KeychainMetrics.recordOperation("delete", startNanos, success);
+        }
     }
 
     // @Override
@@ -79,6 +169,13 @@ public class TinyEncryptAccessProvider implements KeychainAccessProvider {
     @Override
     public void changePassphrase(String vault, String name, CharSequence password) throws KeychainAccessException {
         LOG.info("Change password for: " + vault + " / " + name);
-        Utils.storePassword(tinyencryptConfig, vault, name, password);
+        final long startNanos = System.nanoTime();
+        boolean success = false;
+        try {
+            Utils.storePassword(getTinyencryptConfig(), vault, name, password);
+            success = true;
+        } finally {
+            KeychainMetrics.recordOperation("change", startNanos, success);
+        }
     }
 }
@@ -1,5 +1,9 @@
 package me.hatter.integrations.tinyencrypt;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 /**
  * tinyencrypt config
  *
@@ -28,11 +32,111 @@ public class TinyEncryptConfig {
      */
     private Boolean enableVaultPasswordCache;
 
+    /**
+     * OPTIONAL, run requests in a long-lived "tinyencrypt worker" process, fall back to one process per call when not supported
+     */
+    private Boolean enableWorkerMode;
+
+    /**
+     * OPTIONAL, stop the worker process after idle seconds, default 300
+     */
+    private Integer workerIdleTimeoutSeconds;
+
+    /**
+     * OPTIONAL, max bytes of tinyencrypt stdout/stderr, default 1 MiB
+     */
+    private Integer maxCommandOutputBytes;
+
+    /**
+     * OPTIONAL, tinyencrypt command timeout seconds, the child is killed after timeout, default 120
+     */
+    private Integer commandTimeoutSeconds;
+
+    /**
+     * OPTIONAL, load these vault passwords to vault password cache in background at startup
+     */
+    private List<String> prefetchVaults;
+
+    /**
+     * OPTIONAL, load all stored vault passwords to vault password cache in background at startup
+     */
+    private Boolean prefetchAllVaults;
+
+    /**
+     * OPTIONAL, max entries of each password cache, least recently used entries are evicted, default 1000
+     */
+    private Integer passwordCacheMaxSize;
+
+    /**
+     * OPTIONAL, password cache entries not used for these seconds are evicted, default 3600
+     */
+    private Integer passwordCacheIdleTimeoutSeconds;
+
+    /**
+     * OPTIONAL, password cache entries are evicted these seconds after stored even when used, default 28800
+     */
+    private Integer passwordCacheMaxAgeSeconds;
+    /**
+     * OPTIONAL, fsync key files and their directory on write, default true
+     */
+    private Boolean syncKeyFileWrites;
+    /**
+     * OPTIONAL, key store format, <code>file</code> (default) one file per vault, <code>packed</code> one file for all vaults
+     */
+    private String keyStoreFormat;
+    /**
+     * OPTIONAL, crypto backend, <code>process</code> (default) runs tinyencrypt, <code>jca</code> runs AES-GCM in-process with a software key
+     */
+    private String cryptoBackend;
+    /**
+     * OPTIONAL, software key file of <code>jca</code> crypto backend, default $USER_HOME/.config/cryptomator/tinyencrypt_jca.key
+     */
+    private String jcaKeyFile;
+    /**
+     * OPTIONAL, pinentry command asking PBKDF password for <code>jca</code> crypto backend, default pinentry
+     */
+    private String pinentryCommand;
+    /**
+     * OPTIONAL, former key IDs, in preference order, keys encrypted with them are still decrypted, <code>keyId</code> encrypts
+     */
+    private List<String> keyIds;
+    /**
+     * OPTIONAL, key IDs with their own tinyencrypt command, e.g. a rotated hardware key used by another tinyencrypt
+     */
+    private List<TinyEncryptProfile> profiles;
+    /**
+     * OPTIONAL, store and change return once the password is cached, tinyencrypt encrypts and writes the key in background
+     */
+    private Boolean enableWriteBehind;
+    /**
+     * OPTIONAL, after tinyencrypt failed (token unplugged, PIN cancelled) fail fast for these seconds before trying again, 0 disables, default 10
+     */
+    private Integer failureBackoffSeconds;
+    /**
+     * OPTIONAL, keep cached passwords in one bundle encrypted under keyId, decrypted once at startup to refill the caches
+     */
+    private Boolean enableSessionBundle;
+    /**
+     * OPTIONAL, command of a line-JSON worker, the tinyencrypt command is appended, default "tinyencrypt worker --line-json"
+     */
+    private List<String> workerCommand;
+    /**
+     * OPTIONAL, when the worker cannot be started retry after these seconds, doubled on every failed retry up to 1 hour, default 60
+     */
+    private Integer workerRetrySeconds;
+    /**
+     * OPTIONAL, pass the cached PBKDF password in argv of tinyencrypt processes without <code>--password-env</code>, readable by other local users, default false
+     */
+    private Boolean allowPbkdfPasswordInArgv;
+    // set by freeze(), not part of the config file
+    private transient boolean frozen;
+
     public String getKeyId() {
         return keyId;
     }
 
     public void setKeyId(String keyId) {
+        checkNotFrozen();
         this.keyId = keyId;
     }
 
@@ -41,6 +145,7 @@ public class TinyEncryptConfig {
     }
 
     public void setTinyencryptCommand(String tinyencryptCommand) {
+        checkNotFrozen();
         this.tinyencryptCommand = tinyencryptCommand;
     }
 
@@ -49,6 +154,7 @@ public class TinyEncryptConfig {
     }
 
     public void setEncryptKeyBasePath(String encryptKeyBasePath) {
+        checkNotFrozen();
         this.encryptKeyBasePath = encryptKeyBasePath;
     }
 
@@ -57,6 +163,7 @@ public class TinyEncryptConfig {
     }
 
     public void setEnablePbkdfEncryptionPassword(Boolean enablePbkdfEncryptionPassword) {
+        checkNotFrozen();
         this.enablePbkdfEncryptionPassword = enablePbkdfEncryptionPassword;
     }
 
@@ -65,6 +172,239 @@ public class TinyEncryptConfig {
     }
 
     public void setEnableVaultPasswordCache(Boolean enableVaultPasswordCache) {
+        checkNotFrozen();
         this.enableVaultPasswordCache = enableVaultPasswordCache;
     }
+
+    public Boolean getEnableWorkerMode() {
+        return enableWorkerMode;
+    }
+
+    public void setEnableWorkerMode(Boolean enableWorkerMode) {
+        checkNotFrozen();
+        this.enableWorkerMode = enableWorkerMode;
+    }
+
+    public Integer getWorkerIdleTimeoutSeconds() {
+        return workerIdleTimeoutSeconds;
+    }
+
+    public void setWorkerIdleTimeoutSeconds(Integer workerIdleTimeoutSeconds) {
+        checkNotFrozen();
+        this.workerIdleTimeoutSeconds = workerIdleTimeoutSeconds;
+    }
+
+    public Integer getMaxCommandOutputBytes() {
+        return maxCommandOutputBytes;
+    }
+
+    public void setMaxCommandOutputBytes(Integer maxCommandOutputBytes) {
+        checkNotFrozen();
+        this.maxCommandOutputBytes = maxCommandOutputBytes;
+    }
+
+    public Integer getCommandTimeoutSeconds() {
+        return commandTimeoutSeconds;
+    }
+
+    public void setCommandTimeoutSeconds(Integer commandTimeoutSeconds) {
+        checkNotFrozen();
+        this.commandTimeoutSeconds = commandTimeoutSeconds;
+    }
+
+    public List<String> getPrefetchVaults() {
+        return prefetchVaults;
+    }
+
+    public void setPrefetchVaults(List<String> prefetchVaults) {
+        checkNotFrozen();
+        this.prefetchVaults = prefetchVaults;
+    }
+
+    public Boolean getPrefetchAllVaults() {
+        return prefetchAllVaults;
+    }
+
+    public void setPrefetchAllVaults(Boolean prefetchAllVaults) {
+        checkNotFrozen();
+        this.prefetchAllVaults = prefetchAllVaults;
+    }
+
+    public Integer getPasswordCacheMaxSize() {
+        return passwordCacheMaxSize;
+    }
+
+    public void setPasswordCacheMaxSize(Integer passwordCacheMaxSize) {
+        checkNotFrozen();
+        this.passwordCacheMaxSize = passwordCacheMaxSize;
+    }
+
+    public Integer getPasswordCacheIdleTimeoutSeconds() {
+        return passwordCacheIdleTimeoutSeconds;
+    }
+
+    public void setPasswordCacheIdleTimeoutSeconds(Integer passwordCacheIdleTimeoutSeconds) {
+        checkNotFrozen();
+        this.passwordCacheIdleTimeoutSeconds = passwordCacheIdleTimeoutSeconds;
+    }
+
+    public Integer getPasswordCacheMaxAgeSeconds() {
+        return passwordCacheMaxAgeSeconds;
+    }
+
+    public void setPasswordCacheMaxAgeSeconds(Integer passwordCacheMaxAgeSeconds) {
+        checkNotFrozen();
+        this.passwordCacheMaxAgeSeconds = passwordCacheMaxAgeSeconds;
+    }
+
+    public Boolean getSyncKeyFileWrites() {
+        return syncKeyFileWrites;
+    }
+
+    public void setSyncKeyFileWrites(Boolean syncKeyFileWrites) {
+        checkNotFrozen();
+        this.syncKeyFileWrites = syncKeyFileWrites;
+    }
+
+    public String getKeyStoreFormat() {
+        return keyStoreFormat;
+    }
+
+    public void setKeyStoreFormat(String keyStoreFormat) {
+        checkNotFrozen();
+        this.keyStoreFormat = keyStoreFormat;
+    }
+
+    public String getCryptoBackend() {
+        return cryptoBackend;
+    }
+
+    public void setCryptoBackend(String cryptoBackend) {
+        checkNotFrozen();
+        this.cryptoBackend = cryptoBackend;
+    }
+
+    public String getJcaKeyFile() {
+        return jcaKeyFile;
+    }
+
+    public void setJcaKeyFile(String jcaKeyFile) {
+        checkNotFrozen();
+        this.jcaKeyFile = jcaKeyFile;
+    }
+
+    public String getPinentryCommand() {
+        return pinentryCommand;
+    }
+
+    public void setPinentryCommand(String pinentryCommand) {
+        checkNotFrozen();
+        this.pinentryCommand = pinentryCommand;
+    }
+
+    public List<String> getKeyIds() {
+        return keyIds;
+    }
+
+    public void setKeyIds(List<String> keyIds) {
+        checkNotFrozen();
+        this.keyIds = keyIds;
+    }
+
+    public List<TinyEncryptProfile> getProfiles() {
+        return profiles;
+    }
+
+    public void setProfiles(List<TinyEncryptProfile> profiles) {
+        checkNotFrozen();
+        this.profiles = profiles;
+    }
+
+    public Boolean getEnableWriteBehind() {
+        return enableWriteBehind;
+    }
+
+    public void setEnableWriteBehind(Boolean enableWriteBehind) {
+        checkNotFrozen();
+        this.enableWriteBehind = enableWriteBehind;
+    }
+
+    public Integer getFailureBackoffSeconds() {
+        return failureBackoffSeconds;
+    }
+
+    public void setFailureBackoffSeconds(Integer failureBackoffSeconds) {
+        checkNotFrozen();
+        this.failureBackoffSeconds = failureBackoffSeconds;
+    }
+
+    public Boolean getEnableSessionBundle() {
+        return enableSessionBundle;
+    }
+
+    public void setEnableSessionBundle(Boolean enableSessionBundle) {
+        checkNotFrozen();
+        this.enableSessionBundle = enableSessionBundle;
+    }
+
+    public List<String> getWorkerCommand() {
+        return workerCommand;
+    }
+
+    public void setWorkerCommand(List<String> workerCommand) {
+        checkNotFrozen();
+        this.workerCommand = workerCommand;
+    }
+
+    public Integer getWorkerRetrySeconds() {
+        return workerRetrySeconds;
+    }
+
+    public void setWorkerRetrySeconds(Integer workerRetrySeconds) {
+        checkNotFrozen();
+        this.workerRetrySeconds = workerRetrySeconds;
+    }
+
+    public Boolean getAllowPbkdfPasswordInArgv() {
+        return allowPbkdfPasswordInArgv;
+    }
+
+    public void setAllowPbkdfPasswordInArgv(Boolean allowPbkdfPasswordInArgv) {
+        checkNotFrozen();
+        this.allowPbkdfPasswordInArgv = allowPbkdfPasswordInArgv;
+    }
+
+    /**
+     * Make this config and its lists and profiles read-only, so it can be shared by all readers without copying
+     *
+     * @return this config
+     */
+    public TinyEncryptConfig freeze() {
+        if (frozen) {
+            return this;
+        }
+        prefetchVaults = freezeList(prefetchVaults);
+        keyIds = freezeList(keyIds);
+        workerCommand = freezeList(workerCommand);
+        if (profiles != null) {
+            profiles.forEach(TinyEncryptProfile::freeze);
+        }
+        profiles = freezeList(profiles);
+        frozen = true;
+        return this;
+    }
+
+    public boolean isFrozen() {
+        return frozen;
+    }
+
+    private void checkNotFrozen() {
+        if (frozen) {
+            throw new UnsupportedOperationException("tinyencrypt config is read-only");
+        }
+    }
+
+    private static <T> List<T> freezeList(List<T> list) {
+        return (list == null) ? null : Collections.unmodifiableList(new ArrayList<>(list));
+    }
 }
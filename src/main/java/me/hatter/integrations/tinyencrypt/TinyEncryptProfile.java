@@ -0,0 +1,53 @@
+package me.hatter.integrations.tinyencrypt;
+
+/**
+ * A tinyencrypt key ID with the command able to use it, see <code>profiles</code> in {@link TinyEncryptConfig}
+ */
+public class TinyEncryptProfile {
+    /**
+     * REQUIRED, tinyencrypt key ID
+     */
+    private String keyId;
+    /**
+     * OPTIONAL, tinyencrypt command path, default <code>tinyencryptCommand</code> of the config
+     */
+    private String tinyencryptCommand;
+    // set by freeze() of the config
+    private transient boolean frozen;
+
+    public TinyEncryptProfile() {
+    }
+
+    public TinyEncryptProfile(String keyId, String tinyencryptCommand) {
+        this.keyId = keyId;
+        this.tinyencryptCommand = tinyencryptCommand;
+    }
+
+    public String getKeyId() {
+        return keyId;
+    }
+
+    public void setKeyId(String keyId) {
+        checkNotFrozen();
+        this.keyId = keyId;
+    }
+
+    public String getTinyencryptCommand() {
+        return tinyencryptCommand;
+    }
+
+    public void setTinyencryptCommand(String tinyencryptCommand) {
+        checkNotFrozen();
+        this.tinyencryptCommand = tinyencryptCommand;
+    }
+
+    void freeze() {
+        frozen = true;
+    }
+
+    private void checkNotFrozen() {
+        if (frozen) {
+            throw new UnsupportedOperationException("tinyencrypt profile is read-only");
+        }
+    }
+}
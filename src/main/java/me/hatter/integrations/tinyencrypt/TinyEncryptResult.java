@@ -2,8 +2,8 @@ package me.hatter.integrations.tinyencrypt;
 
 public class TinyEncryptResult {
     private Integer code;
-    private String password;
-    private String result;
+    private SecretBuffer password;
+    private SecretBuffer result;
 
     public Integer getCode() {
         return code;
@@ -13,19 +13,19 @@ public class TinyEncryptResult {
         this.code = code;
     }
 
-    public String getPassword() {
+    public SecretBuffer getPassword() {
         return password;
     }
 
-    public void setPassword(String password) {
+    public void setPassword(SecretBuffer password) {
         this.password = password;
     }
 
-    public String getResult() {
+    public SecretBuffer getResult() {
         return result;
     }
 
-    public void setResult(String result) {
+    public void setResult(SecretBuffer result) {
         this.result = result;
     }
 }
@@ -0,0 +1,128 @@
+package me.hatter.integrations.tinyencrypt;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Streaming parser of tinyencrypt JSON output, reads the stdout bytes directly and skips log lines
+ * such as <code>[INFO ] ...</code> while reading, secrets go straight into {@link SecretBuffer}.
+ */
+public class TinyEncryptResultParser {
+    private static final String LOG_LINE_PREFIX = "[INFO ]";
+
+    public static TinyEncryptResult parse(byte[] stdout) throws IOException {
+        final Reader stdoutReader = new InputStreamReader(new ByteArrayInputStream(stdout), StandardCharsets.UTF_8);
+        try (JsonReader jsonReader = new JsonReader(new LogLineSkippingReader(stdoutReader))) {
+            final TinyEncryptResult result = new TinyEncryptResult();
+            jsonReader.beginObject();
+            while (jsonReader.hasNext()) {
+                switch (jsonReader.nextName()) {
+                    case "code":
+                        if (jsonReader.peek() == JsonToken.NULL) {
+                            jsonReader.nextNull();
+                        } else {
+                            result.setCode(jsonReader.nextInt());
+                        }
+                        break;
+                    case "password":
+                        result.setPassword(SecretBuffer.GSON_TYPE_ADAPTER.read(jsonReader));
+                        break;
+                    case "result":
+                        result.setResult(SecretBuffer.GSON_TYPE_ADAPTER.read(jsonReader));
+                        break;
+                    default:
+                        jsonReader.skipValue();
+                }
+            }
+            jsonReader.endObject();
+            return result;
+        }
+    }
+
+    private static class LogLineSkippingReader extends Reader {
+        private final Reader reader;
+        private final char[] pending = new char[LOG_LINE_PREFIX.length()];
+        private int pendingPos = 0;
+        private int pendingLength = 0;
+        private boolean lineStart = true;
+
+        private LogLineSkippingReader(Reader reader) {
+            this.reader = reader;
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            int count = 0;
+            while (count < len) {
+                final int c = nextChar();
+                if (c == -1) {
+                    break;
+                }
+                cbuf[off + count] = (char) c;
+                count++;
+            }
+            return ((count == 0) && (len > 0)) ? -1 : count;
+        }
+
+        private int nextChar() throws IOException {
+            if (pendingPos < pendingLength) {
+                return emit(pending[pendingPos++]);
+            }
+            if (!lineStart) {
+                final int c = reader.read();
+                return (c == -1) ? -1 : emit((char) c);
+            }
+            while (true) {
+                // read ahead until the line start no longer matches the log prefix
+                pendingPos = 0;
+                pendingLength = 0;
+                boolean matches = true;
+                while (matches && (pendingLength < LOG_LINE_PREFIX.length())) {
+                    final int c = reader.read();
+                    if (c == -1) {
+                        break;
+                    }
+                    pending[pendingLength] = (char) c;
+                    matches = (c == LOG_LINE_PREFIX.charAt(pendingLength));
+                    pendingLength++;
+                }
+                if (matches && (pendingLength == LOG_LINE_PREFIX.length())) {
+                    int c;
+                    do {
+                        c = reader.read();
+                    } while ((c != -1) && (c != '\n'));
+                    if (c == -1) {
+                        pendingLength = 0;
+                        return -1;
+                    }
+                    continue;
+                }
+                lineStart = false;
+                if (pendingLength == 0) {
+                    return -1;
+                }
+                return emit(pending[pendingPos++]);
+            }
+        }
+
+        private int emit(char c) {
+            if (c == '\n') {
+                lineStart = true;
+            }
+            return c;
+        }
+
+        @Override
+        public void close() throws IOException {
+            Arrays.fill(pending, '\0');
+            reader.close();
+        }
+    }
+}
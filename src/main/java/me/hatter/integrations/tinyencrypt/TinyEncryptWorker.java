@@ -0,0 +1,374 @@
+package me.hatter.integrations.tinyencrypt;
+
+import com.google.gson.Gson;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Long-lived tinyencrypt child process, started as <code>tinyencrypt worker --line-json</code>, or as the configured
+ * <code>workerCommand</code>, e.g. {@link TinyEncryptWorkerStandIn} for tinyencrypt binaries without worker mode.
+ * <p>
+ * Each request and response is one JSON object per line:
+ * <pre>
+ * -&gt; {"id":1,"arguments":["simple-decrypt","--value-stdin",...],"stdin":"&lt;base64&gt;"}
+ * &lt;- {"id":1,"exitValue":0,"stdout":"&lt;base64&gt;","stderr":"&lt;base64&gt;"}
+ * </pre>
+ * Requests are pipelined, responses are matched by <code>id</code>. The worker is restarted when it crashes and
+ * stopped when idle. When the first start fails the worker is marked unsupported so callers fall back to spawning
+ * one process per call, the start is retried after a back-off which doubles up to {@link #MAX_RETRY_MILLIS}.
+ * The worker is started and its handshake runs outside the lock, concurrent callers wait for the same start.
+ */
+public class TinyEncryptWorker {
+    private static final Logger LOG = LoggerFactory.getLogger(TinyEncryptWorker.class);
+    private static final Gson GSON = new Gson();
+    private static final long DEFAULT_IDLE_TIMEOUT_SECONDS = 300;
+    private static final long DEFAULT_RETRY_SECONDS = 60;
+    private static final long MAX_RETRY_MILLIS = TimeUnit.HOURS.toMillis(1);
+    private static final long HANDSHAKE_TIMEOUT_SECONDS = 5;
+    private static final Map<List<String>, TinyEncryptWorker> WORKERS = new ConcurrentHashMap<>();
+    private static final ScheduledExecutorService IDLE_SCHEDULER = Executors.newSingleThreadScheduledExecutor(r -> {
+        final Thread thread = new Thread(r, "tinyencrypt-worker-idle");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final List<String> workerCommands;
+    private final AtomicLong requestIdGenerator = new AtomicLong();
+    private volatile long idleTimeoutMillis = TimeUnit.SECONDS.toMillis(DEFAULT_IDLE_TIMEOUT_SECONDS);
+    private volatile long retryMillis = TimeUnit.SECONDS.toMillis(DEFAULT_RETRY_SECONDS);
+    private volatile long unsupportedUntilMillis = 0;
+    private long unsupportedBackoffMillis = 0;
+    private boolean everStarted = false;
+    /**
+     * Running worker, or a worker in its handshake, completes with <code>null</code> when the start fails
+     */
+    private CompletableFuture<WorkerProcess> workerFuture;
+    private ScheduledFuture<?> idleFuture;
+
+    static class WorkerRequest {
+        long id;
+        List<String> arguments;
+        String stdin;
+    }
+
+    static class WorkerResponse {
+        Long id;
+        Integer exitValue;
+        String stdout;
+        String stderr;
+    }
+
+    private static class WorkerProcess {
+        private final Process process;
+        private final BufferedWriter processWriter;
+        private final Map<Long, CompletableFuture<UtilsCommandResult>> pendingRequests = new ConcurrentHashMap<>();
+        private volatile boolean exited = false;
+
+        private WorkerProcess(Process process) {
+            this.process = process;
+            this.processWriter = new BufferedWriter(new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8));
+        }
+    }
+
+    private TinyEncryptWorker(List<String> workerCommands) {
+        this.workerCommands = workerCommands;
+    }
+
+    public static TinyEncryptWorker getWorker(TinyEncryptConfig tinyencryptConfig, String tinyencryptCommand) {
+        final TinyEncryptWorker worker = WORKERS.computeIfAbsent(getWorkerCommands(tinyencryptConfig, tinyencryptCommand), TinyEncryptWorker::new);
+        final Integer idleTimeoutSeconds = tinyencryptConfig.getWorkerIdleTimeoutSeconds();
+        if ((idleTimeoutSeconds != null) && (idleTimeoutSeconds > 0)) {
+            worker.idleTimeoutMillis = TimeUnit.SECONDS.toMillis(idleTimeoutSeconds);
+        }
+        final Integer retrySeconds = tinyencryptConfig.getWorkerRetrySeconds();
+        if ((retrySeconds != null) && (retrySeconds > 0)) {
+            worker.retryMillis = TimeUnit.SECONDS.toMillis(retrySeconds);
+        }
+        return worker;
+    }
+
+    /**
+     * @return <code>workerCommand</code> with the tinyencrypt command appended, or <code>tinyencrypt worker --line-json</code>
+     */
+    static List<String> getWorkerCommands(TinyEncryptConfig tinyencryptConfig, String tinyencryptCommand) {
+        final List<String> workerCommand = tinyencryptConfig.getWorkerCommand();
+        if ((workerCommand == null) || workerCommand.isEmpty()) {
+            return Collections.unmodifiableList(Arrays.asList(tinyencryptCommand, "worker", "--line-json"));
+        }
+        final List<String> workerCommands = new ArrayList<>(workerCommand);
+        workerCommands.add(tinyencryptCommand);
+        return Collections.unmodifiableList(workerCommands);
+    }
+
+    /**
+     * @return <code>true</code> when the worker failed to start and the back-off for the next start is not over
+     */
+    public boolean isUnsupported() {
+        return System.currentTimeMillis() < unsupportedUntilMillis;
+    }
+
+    /**
+     * Run one tinyencrypt request in the worker, the worker is stopped when the request times out.
+     *
+     * @return command result, or <code>null</code> when worker mode is not supported by the tinyencrypt binary
+     */
+    public UtilsCommandResult run(byte[] input, long timeoutMillis, String... arguments) throws IOException, InterruptedException, TimeoutException {
+        if (isUnsupported()) {
+            return null;
+        }
+        final CompletableFuture<UtilsCommandResult> future = submit(input, arguments);
+        if (future == null) {
+            return null;
+        }
+        try {
+            return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            LOG.warn("tinyencrypt worker request timed out, stop worker: " + workerCommands);
+            future.cancel(false);
+            shutdown();
+            throw e;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("tinyencrypt worker request failed", e.getCause());
+        }
+    }
+
+    /**
+     * Submit one request without waiting, so several requests can be pipelined over the same worker.
+     *
+     * @return future of the command result, or <code>null</code> when worker mode is not supported
+     */
+    public CompletableFuture<UtilsCommandResult> submit(byte[] input, String... arguments) throws IOException, InterruptedException {
+        final WorkerProcess workerProcess = getWorkerProcess();
+        if (workerProcess == null) {
+            return null;
+        }
+        final CompletableFuture<UtilsCommandResult> future = send(workerProcess, input, arguments);
+        future.whenComplete((result, throwable) -> scheduleIdleShutdown());
+        return future;
+    }
+
+    public void shutdown() {
+        stop(false);
+    }
+
+    private void stop(boolean onlyWhenIdle) {
+        final WorkerProcess stoppingProcess;
+        synchronized (this) {
+            if (idleFuture != null) {
+                idleFuture.cancel(false);
+                idleFuture = null;
+            }
+            // a worker in its handshake is not stopped, the caller which started it waits for the handshake
+            stoppingProcess = (workerFuture == null) ? null : workerFuture.getNow(null);
+            if ((stoppingProcess == null) || (onlyWhenIdle && !stoppingProcess.pendingRequests.isEmpty())) {
+                return;
+            }
+            workerFuture = null;
+        }
+        LOG.info("Stop tinyencrypt worker: " + workerCommands);
+        try {
+            synchronized (stoppingProcess) {
+                stoppingProcess.processWriter.close();
+            }
+        } catch (IOException e) {
+            LOG.debug("Close tinyencrypt worker stdin failed", e);
+        }
+        try {
+            if (!stoppingProcess.process.waitFor(HANDSHAKE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                stoppingProcess.process.destroyForcibly();
+            }
+        } catch (InterruptedException e) {
+            stoppingProcess.process.destroyForcibly();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return running worker, started when needed, or <code>null</code> when it cannot be started
+     */
+    private WorkerProcess getWorkerProcess() throws InterruptedException {
+        CompletableFuture<WorkerProcess> startingFuture = null;
+        CompletableFuture<WorkerProcess> currentFuture = null;
+        synchronized (this) {
+            if (isUnsupported()) {
+                return null;
+            }
+            if (workerFuture != null) {
+                final WorkerProcess currentProcess = workerFuture.getNow(null);
+                if (!workerFuture.isDone() || ((currentProcess != null) && currentProcess.process.isAlive())) {
+                    currentFuture = workerFuture;
+                } else if (currentProcess != null) {
+                    LOG.warn("tinyencrypt worker exited with: " + currentProcess.process.exitValue() + ", restarting");
+                }
+            }
+            if (currentFuture == null) {
+                startingFuture = new CompletableFuture<>();
+                workerFuture = startingFuture;
+                currentFuture = startingFuture;
+            }
+        }
+        if (startingFuture != null) {
+            start(startingFuture);
+        }
+        try {
+            // the start always completes within the handshake timeout
+            return currentFuture.get();
+        } catch (ExecutionException e) {
+            return null;
+        }
+    }
+
+    private void start(CompletableFuture<WorkerProcess> startingFuture) throws InterruptedException {
+        Process process = null;
+        try {
+            final ProcessBuilder processBuilder = new ProcessBuilder(workerCommands);
+            // stderr is not part of the protocol, discard it so the child never blocks on a full pipe
+            processBuilder.redirectError(ProcessBuilder.Redirect.DISCARD);
+            final long spawnStartNanos = System.nanoTime();
+            process = processBuilder.start();
+            KeychainMetrics.getHistogram("worker.spawn").record(System.nanoTime() - spawnStartNanos);
+            final WorkerProcess workerProcess = new WorkerProcess(process);
+            startReader(workerProcess);
+            final UtilsCommandResult versionResult = send(workerProcess, null, "version").get(HANDSHAKE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            if (versionResult.getExitValue() != 0) {
+                throw new IOException("tinyencrypt worker version check failed: " + versionResult);
+            }
+            LOG.info("Started tinyencrypt worker: " + workerCommands);
+            synchronized (this) {
+                everStarted = true;
+                unsupportedBackoffMillis = 0;
+            }
+            startingFuture.complete(workerProcess);
+        } catch (IOException | ExecutionException | TimeoutException | InterruptedException e) {
+            synchronized (this) {
+                if (everStarted) {
+                    // worked before, only fall back for this call and retry the worker next time
+                    LOG.warn("Restart tinyencrypt worker failed: " + workerCommands, e);
+                } else {
+                    unsupportedBackoffMillis = Math.min(MAX_RETRY_MILLIS, Math.max(retryMillis, unsupportedBackoffMillis * 2));
+                    unsupportedUntilMillis = System.currentTimeMillis() + unsupportedBackoffMillis;
+                    LOG.warn("tinyencrypt worker mode not supported, fall back to one process per call, retry in "
+                            + unsupportedBackoffMillis + "ms: " + workerCommands, e);
+                }
+                if (workerFuture == startingFuture) {
+                    workerFuture = null;
+                }
+            }
+            if (process != null) {
+                process.destroyForcibly();
+            }
+            startingFuture.complete(null);
+            if (e instanceof InterruptedException) {
+                throw (InterruptedException) e;
+            }
+        }
+    }
+
+    private CompletableFuture<UtilsCommandResult> send(WorkerProcess workerProcess, byte[] input, String... arguments) throws IOException {
+        final WorkerRequest request = new WorkerRequest();
+        request.id = requestIdGenerator.incrementAndGet();
+        request.arguments = new ArrayList<>(Arrays.asList(arguments));
+        if ((input != null) && (input.length > 0)) {
+            request.stdin = Base64.getEncoder().encodeToString(input);
+        }
+        final CompletableFuture<UtilsCommandResult> future = new CompletableFuture<>();
+        final long startNanos = System.nanoTime();
+        final String command = arguments[0];
+        future.thenAccept(result -> KeychainMetrics.recordWorkerRequest(command, startNanos, result));
+        workerProcess.pendingRequests.put(request.id, future);
+        try {
+            if (workerProcess.exited) {
+                // its reader already failed the pending requests
+                throw new IOException("tinyencrypt worker exited");
+            }
+            synchronized (workerProcess) {
+                workerProcess.processWriter.write(GSON.toJson(request));
+                workerProcess.processWriter.write('\n');
+                workerProcess.processWriter.flush();
+            }
+        } catch (IOException e) {
+            workerProcess.pendingRequests.remove(request.id);
+            throw e;
+        }
+        return future;
+    }
+
+    private void startReader(WorkerProcess workerProcess) {
+        final Thread readerThread = new Thread(() -> {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(workerProcess.process.getInputStream(), StandardCharsets.UTF_8))) {
+                for (String line; (line = reader.readLine()) != null; ) {
+                    if (line.isEmpty() || (line.charAt(0) != '{')) {
+                        // log lines, e.g. "[INFO ] ..."
+                        continue;
+                    }
+                    final WorkerResponse response = GSON.fromJson(line, WorkerResponse.class);
+                    final CompletableFuture<UtilsCommandResult> future = (response.id == null) ? null : workerProcess.pendingRequests.remove(response.id);
+                    if (future == null) {
+                        LOG.warn("Unexpected tinyencrypt worker response id: " + response.id);
+                        continue;
+                    }
+                    future.complete(new UtilsCommandResult(
+                            (response.exitValue == null) ? -1 : response.exitValue,
+                            decodeBase64(response.stdout),
+                            decodeBase64(response.stderr)
+                    ));
+                }
+            } catch (Exception e) {
+                LOG.warn("Read tinyencrypt worker stdout failed", e);
+            }
+            workerProcess.exited = true;
+            failPendingRequests(workerProcess);
+        });
+        readerThread.setDaemon(true);
+        readerThread.setName("tinyencrypt-worker-stdout");
+        readerThread.start();
+    }
+
+    private static void failPendingRequests(WorkerProcess workerProcess) {
+        for (Long id : workerProcess.pendingRequests.keySet()) {
+            final CompletableFuture<UtilsCommandResult> future = workerProcess.pendingRequests.remove(id);
+            if (future != null) {
+                future.completeExceptionally(new IOException("tinyencrypt worker exited"));
+            }
+        }
+    }
+
+    private synchronized void scheduleIdleShutdown() {
+        if (idleFuture != null) {
+            idleFuture.cancel(false);
+        }
+        idleFuture = IDLE_SCHEDULER.schedule(() -> stop(true), idleTimeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    static byte[] decodeBase64(String value) {
+        if ((value == null) || value.isEmpty()) {
+            return new byte[0];
+        }
+        return Base64.getDecoder().decode(value);
+    }
+}
@@ -0,0 +1,91 @@
+package me.hatter.integrations.tinyencrypt;
+
+import com.google.gson.Gson;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Line-JSON worker for tinyencrypt binaries without <code>tinyencrypt worker --line-json</code>, see {@link TinyEncryptWorker}
+ * for the protocol. Each request runs one tinyencrypt process, requests run concurrently and are answered when done.
+ * <p>
+ * Only a protocol shim: tinyencrypt keeps no session between processes, so the stand-in saves neither process spawns
+ * nor PIN or touch prompts, it lets worker mode be set up and tested until tinyencrypt has a native worker.
+ * <p>
+ * Configured as <code>"workerCommand": ["java", "-cp", "tinyencrypt-cryptomator.jar", "me.hatter.integrations.tinyencrypt.TinyEncryptWorkerStandIn"]</code>,
+ * the tinyencrypt command is appended as the last argument. Stops after stdin is closed and all requests are answered.
+ */
+public class TinyEncryptWorkerStandIn {
+    private static final Gson GSON = new Gson();
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("Usage: " + TinyEncryptWorkerStandIn.class.getName() + " <tinyencrypt command>");
+            System.exit(2);
+        }
+        final String tinyencryptCommand = args[0];
+        final BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+        final Set<CompletableFuture<Void>> pendingResponses = ConcurrentHashMap.newKeySet();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))) {
+            for (String line; (line = reader.readLine()) != null; ) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                final TinyEncryptWorker.WorkerRequest request = GSON.fromJson(line, TinyEncryptWorker.WorkerRequest.class);
+                final List<String> commands = new ArrayList<>();
+                commands.add(tinyencryptCommand);
+                commands.addAll(request.arguments);
+                // a PBKDF password in the arguments is passed in the environment of the process, not in its argv
+                final CompletableFuture<Void> responseFuture = ProcessCryptoBackend.executeTinyencrypt(
+                        null,
+                        commands,
+                        TinyEncryptWorker.decodeBase64(request.stdin)
+                ).handle((result, throwable) -> {
+                    writeResponse(writer, toResponse(request.id, result, throwable));
+                    return null;
+                });
+                pendingResponses.add(responseFuture);
+                responseFuture.whenComplete((v, throwable) -> pendingResponses.remove(responseFuture));
+            }
+        }
+        CompletableFuture.allOf(pendingResponses.toArray(new CompletableFuture<?>[0])).join();
+        writer.close();
+    }
+
+    private static TinyEncryptWorker.WorkerResponse toResponse(long id, UtilsCommandResult result, Throwable throwable) {
+        final TinyEncryptWorker.WorkerResponse response = new TinyEncryptWorker.WorkerResponse();
+        response.id = id;
+        if (throwable != null) {
+            response.exitValue = -1;
+            response.stderr = Base64.getEncoder().encodeToString(String.valueOf(throwable).getBytes(StandardCharsets.UTF_8));
+            return response;
+        }
+        response.exitValue = result.getExitValue();
+        response.stdout = Base64.getEncoder().encodeToString(result.getStdout());
+        response.stderr = Base64.getEncoder().encodeToString(result.getStderr());
+        return response;
+    }
+
+    private static void writeResponse(BufferedWriter writer, TinyEncryptWorker.WorkerResponse response) {
+        synchronized (writer) {
+            try {
+                writer.write(GSON.toJson(response));
+                writer.write('\n');
+                writer.flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
@@ -8,13 +8,28 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicReference;
-import java.util.stream.Collectors;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * @author hatterjiang
@@ -27,8 +42,24 @@ public class Utils {
     private static final File TINYENCRYPT_CONFIG_FILE2 = new File(USER_HOME, ".config/cryptomator/tinyencrypt_config.json");
     private static final File DEFAULT_ENCRYPTION_KEY_BASE_PATH = new File(USER_HOME, ".config/cryptomator/tinyencrypt_keys/");
 
-    private static final PasswordCache PBKDF_PASSWORD_CACHE_MAP = new PasswordCache(TimeUnit.HOURS.toMillis(1));
-    private static final PasswordCache VAULT_PASSWORD_CACHE_MAP = new PasswordCache(TimeUnit.HOURS.toMillis(1));
+    private static final PasswordCache VAULT_PASSWORD_CACHE_MAP = new PasswordCache("vault");
+    /**
+     * At most one tinyencrypt process per vault, loads join the in-flight call, stores wait for it
+     */
+    private static final SingleFlight<SecretBuffer> VAULT_PASSWORD_FLIGHTS = new SingleFlight<>(SecretBuffer::copy, SecretBuffer::wipe);
+    private static final Gson GSON = new Gson();
+    private static final StackWalker STACK_WALKER = StackWalker.getInstance();
+    private static final String KEYCHAIN_MANAGER_CLASS_NAME = "org.cryptomator.common.keychain.KeychainManager";
+    private static final int MAX_CALLER_STACK_DEPTH = 16;
+    private static final ProcessCryptoBackend PROCESS_CRYPTO_BACKEND = new ProcessCryptoBackend();
+    private static final JcaCryptoBackend JCA_CRYPTO_BACKEND = new JcaCryptoBackend(PROCESS_CRYPTO_BACKEND);
+    private static final Map<String, KeyStore> KEY_STORES = new ConcurrentHashMap<>();
+    private static final WriteBehindQueue WRITE_BEHIND_QUEUE = new WriteBehindQueue();
+    private static final SessionBundle SESSION_BUNDLE = new SessionBundle(
+            new File(USER_HOME, ".config/cryptomator/tinyencrypt_session.bundle"), PROCESS_CRYPTO_BACKEND,
+            VAULT_PASSWORD_CACHE_MAP, PROCESS_CRYPTO_BACKEND.getPbkdfPasswordCache(), JCA_CRYPTO_BACKEND.getDerivedKeyCache());
+    private static final FileAttribute<Set<PosixFilePermission>> OWNER_ONLY_FILE_ATTRIBUTE = PosixFilePermissions.asFileAttribute(
+            EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE));
 
     public static boolean isCheckPassphraseStored() {
         final StackTraceElement stack = getCallerStackTrace();
@@ -40,14 +71,14 @@ public class Utils {
 
     public static StackTraceElement getCallerStackTrace() {
         // org.cryptomator.common.keychain.KeychainManager :: isPassphraseStored
-        final StackTraceElement[] stackTraceElements = Thread.currentThread().getStackTrace();
-        for (int i = 0; i < stackTraceElements.length; i++) {
-            final StackTraceElement stack = stackTraceElements[i];
-            if ("org.cryptomator.common.keychain.KeychainManager".equals(stack.getClassName())) {
-                return stack;
-            }
-        }
-        return null;
+        // walk lazily and stop at the first matching frame, instead of capturing the whole stack,
+        // KeychainManager calls the provider directly so it is always within the top frames
+        return STACK_WALKER.walk(frames -> frames
+                .limit(MAX_CALLER_STACK_DEPTH)
+                .filter(frame -> KEYCHAIN_MANAGER_CLASS_NAME.equals(frame.getClassName()))
+                .findFirst()
+                .map(StackWalker.StackFrame::toStackTraceElement)
+                .orElse(null));
     }
 
     public static boolean checkTinyencryptReady(TinyEncryptConfig tinyencryptConfig) {
@@ -55,60 +86,284 @@ public class Utils {
             return false;
         }
         try {
-            final UtilsCommandResult versionResult = runTinyencrypt(tinyencryptConfig, null, "version");
-            if (versionResult.getExitValue() == 0) {
-                return true;
-            }
-            LOG.warn("Check tinyencrypt not success: " + versionResult);
-            return false;
+            return getCryptoBackend(tinyencryptConfig).checkReady(tinyencryptConfig);
         } catch (KeychainAccessException e) {
-            LOG.warn("Check tinyencrypt failed", e);
+            LOG.warn("Check crypto backend failed", e);
             return false;
         }
     }
 
+    /**
+     * Quick check without reading the config file, e.g. for {@link TinyEncryptAccessProvider#isSupported()}
+     */
+    public static boolean isTinyencryptConfigPresent() {
+        return TINYENCRYPT_CONFIG_FILE1.isFile() || TINYENCRYPT_CONFIG_FILE2.isFile();
+    }
+
     public static TinyEncryptConfig loadTinyencryptConfig() throws KeychainAccessException {
         final File configFile = getTinyencryptConfigFile();
-        final String configJson = readFile(configFile);
+        return parseTinyencryptConfig(configFile, readFile(configFile));
+    }
+
+    static TinyEncryptConfig parseTinyencryptConfig(File configFile, String configJson) throws KeychainAccessException {
         final TinyEncryptConfig tinyencryptConfig;
         try {
-            tinyencryptConfig = new Gson().fromJson(configJson, TinyEncryptConfig.class);
+            tinyencryptConfig = GSON.fromJson(configJson, TinyEncryptConfig.class);
         } catch (Exception e) {
             throw new KeychainAccessException("Parse tinyencrypt config file: " + configFile + " failed", e);
         }
-        if (StringUtils.isEmpty(tinyencryptConfig.getKeyId())) {
+        if ((tinyencryptConfig == null) || StringUtils.isEmpty(tinyencryptConfig.getKeyId())) {
             throw new KeychainAccessException("tinyencrypt key ID cannot be empty");
         }
         return tinyencryptConfig;
     }
 
-    public static void deletePassword(TinyEncryptConfig tinyencryptConfig, String vault) {
-        final File keyFile = getKeyFile(tinyencryptConfig, vault);
-        if (keyFile.exists() && keyFile.isFile()) {
-            keyFile.delete();
+    /**
+     * Flush or resize caches affected by a reloaded config, cached entries not affected are kept
+     */
+    static void applyConfigChange(TinyEncryptConfig oldConfig, TinyEncryptConfig newConfig) {
+        if (!BooleanUtils.isTrue(newConfig.getEnableVaultPasswordCache())
+                || !Objects.equals(oldConfig.getEncryptKeyBasePath(), newConfig.getEncryptKeyBasePath())
+                || !Objects.equals(oldConfig.getKeyStoreFormat(), newConfig.getKeyStoreFormat())) {
+            LOG.info("Flush vault password cache");
+            VAULT_PASSWORD_CACHE_MAP.clear();
+        }
+        if (!BooleanUtils.isTrue(newConfig.getEnablePbkdfEncryptionPassword())) {
+            JCA_CRYPTO_BACKEND.forgetAll();
         }
-        PBKDF_PASSWORD_CACHE_MAP.removePassword(tinyencryptConfig, vault);
+        if (!Objects.equals(oldConfig.getPasswordCacheMaxSize(), newConfig.getPasswordCacheMaxSize())
+                || !Objects.equals(oldConfig.getPasswordCacheIdleTimeoutSeconds(), newConfig.getPasswordCacheIdleTimeoutSeconds())
+                || !Objects.equals(oldConfig.getPasswordCacheMaxAgeSeconds(), newConfig.getPasswordCacheMaxAgeSeconds())) {
+            LOG.info("Resize password caches");
+            for (PasswordCache passwordCache : PasswordCache.getPasswordCaches()) {
+                passwordCache.reconfigure(newConfig);
+            }
+        }
+        SESSION_BUNDLE.reconfigure(newConfig);
+    }
+
+    /**
+     * Delete keys of vaults whose write-behind write was lost, see {@link WriteBehindQueue}
+     */
+    public static void replayWriteBehindJournal(TinyEncryptConfig tinyencryptConfig) {
+        WRITE_BEHIND_QUEUE.replay(tinyencryptConfig);
+    }
+
+    /**
+     * Refill password caches from the session bundle with one decrypt, see {@link SessionBundle}
+     */
+    public static void restoreSessionBundle(TinyEncryptConfig tinyencryptConfig) {
+        SESSION_BUNDLE.restore(tinyencryptConfig, vault -> {
+            try {
+                return getKeyStore(tinyencryptConfig).exists(vault);
+            } catch (KeychainAccessException e) {
+                LOG.warn("Check stored vault: " + vault + " failed", e);
+                return false;
+            }
+        });
+        if (!BooleanUtils.isTrue(tinyencryptConfig.getEnableVaultPasswordCache())) {
+            VAULT_PASSWORD_CACHE_MAP.clear();
+        }
+    }
+
+    public static void deletePassword(TinyEncryptConfig tinyencryptConfig, String vault) throws KeychainAccessException {
+        WRITE_BEHIND_QUEUE.cancel(tinyencryptConfig, vault);
+        getKeyStore(tinyencryptConfig).delete(vault);
+        getCryptoBackend(tinyencryptConfig).forget(tinyencryptConfig, vault);
         VAULT_PASSWORD_CACHE_MAP.removePassword(tinyencryptConfig, vault);
     }
 
-    public static String loadPassword(TinyEncryptConfig tinyencryptConfig, String vault) throws KeychainAccessException {
-        final String cachedVaultPassword = VAULT_PASSWORD_CACHE_MAP.getPassword(tinyencryptConfig, vault);
-        if (BooleanUtils.isTrue(tinyencryptConfig.getEnableVaultPasswordCache()) && (cachedVaultPassword != null)) {
-            return cachedVaultPassword;
+    /**
+     * @return vault password, owned by the caller
+     */
+    public static char[] loadPassword(TinyEncryptConfig tinyencryptConfig, String vault) throws KeychainAccessException {
+        if (BooleanUtils.isTrue(tinyencryptConfig.getEnableVaultPasswordCache())) {
+            final char[] cachedVaultPassword = VAULT_PASSWORD_CACHE_MAP.getPassword(tinyencryptConfig, vault);
+            if (cachedVaultPassword != null) {
+                return cachedVaultPassword;
+            }
+        }
+        final char[] queuedVaultPassword = WRITE_BEHIND_QUEUE.getPassword(vault);
+        if (queuedVaultPassword != null) {
+            return queuedVaultPassword;
+        }
+        final KeyStore keyStore = getKeyStore(tinyencryptConfig);
+        if (!keyStore.exists(vault)) {
+            throw new KeychainAccessException("Password key: " + keyStore.getLocation(vault) + " not found");
         }
-        final File keyFile = getKeyFile(tinyencryptConfig, vault);
         if (isCheckPassphraseStored()) {
-            LOG.info("Check passphrase stored: " + vault + ", exists: " + keyFile.exists());
-            if (keyFile.exists()) {
-                // this is only for check passphrase stored
-                return "123456";
+            LOG.info("Check passphrase stored: " + vault + ", exists: true");
+            // this is only for check passphrase stored
+            return "123456".toCharArray();
+        }
+        try (SecretBuffer vaultPassword = VAULT_PASSWORD_FLIGHTS.execute(vault, () -> loadPasswordFromKeyFile(tinyencryptConfig, vault))) {
+            return toCharArray(vaultPassword);
+        }
+    }
+
+    public static void storePassword(TinyEncryptConfig tinyencryptConfig, String vault, String name, CharSequence password) throws KeychainAccessException {
+        final SecretBuffer storedPassword = VAULT_PASSWORD_FLIGHTS.executeExclusive(vault, () -> {
+            if (BooleanUtils.isTrue(tinyencryptConfig.getEnableVaultPasswordCache())) {
+                LOG.info("Store vault password to cache");
+                VAULT_PASSWORD_CACHE_MAP.putPassword(tinyencryptConfig, vault, password);
+            }
+            final SecretBuffer passwordBuffer = SecretBuffer.wrap(password);
+            try {
+                if (BooleanUtils.isTrue(tinyencryptConfig.getEnableWriteBehind())) {
+                    WRITE_BEHIND_QUEUE.enqueue(tinyencryptConfig, vault, name, passwordBuffer);
+                } else {
+                    final String encryptedPassword = getCryptoBackend(tinyencryptConfig).encrypt(tinyencryptConfig, vault, passwordBuffer, name);
+                    getKeyStore(tinyencryptConfig).write(vault, encryptedPassword,
+                            BooleanUtils.isNotFalse(tinyencryptConfig.getSyncKeyFileWrites()));
+                }
+            } catch (KeychainAccessException | RuntimeException e) {
+                passwordBuffer.wipe();
+                throw e;
+            }
+            // loadPassword waiting for this store gets a copy of the stored password
+            return passwordBuffer;
+        });
+        storedPassword.wipe();
+    }
+
+    /**
+     * Load passwords of many vaults, cached vaults first, the rest by {@link CryptoBackend#decryptAll(TinyEncryptConfig, Map)}.
+     * tinyencrypt has no multi-value decrypt, every vault not cached takes one decrypt, and one PIN or touch
+     * unless the token or its agent keeps the unlock, see {@link ProcessCryptoBackend#decryptAll(TinyEncryptConfig, Map)}.
+     * Vaults without key file or failed to decrypt are logged and left out of the result.
+     *
+     * @param tinyencryptConfig tinyencrypt config
+     * @param vaults            vaults to load, <code>null</code> for all key files under <code>encryptKeyBasePath</code>
+     * @return vault passwords owned by the caller, also stored to vault password cache when enabled
+     */
+    public static Map<String, char[]> loadPasswords(TinyEncryptConfig tinyencryptConfig, Collection<String> vaults) throws KeychainAccessException {
+        final Map<String, SingleFlight.Flight<SecretBuffer>> vaultFlights = new LinkedHashMap<>();
+        final List<String> inFlightVaults = new ArrayList<>();
+        beginLoadPasswords(tinyencryptConfig, (vaults == null) ? listStoredVaults(tinyencryptConfig) : vaults, vaultFlights, inFlightVaults);
+        final Map<String, char[]> vaultPasswords = new LinkedHashMap<>();
+        final Map<String, SecretBuffer> loadedPasswords = loadPasswords(tinyencryptConfig, vaultFlights, inFlightVaults);
+        try {
+            for (Map.Entry<String, SecretBuffer> vaultPassword : loadedPasswords.entrySet()) {
+                vaultPasswords.put(vaultPassword.getKey(), toCharArray(vaultPassword.getValue()));
+            }
+        } finally {
+            wipeAll(loadedPasswords);
+        }
+        return vaultPasswords;
+    }
+
+    /**
+     * Load passwords of <code>prefetchVaults</code> or all stored vaults to vault password cache in background,
+     * <code>loadPassword</code> of a vault still being loaded waits for the background result.
+     */
+    public static void prefetchPasswords(TinyEncryptConfig tinyencryptConfig) {
+        final boolean prefetchAllVaults = BooleanUtils.isTrue(tinyencryptConfig.getPrefetchAllVaults());
+        final List<String> prefetchVaults = tinyencryptConfig.getPrefetchVaults();
+        if (!prefetchAllVaults && ((prefetchVaults == null) || prefetchVaults.isEmpty())) {
+            return;
+        }
+        if (!BooleanUtils.isTrue(tinyencryptConfig.getEnableVaultPasswordCache())) {
+            LOG.warn("Skip prefetch vault passwords, vault password cache is not enabled");
+            return;
+        }
+        // flights are registered before returning, so loadPassword never races the background thread
+        final Map<String, SingleFlight.Flight<SecretBuffer>> vaultFlights = new LinkedHashMap<>();
+        try {
+            beginLoadPasswords(tinyencryptConfig, prefetchAllVaults ? listStoredVaults(tinyencryptConfig) : prefetchVaults, vaultFlights, null);
+        } catch (KeychainAccessException e) {
+            LOG.warn("Prefetch vault passwords failed", e);
+            return;
+        }
+        if (vaultFlights.isEmpty()) {
+            return;
+        }
+        final Thread prefetchThread = new Thread(() -> {
+            LOG.info("Prefetch vault passwords: " + vaultFlights.keySet());
+            try {
+                wipeAll(loadPasswords(tinyencryptConfig, vaultFlights, Collections.emptyList()));
+            } catch (Exception e) {
+                LOG.warn("Prefetch vault passwords failed", e);
+            }
+        });
+        prefetchThread.setDaemon(true);
+        prefetchThread.setName("tinyencrypt-prefetch");
+        prefetchThread.start();
+    }
+
+    private static void beginLoadPasswords(TinyEncryptConfig tinyencryptConfig, Collection<String> vaults,
+                                           Map<String, SingleFlight.Flight<SecretBuffer>> vaultFlights, List<String> inFlightVaults) {
+        for (String vault : vaults) {
+            final SingleFlight.Flight<SecretBuffer> vaultFlight = VAULT_PASSWORD_FLIGHTS.tryBegin(vault);
+            if (vaultFlight != null) {
+                vaultFlights.put(vault, vaultFlight);
+            } else if (inFlightVaults != null) {
+                inFlightVaults.add(vault);
             }
         }
-        if (!keyFile.isFile()) {
-            throw new KeychainAccessException("Password key file: " + keyFile + " not found");
+    }
+
+    private static Map<String, SecretBuffer> loadPasswords(TinyEncryptConfig tinyencryptConfig, Map<String, SingleFlight.Flight<SecretBuffer>> vaultFlights,
+                                                           List<String> inFlightVaults) throws KeychainAccessException {
+        final Map<String, SecretBuffer> vaultPasswords = new LinkedHashMap<>();
+        try {
+            final Map<String, String> encryptedKeys = new LinkedHashMap<>();
+            final boolean enableVaultPasswordCache = BooleanUtils.isTrue(tinyencryptConfig.getEnableVaultPasswordCache());
+            for (String vault : vaultFlights.keySet()) {
+                char[] cachedVaultPassword = enableVaultPasswordCache ? VAULT_PASSWORD_CACHE_MAP.getPassword(tinyencryptConfig, vault) : null;
+                if (cachedVaultPassword == null) {
+                    cachedVaultPassword = WRITE_BEHIND_QUEUE.getPassword(vault);
+                }
+                if (cachedVaultPassword != null) {
+                    vaultPasswords.put(vault, SecretBuffer.wrap(cachedVaultPassword, 0, cachedVaultPassword.length));
+                    Arrays.fill(cachedVaultPassword, '\0');
+                    continue;
+                }
+                final KeyStore keyStore = getKeyStore(tinyencryptConfig);
+                try {
+                    final String encryptedKey = keyStore.read(vault);
+                    if (encryptedKey == null) {
+                        LOG.warn("Password key: " + keyStore.getLocation(vault) + " not found, skip vault: " + vault);
+                        continue;
+                    }
+                    encryptedKeys.put(vault, encryptedKey);
+                } catch (KeychainAccessException e) {
+                    // e.g. deleted by another process after the index was read
+                    LOG.warn("Skip vault: " + vault, e);
+                }
+            }
+            LOG.info("Load passwords for " + encryptedKeys.size() + " vault(s), " + vaultPasswords.size() + " cached");
+
+            final Map<String, SecretBuffer> decryptedPasswords = getCryptoBackend(tinyencryptConfig).decryptAll(tinyencryptConfig, encryptedKeys);
+            if (enableVaultPasswordCache) {
+                LOG.info("Store " + decryptedPasswords.size() + " vault password(s) to cache");
+                decryptedPasswords.forEach((vault, vaultPassword) -> VAULT_PASSWORD_CACHE_MAP.putPassword(tinyencryptConfig, vault, vaultPassword));
+            }
+            vaultPasswords.putAll(decryptedPasswords);
+        } catch (KeychainAccessException | RuntimeException e) {
+            wipeAll(vaultPasswords);
+            vaultPasswords.clear();
+            throw e;
+        } finally {
+            // vaults not loaded finish with null, waiters then load them by themselves
+            vaultFlights.forEach((vault, vaultFlight) -> VAULT_PASSWORD_FLIGHTS.finish(vault, vaultFlight, vaultPasswords.get(vault)));
+        }
+        for (String vault : inFlightVaults) {
+            try {
+                vaultPasswords.put(vault, VAULT_PASSWORD_FLIGHTS.execute(vault, () -> loadPasswordFromKeyFile(tinyencryptConfig, vault)));
+            } catch (KeychainAccessException e) {
+                LOG.warn("Load vault: " + vault + " failed", e);
+            }
+        }
+        return vaultPasswords;
+    }
+
+    private static SecretBuffer loadPasswordFromKeyFile(TinyEncryptConfig tinyencryptConfig, String vault) throws KeychainAccessException {
+        final KeyStore keyStore = getKeyStore(tinyencryptConfig);
+        final String encryptedKey = keyStore.read(vault);
+        if (encryptedKey == null) {
+            throw new KeychainAccessException("Password key: " + keyStore.getLocation(vault) + " not found");
         }
-        final String encryptedKey = readFile(keyFile);
-        final String vaultPassword = decrypt(tinyencryptConfig, vault, encryptedKey);
+        final SecretBuffer vaultPassword = getCryptoBackend(tinyencryptConfig).decrypt(tinyencryptConfig, vault, encryptedKey);
         if (BooleanUtils.isTrue(tinyencryptConfig.getEnableVaultPasswordCache())) {
             LOG.info("Store vault password to cache");
             VAULT_PASSWORD_CACHE_MAP.putPassword(tinyencryptConfig, vault, vaultPassword);
@@ -116,229 +371,278 @@ public class Utils {
         return vaultPassword;
     }
 
-    public static void storePassword(TinyEncryptConfig tinyencryptConfig, String vault, String name, CharSequence password) throws KeychainAccessException {
-        if (BooleanUtils.isTrue(tinyencryptConfig.getEnableVaultPasswordCache())) {
-            LOG.info("Store vault password to cache");
-            VAULT_PASSWORD_CACHE_MAP.putPassword(tinyencryptConfig, vault, password.toString());
+    /**
+     * List vaults which have a key file under <code>encryptKeyBasePath</code>
+     */
+    public static List<String> listStoredVaults(TinyEncryptConfig tinyencryptConfig) throws KeychainAccessException {
+        return getKeyStore(tinyencryptConfig).listVaults();
+    }
+
+    /**
+     * Chars other than <code>[a-zA-Z0-9.-]</code> are escaped, <code>_</code> as <code>__</code>, up to 0xFF as
+     * <code>_</code> and 2 hex digits, above as <code>_u</code> and 4 hex digits, reversed by {@link #decodeKeyFileName(String)}
+     */
+    static String getKeyFileName(String vault) {
+        final StringBuilder sb = new StringBuilder(vault.length());
+        for (char c : vault.toCharArray()) {
+            if (isKeyFileNameChar(c)) {
+                sb.append(c);
+            } else if (c == '_') {
+                sb.append("__");
+            } else if (c <= 0xFF) {
+                sb.append('_');
+                appendHex(sb, c, 2);
+            } else {
+                sb.append("_u");
+                appendHex(sb, c, 4);
+            }
         }
-        final String encryptedPassword = encrypt(tinyencryptConfig, vault, password.toString(), name);
-        final File keyFile = getKeyFile(tinyencryptConfig, vault);
-        writeFile(keyFile, encryptedPassword);
+        return sb.toString();
     }
 
-    private static File getKeyFile(TinyEncryptConfig tinyencryptConfig, String vault) {
+    /**
+     * Name of key files written before chars above 0xFF were escaped as <code>_u</code>,
+     * their 4 hex digits could not be told from a 2 hex digits escape and 2 plain hex chars
+     *
+     * @return legacy key file name, <code>null</code> when it is the same as {@link #getKeyFileName(String)}
+     */
+    static String getLegacyKeyFileName(String vault) {
+        boolean hasWideChar = false;
         final StringBuilder sb = new StringBuilder(vault.length());
         for (char c : vault.toCharArray()) {
-            if ((c >= 'a' && c <= 'z')
-                    || (c >= 'A' && c <= 'Z')
-                    || (c >= '0' && c <= '9')
-                    || (c == '-' || c == '.')) {
+            if (isKeyFileNameChar(c)) {
                 sb.append(c);
             } else if (c == '_') {
                 sb.append("__");
             } else {
+                hasWideChar |= (c > 0xFF);
                 sb.append('_');
-                final String hex = Integer.toHexString(c);
-                if (hex.length() % 2 != 0) {
-                    sb.append('0');
-                }
-                sb.append(hex);
+                appendHex(sb, c, (c <= 0xFF) ? 2 : 4);
             }
         }
-        return new File(getEncryptKeyBasePath(tinyencryptConfig), sb.toString());
+        return hasWideChar ? sb.toString() : null;
     }
 
-    private static String readFile(File file) throws KeychainAccessException {
-        final StringBuilder sb = new StringBuilder((int) file.length());
-        try (final BufferedReader reader = new BufferedReader(new FileReader(file, StandardCharsets.UTF_8))) {
-            for (int b; ((b = reader.read()) != -1); ) {
-                sb.append((char) b);
+    /**
+     * Reverse of {@link #getKeyFileName(String)}
+     *
+     * @return vault, <code>null</code> when <code>keyFileName</code> is not a name made by {@link #getKeyFileName(String)}
+     */
+    static String decodeKeyFileName(String keyFileName) {
+        final StringBuilder sb = new StringBuilder(keyFileName.length());
+        for (int i = 0; i < keyFileName.length(); i++) {
+            final char c = keyFileName.charAt(i);
+            if (c != '_') {
+                if (!isKeyFileNameChar(c)) {
+                    return null;
+                }
+                sb.append(c);
+            } else if ((i + 1 < keyFileName.length()) && (keyFileName.charAt(i + 1) == '_')) {
+                sb.append('_');
+                i++;
+            } else {
+                final boolean wideChar = (i + 1 < keyFileName.length()) && (keyFileName.charAt(i + 1) == 'u');
+                final int hexStart = wideChar ? (i + 2) : (i + 1);
+                final int hexDigits = wideChar ? 4 : 2;
+                final int escapedChar = parseHex(keyFileName, hexStart, hexDigits);
+                if ((escapedChar < 0) || isKeyFileNameChar((char) escapedChar) || (escapedChar == '_')
+                        || (wideChar != (escapedChar > 0xFF))) {
+                    // not escaped by getKeyFileName, e.g. "_41" or "_u00e9"
+                    return null;
+                }
+                sb.append((char) escapedChar);
+                i = hexStart + hexDigits - 1;
             }
-            return sb.toString();
-        } catch (IOException e) {
-            throw new KeychainAccessException("Read file: " + file + " failed", e);
         }
+        return sb.toString();
     }
 
-    private static void writeFile(File file, String content) throws KeychainAccessException {
-        try (FileOutputStream fos = new FileOutputStream(file)) {
-            fos.write(content.getBytes(StandardCharsets.UTF_8));
-        } catch (Exception e) {
-            throw new KeychainAccessException("Write file: " + file + " failed", e);
-        }
+    private static boolean isKeyFileNameChar(char c) {
+        return (c >= 'a' && c <= 'z')
+                || (c >= 'A' && c <= 'Z')
+                || (c >= '0' && c <= '9')
+                || (c == '-' || c == '.');
     }
 
-    private static String decrypt(TinyEncryptConfig tinyencryptConfig, String vault, String input) throws KeychainAccessException {
-        List<String> arguments = new ArrayList<>();
-        arguments.add("simple-decrypt");
-        arguments.add("--value-stdin");
-        arguments.add("--pin");
-        arguments.add("#INPUT#");
-
-        boolean inputNewPassword = false;
-        String cachedPassword = PBKDF_PASSWORD_CACHE_MAP.getPassword(tinyencryptConfig, vault);
-        if (StringUtils.isNotEmpty(cachedPassword)) {
-            arguments.add("--password");
-            arguments.add(cachedPassword);
-        } else {
-            inputNewPassword = true;
-            arguments.add("--outputs-password");
-        }
-
-        final UtilsCommandResult decryptResult = runTinyencrypt(
-                tinyencryptConfig,
-                input.getBytes(StandardCharsets.UTF_8),
-                arguments.toArray(new String[0])
-        );
-        if (decryptResult.getExitValue() != 0) {
-            throw new KeychainAccessException("tinyencrypt decrypt failed: " + decryptResult);
-        }
-        String stdout = new String(decryptResult.getStdout(), StandardCharsets.UTF_8);
-        stdout = stdout.lines().filter(ln -> !ln.startsWith("[INFO ]")).collect(Collectors.joining());
-        TinyEncryptResult result = new Gson().fromJson(stdout, TinyEncryptResult.class);
-        if (inputNewPassword && StringUtils.isNotEmpty(result.getPassword())) {
-            LOG.info("Store PBKDF password to cache");
-            PBKDF_PASSWORD_CACHE_MAP.putPassword(tinyencryptConfig, vault, result.getPassword());
-        }
-        return result.getResult();
-    }
-
-    private static String encrypt(TinyEncryptConfig tinyencryptConfig, String vault, String input, String name) throws KeychainAccessException {
-        List<String> arguments = new ArrayList<>();
-        arguments.add("simple-encrypt");
-        arguments.add("--key-filter");
-        arguments.add(tinyencryptConfig.getKeyId());
-        arguments.add("--value-stdin");
-
-        boolean inputNewPassword = false;
-        if (BooleanUtils.isTrue(tinyencryptConfig.getEnablePbkdfEncryptionPassword())) {
-            arguments.add("--with-pbkdf-encryption");
-            String cachedPassword = PBKDF_PASSWORD_CACHE_MAP.getPassword(tinyencryptConfig, vault);
-            if (StringUtils.isNotEmpty(cachedPassword)) {
-                arguments.add("--password");
-                arguments.add(cachedPassword);
-            } else {
-                inputNewPassword = true;
-                arguments.add("--outputs-password");
-            }
+    private static void appendHex(StringBuilder sb, char c, int digits) {
+        final String hex = Integer.toHexString(c);
+        for (int i = hex.length(); i < digits; i++) {
+            sb.append('0');
         }
+        sb.append(hex);
+    }
 
-        final UtilsCommandResult encryptResult = runTinyencrypt(
-                tinyencryptConfig,
-                input.getBytes(StandardCharsets.UTF_8),
-                arguments.toArray(new String[0])
-        );
-        if (encryptResult.getExitValue() != 0) {
-            throw new KeychainAccessException("tinyencrypt encrypt failed: " + encryptResult);
+    /**
+     * @return value of <code>digits</code> lower case hex digits at <code>start</code>, -1 when there are none
+     */
+    private static int parseHex(String s, int start, int digits) {
+        if (start + digits > s.length()) {
+            return -1;
         }
-        TinyEncryptResult result = new Gson().fromJson(new String(encryptResult.getStdout(), StandardCharsets.UTF_8), TinyEncryptResult.class);
-        if (inputNewPassword && StringUtils.isNotEmpty(result.getPassword())) {
-            LOG.info("Store PBKDF password to cache");
-            PBKDF_PASSWORD_CACHE_MAP.putPassword(tinyencryptConfig, vault, result.getPassword());
+        int value = 0;
+        for (int i = start; i < start + digits; i++) {
+            final char c = s.charAt(i);
+            final int digit = Character.digit(c, 16);
+            if ((digit < 0) || Character.isUpperCase(c)) {
+                return -1;
+            }
+            value = value * 16 + digit;
         }
-
-        return result.getResult();
+        return value;
     }
 
-    private static UtilsCommandResult runTinyencrypt(TinyEncryptConfig tinyencryptConfig, byte[] input, String... arguments) throws KeychainAccessException {
-        final String tinyencryptCmd = getTinyencryptCommand(tinyencryptConfig);
-        final List<String> commands = new ArrayList<>();
-        commands.add(tinyencryptCmd);
-        if ((arguments == null) || (arguments.length == 0)) {
-            throw new KeychainAccessException("tinyencrypt not arguments");
+    static String readFile(File file) throws KeychainAccessException {
+        try {
+            return Files.readString(file.toPath(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new KeychainAccessException("Read file: " + file + " failed", e);
         }
-        commands.addAll(Arrays.asList(arguments));
+    }
+
+    /**
+     * Write <code>content</code> to a temp file in the same dir, then atomically move it over <code>file</code>,
+     * readers see either the old or the new content, never a partial file
+     *
+     * @param sync fsync the temp file before the move and the dir after it
+     */
+    static void writeFile(File file, String content, boolean sync) throws KeychainAccessException {
+        final Path path = file.toPath().toAbsolutePath();
+        final Path dir = path.getParent();
+        Path tempPath = null;
         try {
-            final ProcessBuilder processBuilder = new ProcessBuilder(commands);
-            final Process process = processBuilder.start();
-
-            // ----- STD IN -----
-            final AtomicReference<IOException> inThreadException = new AtomicReference<>();
-            final Thread inThread = new Thread(() -> {
-                if ((input != null) && (input.length > 0)) {
-                    try (OutputStream processIn = process.getOutputStream()) {
-                        processIn.write(input);
-                    } catch (IOException e) {
-                        inThreadException.set(e);
-                    }
+            // '~' never appears in key file names, so temp files are not taken as key files
+            tempPath = dir.getFileSystem().supportedFileAttributeViews().contains("posix")
+                    ? Files.createTempFile(dir, path.getFileName() + "~", ".tmp", OWNER_ONLY_FILE_ATTRIBUTE)
+                    : Files.createTempFile(dir, path.getFileName() + "~", ".tmp");
+            try (FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.WRITE)) {
+                final ByteBuffer buffer = ByteBuffer.wrap(content.getBytes(StandardCharsets.UTF_8));
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                if (sync) {
+                    channel.force(true);
                 }
-            });
-            inThread.setDaemon(true);
-            inThread.setName("tinyencrypt-stdin");
-
-            // ----- STD OUT -----
-            final AtomicReference<IOException> outThreadException = new AtomicReference<>();
-            final ByteArrayOutputStream outBaos = new ByteArrayOutputStream();
-            final Thread outThread = getThread(process.getInputStream(), outBaos, outThreadException, "tinyencrypt-stdout");
-            // ----- STD ERR -----
-            final AtomicReference<IOException> errThreadException = new AtomicReference<>();
-            final ByteArrayOutputStream errBaos = new ByteArrayOutputStream();
-            final Thread errThread = getThread(process.getErrorStream(), errBaos, errThreadException, "tinyencrypt-stderr");
-
-            inThread.start();
-            outThread.start();
-            errThread.start();
-
-            inThread.join();
-            if (inThreadException.get() != null) {
-                throw inThreadException.get();
             }
-            outThread.join();
-            if (outThreadException.get() != null) {
-                throw outThreadException.get();
+            try {
+                Files.move(tempPath, path, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                LOG.warn("Atomic move not supported, replace file: " + file);
+                Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING);
             }
-            errThread.join();
-            if (errThreadException.get() != null) {
-                throw errThreadException.get();
+            tempPath = null;
+            if (sync) {
+                syncDir(dir);
             }
-            final int exitValue = process.waitFor();
+        } catch (IOException e) {
+            throw new KeychainAccessException("Write file: " + file + " failed", e);
+        } finally {
+            if (tempPath != null) {
+                try {
+                    Files.deleteIfExists(tempPath);
+                } catch (IOException e) {
+                    LOG.warn("Delete temp file: " + tempPath + " failed", e);
+                }
+            }
+        }
+    }
 
-            return new UtilsCommandResult(exitValue, outBaos.toByteArray(), errBaos.toByteArray());
-        } catch (Exception e) {
-            throw new KeychainAccessException("Run tinyencrypt command failed: " + commands, e);
+    private static void syncDir(Path dir) {
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // e.g. Windows, dirs cannot be opened
+            LOG.debug("Sync dir: " + dir + " failed: " + e);
         }
     }
 
-    private static Thread getThread(InputStream is, ByteArrayOutputStream outBaos, AtomicReference<IOException> outThreadException, String name) {
-        final Thread outThread = new Thread(() -> {
-            int b;
-            try {
-                while ((b = is.read()) != -1) {
-                    outBaos.write(b);
-                }
-            } catch (IOException e) {
-                outThreadException.set(e);
-            }
-        });
-        outThread.setDaemon(true);
-        outThread.setName(name);
-        return outThread;
+    private static void wipeAll(Map<String, SecretBuffer> secretBuffers) {
+        secretBuffers.values().forEach(SecretBuffer::wipe);
+    }
+
+    static char[] toCharArray(SecretBuffer secretBuffer) throws KeychainAccessException {
+        final char[] chars = secretBuffer.toCharArray();
+        if (chars == null) {
+            throw new KeychainAccessException("Secret buffer is wiped");
+        }
+        return chars;
     }
 
-    private static String getTinyencryptCommand(TinyEncryptConfig tinyencryptConfig) {
+    static String getTinyencryptCommand(TinyEncryptConfig tinyencryptConfig) {
         if ((tinyencryptConfig != null) && StringUtils.isNoneEmpty(tinyencryptConfig.getTinyencryptCommand())) {
             return tinyencryptConfig.getTinyencryptCommand();
         }
         return DEFAULT_TINY_ENCRYPT_COMMAND;
     }
 
-    private static File getEncryptKeyBasePath(TinyEncryptConfig tinyencryptConfig) {
-        final File encryptKeyBase;
+    static CryptoBackend getCryptoBackend(TinyEncryptConfig tinyencryptConfig) throws KeychainAccessException {
+        final String cryptoBackend = getCryptoBackendName(tinyencryptConfig);
+        if (CryptoBackend.BACKEND_PROCESS.equals(cryptoBackend)) {
+            return PROCESS_CRYPTO_BACKEND;
+        }
+        if (CryptoBackend.BACKEND_JCA.equals(cryptoBackend)) {
+            return JCA_CRYPTO_BACKEND;
+        }
+        throw new KeychainAccessException("Unknown crypto backend: " + cryptoBackend);
+    }
+
+    /**
+     * New backend with its own PBKDF password caches, e.g. when one process encrypts with two configs
+     */
+    static CryptoBackend newCryptoBackend(TinyEncryptConfig tinyencryptConfig) throws KeychainAccessException {
+        final String cryptoBackend = getCryptoBackendName(tinyencryptConfig);
+        if (CryptoBackend.BACKEND_PROCESS.equals(cryptoBackend)) {
+            return new ProcessCryptoBackend();
+        }
+        if (CryptoBackend.BACKEND_JCA.equals(cryptoBackend)) {
+            return new JcaCryptoBackend(new ProcessCryptoBackend());
+        }
+        throw new KeychainAccessException("Unknown crypto backend: " + cryptoBackend);
+    }
+
+    private static String getCryptoBackendName(TinyEncryptConfig tinyencryptConfig) {
+        return ((tinyencryptConfig != null) && StringUtils.isNoneEmpty(tinyencryptConfig.getCryptoBackend()))
+                ? tinyencryptConfig.getCryptoBackend() : CryptoBackend.BACKEND_PROCESS;
+    }
+
+    static File getEncryptKeyBasePath(TinyEncryptConfig tinyencryptConfig) {
         if ((tinyencryptConfig != null) && StringUtils.isNoneEmpty(tinyencryptConfig.getEncryptKeyBasePath())) {
-            encryptKeyBase = new File(tinyencryptConfig.getEncryptKeyBasePath());
-        } else {
-            encryptKeyBase = DEFAULT_ENCRYPTION_KEY_BASE_PATH;
+            return new File(tinyencryptConfig.getEncryptKeyBasePath());
+        }
+        return DEFAULT_ENCRYPTION_KEY_BASE_PATH;
+    }
+
+    static KeyStore getKeyStore(TinyEncryptConfig tinyencryptConfig) throws KeychainAccessException {
+        final File encryptKeyBase = getEncryptKeyBasePath(tinyencryptConfig);
+        final String keyStoreFormat = ((tinyencryptConfig != null) && StringUtils.isNoneEmpty(tinyencryptConfig.getKeyStoreFormat()))
+                ? tinyencryptConfig.getKeyStoreFormat() : KeyStore.FORMAT_FILE;
+        final String keyStoreKey = keyStoreFormat + ":" + encryptKeyBase.getAbsolutePath();
+        final KeyStore keyStore = KEY_STORES.get(keyStoreKey);
+        if (keyStore != null) {
+            return keyStore;
         }
-        if (encryptKeyBase.isDirectory()) {
-            return encryptKeyBase;
+        synchronized (KEY_STORES) {
+            // dir is created once when the key store is opened
+            KeyStore newKeyStore = KEY_STORES.get(keyStoreKey);
+            if (newKeyStore == null) {
+                if (KeyStore.FORMAT_FILE.equals(keyStoreFormat)) {
+                    newKeyStore = new FileKeyStore(encryptKeyBase);
+                } else if (KeyStore.FORMAT_PACKED.equals(keyStoreFormat)) {
+                    newKeyStore = new PackedKeyStore(encryptKeyBase);
+                } else {
+                    throw new KeychainAccessException("Unknown key store format: " + keyStoreFormat);
+                }
+                KEY_STORES.put(keyStoreKey, newKeyStore);
+            }
+            return newKeyStore;
         }
-        LOG.info("Make dirs: " + encryptKeyBase);
-        encryptKeyBase.mkdirs();
-        return encryptKeyBase;
     }
 
-    private static File getTinyencryptConfigFile() throws KeychainAccessException {
-        for (File configFile : Arrays.asList(TINYENCRYPT_CONFIG_FILE1, TINYENCRYPT_CONFIG_FILE2)) {
+    static List<File> getTinyencryptConfigFiles() {
+        return Arrays.asList(TINYENCRYPT_CONFIG_FILE1, TINYENCRYPT_CONFIG_FILE2);
+    }
+
+    static File getTinyencryptConfigFile() throws KeychainAccessException {
+        for (File configFile : getTinyencryptConfigFiles()) {
             LOG.info("Check config file: " + configFile + ": " + Arrays.asList(configFile.exists(), configFile.isFile()));
             if (configFile.exists() && configFile.isFile()) {
                 return configFile;
@@ -0,0 +1,290 @@
+package me.hatter.integrations.tinyencrypt;
+
+import org.apache.commons.lang3.BooleanUtils;
+import org.cryptomator.integrations.keychain.KeychainAccessException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encrypts and stores vault passwords on a background thread, see <code>enableWriteBehind</code> in {@link TinyEncryptConfig}.
+ * <p>
+ * Repeated stores of a vault still queued are coalesced, only the last password is written.
+ * The journal, next to the keys, lists vaults with a queued write, never passwords. A vault still listed at startup lost its write,
+ * e.g. in a crash, its stored key is outdated and deleted by {@link #replay(TinyEncryptConfig)},
+ * so Cryptomator asks for the password again.
+ */
+public class WriteBehindQueue {
+    private static final Logger LOG = LoggerFactory.getLogger(WriteBehindQueue.class);
+    public static final String JOURNAL_FILE_NAME = "~write-behind.journal";
+    private static final long RETRY_DELAY_SECONDS = 30;
+    private static final int MAX_ATTEMPTS = 5;
+    private static final long SHUTDOWN_FLUSH_SECONDS = 10;
+
+    // serializes journal file writes, never taken while holding this
+    private final Object journalLock = new Object();
+    // all guarded by this
+    private final Map<String, PendingWrite> pendingWrites = new HashMap<>();
+    private final Set<String> scheduledVaults = new HashSet<>();
+    private final Map<File, Set<String>> journalVaults = new HashMap<>();
+    private String storingVault;
+    private ScheduledExecutorService executor;
+
+    private static class PendingWrite {
+        private final TinyEncryptConfig tinyencryptConfig;
+        private final String name;
+        private final SecretBuffer password;
+        private int attempts;
+
+        private PendingWrite(TinyEncryptConfig tinyencryptConfig, String name, SecretBuffer password) {
+            this.tinyencryptConfig = tinyencryptConfig;
+            this.name = name;
+            this.password = password;
+        }
+    }
+
+    /**
+     * The journal is next to the keys, under <code>encryptKeyBasePath</code>
+     */
+    static File getJournalFile(TinyEncryptConfig tinyencryptConfig) {
+        return new File(Utils.getEncryptKeyBasePath(tinyencryptConfig), JOURNAL_FILE_NAME);
+    }
+
+    /**
+     * Queue a write of a copy of <code>password</code>, the caller still owns <code>password</code>
+     */
+    public void enqueue(TinyEncryptConfig tinyencryptConfig, String vault, String name, SecretBuffer password) throws KeychainAccessException {
+        final SecretBuffer passwordCopy = password.copy();
+        if (passwordCopy == null) {
+            throw new KeychainAccessException("Password of vault: " + vault + " is wiped");
+        }
+        final File journalFile = getJournalFile(tinyencryptConfig);
+        final boolean journalChanged;
+        synchronized (this) {
+            journalChanged = journalVaults.computeIfAbsent(journalFile, f -> new TreeSet<>()).add(vault);
+            final PendingWrite replaced = pendingWrites.put(vault, new PendingWrite(tinyencryptConfig, name, passwordCopy));
+            if (replaced != null) {
+                LOG.info("Coalesce queued write of vault: " + vault);
+                replaced.password.wipe();
+            }
+            if (scheduledVaults.add(vault)) {
+                getExecutor().execute(() -> write(vault));
+            }
+        }
+        if (journalChanged) {
+            writeJournal(journalFile);
+        }
+    }
+
+    /**
+     * @return password of a queued write owned by the caller, <code>null</code> when none is queued
+     */
+    public synchronized char[] getPassword(String vault) {
+        final PendingWrite pendingWrite = pendingWrites.get(vault);
+        return (pendingWrite == null) ? null : pendingWrite.password.toCharArray();
+    }
+
+    /**
+     * Drop the queued write of <code>vault</code>, a write already encrypting is discarded before it is stored,
+     * a write being stored is waited for so the caller may delete the key afterwards
+     */
+    public void cancel(TinyEncryptConfig tinyencryptConfig, String vault) throws KeychainAccessException {
+        final List<File> changedJournalFiles = new ArrayList<>();
+        synchronized (this) {
+            final PendingWrite pendingWrite = pendingWrites.remove(vault);
+            if (pendingWrite != null) {
+                LOG.info("Cancel queued write of vault: " + vault);
+                pendingWrite.password.wipe();
+                removeFromJournal(getJournalFile(pendingWrite.tinyencryptConfig), vault, changedJournalFiles);
+            }
+            removeFromJournal(getJournalFile(tinyencryptConfig), vault, changedJournalFiles);
+            try {
+                while (vault.equals(storingVault)) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new KeychainAccessException("Interrupted while waiting queued write of vault: " + vault, e);
+            }
+        }
+        changedJournalFiles.forEach(this::writeJournal);
+    }
+
+    /**
+     * Delete stored keys of vaults whose queued write was lost, run once at startup
+     */
+    public void replay(TinyEncryptConfig tinyencryptConfig) {
+        final File journalFile = getJournalFile(tinyencryptConfig);
+        final List<String> lostVaults = new ArrayList<>();
+        synchronized (journalLock) {
+            if (!journalFile.isFile()) {
+                return;
+            }
+            try {
+                final String journal = Utils.readFile(journalFile);
+                synchronized (this) {
+                    for (String vault : journal.split("\n")) {
+                        if (!vault.isEmpty() && !pendingWrites.containsKey(vault)) {
+                            lostVaults.add(vault);
+                        }
+                    }
+                    // kept listed until the outdated key is deleted
+                    journalVaults.computeIfAbsent(journalFile, f -> new TreeSet<>()).addAll(lostVaults);
+                }
+            } catch (KeychainAccessException e) {
+                LOG.warn("Read write-behind journal: " + journalFile + " failed", e);
+                return;
+            }
+        }
+        for (String vault : lostVaults) {
+            LOG.warn("Queued write of vault: " + vault + " was lost, delete its outdated key");
+            try {
+                Utils.getKeyStore(tinyencryptConfig).delete(vault);
+                final List<File> changedJournalFiles = new ArrayList<>();
+                synchronized (this) {
+                    removeFromJournal(journalFile, vault, changedJournalFiles);
+                }
+                changedJournalFiles.forEach(this::writeJournal);
+            } catch (KeychainAccessException e) {
+                LOG.warn("Delete outdated key of vault: " + vault + " failed", e);
+            }
+        }
+    }
+
+    private void write(String vault) {
+        final PendingWrite pendingWrite;
+        final SecretBuffer password;
+        synchronized (this) {
+            scheduledVaults.remove(vault);
+            pendingWrite = pendingWrites.get(vault);
+            if (pendingWrite == null) {
+                return;
+            }
+            password = pendingWrite.password.copy();
+        }
+        final TinyEncryptConfig tinyencryptConfig = pendingWrite.tinyencryptConfig;
+        try {
+            final String encryptedPassword;
+            try {
+                encryptedPassword = Utils.getCryptoBackend(tinyencryptConfig).encrypt(tinyencryptConfig, vault, password, pendingWrite.name);
+            } finally {
+                password.wipe();
+            }
+            synchronized (this) {
+                if (pendingWrites.get(vault) != pendingWrite) {
+                    // changed or cancelled while encrypting
+                    return;
+                }
+                storingVault = vault;
+            }
+            // the fsync'd write runs without the lock, getPassword and enqueue are not blocked
+            try {
+                Utils.getKeyStore(tinyencryptConfig).write(vault, encryptedPassword,
+                        BooleanUtils.isNotFalse(tinyencryptConfig.getSyncKeyFileWrites()));
+            } finally {
+                synchronized (this) {
+                    storingVault = null;
+                    notifyAll();
+                }
+            }
+            final List<File> changedJournalFiles = new ArrayList<>();
+            synchronized (this) {
+                if (pendingWrites.get(vault) != pendingWrite) {
+                    // changed while storing, the newer write is still queued and listed in journal
+                    return;
+                }
+                pendingWrites.remove(vault);
+                pendingWrite.password.wipe();
+                removeFromJournal(getJournalFile(tinyencryptConfig), vault, changedJournalFiles);
+            }
+            changedJournalFiles.forEach(this::writeJournal);
+            LOG.info("Stored queued write of vault: " + vault);
+        } catch (KeychainAccessException | RuntimeException e) {
+            synchronized (this) {
+                if (pendingWrites.get(vault) != pendingWrite) {
+                    return;
+                }
+                pendingWrite.attempts++;
+                if (pendingWrite.attempts < MAX_ATTEMPTS) {
+                    LOG.warn("Store queued write of vault: " + vault + " failed, retry in " + RETRY_DELAY_SECONDS + "s", e);
+                    if (scheduledVaults.add(vault)) {
+                        getExecutor().schedule(() -> write(vault), RETRY_DELAY_SECONDS, TimeUnit.SECONDS);
+                    }
+                } else {
+                    // kept in journal, the outdated key is deleted at next startup
+                    LOG.error("Store queued write of vault: " + vault + " failed " + MAX_ATTEMPTS + " times, give up", e);
+                    pendingWrites.remove(vault);
+                    pendingWrite.password.wipe();
+                }
+            }
+        }
+    }
+
+    private void removeFromJournal(File journalFile, String vault, List<File> changedJournalFiles) {
+        final Set<String> vaults = journalVaults.get(journalFile);
+        if ((vaults != null) && vaults.remove(vault) && !changedJournalFiles.contains(journalFile)) {
+            changedJournalFiles.add(journalFile);
+        }
+    }
+
+    /**
+     * Write the current vaults of <code>journalFile</code>, called without holding this
+     */
+    private void writeJournal(File journalFile) {
+        synchronized (journalLock) {
+            // taken under journalLock, so the last write always has the latest vaults
+            final List<String> vaults;
+            synchronized (this) {
+                final Set<String> currentVaults = journalVaults.get(journalFile);
+                vaults = (currentVaults == null) ? new ArrayList<>() : new ArrayList<>(currentVaults);
+                if (vaults.isEmpty()) {
+                    journalVaults.remove(journalFile);
+                }
+            }
+            try {
+                if (vaults.isEmpty()) {
+                    if (journalFile.exists() && !journalFile.delete()) {
+                        LOG.warn("Delete write-behind journal: " + journalFile + " failed");
+                    }
+                    return;
+                }
+                journalFile.getAbsoluteFile().getParentFile().mkdirs();
+                Utils.writeFile(journalFile, String.join("\n", vaults), true);
+            } catch (KeychainAccessException e) {
+                LOG.warn("Write write-behind journal: " + journalFile + " failed", e);
+            }
+        }
+    }
+
+    private ScheduledExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newSingleThreadScheduledExecutor(r -> {
+                final Thread thread = new Thread(r, "tinyencrypt-write-behind");
+                thread.setDaemon(true);
+                return thread;
+            });
+            final ScheduledExecutorService flushExecutor = executor;
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                // give queued writes a chance before the JVM exits, whatever is left is replayed at next startup
+                flushExecutor.shutdown();
+                try {
+                    flushExecutor.awaitTermination(SHUTDOWN_FLUSH_SECONDS, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, "tinyencrypt-write-behind-flush"));
+        }
+        return executor;
+    }
+}
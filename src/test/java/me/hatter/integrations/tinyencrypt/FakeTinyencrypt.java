@@ -0,0 +1,66 @@
+package me.hatter.integrations.tinyencrypt;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+
+/**
+ * Installs <code>fake-tinyencrypt.sh</code> and <code>fake-pinentry.sh</code> from test resources
+ * as executable stand-ins for tinyencrypt and pinentry
+ */
+public class FakeTinyencrypt {
+
+    public static File install(File directory) throws IOException {
+        return installScript(directory, "fake-tinyencrypt.sh");
+    }
+
+    /**
+     * Install a wrapper which runs <code>fake-tinyencrypt.sh</code> with <code>environment</code>,
+     * e.g. <code>FAKE_TINYENCRYPT_LATENCY_MS</code>, see the script for all knobs
+     */
+    public static File installWithEnvironment(File directory, Map<String, String> environment) throws IOException {
+        final File fakeTinyencrypt = install(directory);
+        final StringBuilder wrapper = new StringBuilder("#!/bin/sh\n");
+        for (Map.Entry<String, String> entry : environment.entrySet()) {
+            wrapper.append("export ").append(entry.getKey()).append("='").append(entry.getValue()).append("'\n");
+        }
+        wrapper.append("exec '").append(fakeTinyencrypt.getAbsolutePath()).append("' \"$@\"\n");
+        final File command = new File(directory, "fake-tinyencrypt-env.sh");
+        Files.writeString(command.toPath(), wrapper.toString());
+        if (!command.setExecutable(true)) {
+            throw new IOException("Set executable: " + command + " failed");
+        }
+        return command;
+    }
+
+    public static File installPinentry(File directory) throws IOException {
+        return installScript(directory, "fake-pinentry.sh");
+    }
+
+    public static TinyEncryptConfig newConfig(File directory) throws IOException {
+        final File keyBasePath = new File(directory, "keys");
+        Files.createDirectories(keyBasePath.toPath());
+        final TinyEncryptConfig tinyencryptConfig = new TinyEncryptConfig();
+        tinyencryptConfig.setKeyId("fake-key");
+        tinyencryptConfig.setTinyencryptCommand(install(directory).getAbsolutePath());
+        tinyencryptConfig.setEncryptKeyBasePath(keyBasePath.getAbsolutePath());
+        return tinyencryptConfig;
+    }
+
+    private static File installScript(File directory, String scriptName) throws IOException {
+        final File command = new File(directory, scriptName);
+        try (InputStream is = FakeTinyencrypt.class.getResourceAsStream("/" + scriptName)) {
+            if (is == null) {
+                throw new IOException("Resource " + scriptName + " not found");
+            }
+            Files.copy(is, command.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        if (!command.setExecutable(true)) {
+            throw new IOException("Set executable: " + command + " failed");
+        }
+        return command;
+    }
+}
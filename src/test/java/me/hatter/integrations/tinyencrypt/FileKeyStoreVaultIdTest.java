@@ -0,0 +1,77 @@
+package me.hatter.integrations.tinyencrypt;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Vault IDs are escaped to key file names and decoded back, also for chars above 0xFF.
+ */
+public class FileKeyStoreVaultIdTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void wideCharVaultIdIsStored() throws Exception {
+        final FileKeyStore fileKeyStore = new FileKeyStore(tempDir.toFile());
+        final String vault = "vault-ā";
+        assertFalse(fileKeyStore.exists(vault));
+
+        fileKeyStore.write(vault, "encrypted-key", false);
+        assertTrue(fileKeyStore.exists(vault));
+        assertEquals("encrypted-key", fileKeyStore.read(vault));
+        // as after a restart, the index is built by a directory scan
+        final FileKeyStore rescannedKeyStore = new FileKeyStore(tempDir.resolve("..").resolve(tempDir.getFileName()).toFile());
+        assertTrue(rescannedKeyStore.exists(vault));
+        assertEquals(Collections.singletonList(vault), rescannedKeyStore.listVaults());
+
+        fileKeyStore.delete(vault);
+        assertFalse(fileKeyStore.exists(vault));
+    }
+
+    @Test
+    public void keyFileNamesRoundTrip() {
+        final List<String> vaults = Arrays.asList("vault-1.a", "my_vault", "__", "a b/c", "é" + "ab", "\ue9ab",
+                "\u0001" + "01", "ā", "日本語", "_u0101", "~", "\uffff", "");
+        for (String vault : vaults) {
+            final String keyFileName = Utils.getKeyFileName(vault);
+            assertEquals(vault, Utils.decodeKeyFileName(keyFileName), "Key file name: " + keyFileName);
+        }
+        // were both "_e9ab" and "_0101" before
+        assertNotEquals(Utils.getKeyFileName("é" + "ab"), Utils.getKeyFileName("\ue9ab"));
+        assertNotEquals(Utils.getKeyFileName("\u0001" + "01"), Utils.getKeyFileName("ā"));
+
+        for (String keyFileName : Arrays.asList("_41", "_E9", "_u00e9", "_5f", "_e", "_u01", "_", "a b", "~keys.pack", "x.tmp~")) {
+            assertNull(Utils.decodeKeyFileName(keyFileName), "Key file name: " + keyFileName);
+        }
+    }
+
+    @Test
+    public void legacyWideCharKeyFileIsRenamed() throws Exception {
+        final File basePath = tempDir.toFile();
+        final String vault = "vault-ā";
+        final String legacyKeyFileName = Utils.getLegacyKeyFileName(vault);
+        assertEquals("vault-_0101", legacyKeyFileName);
+        Files.write(new File(basePath, legacyKeyFileName).toPath(), "legacy-key".getBytes(StandardCharsets.UTF_8));
+
+        final FileKeyStore fileKeyStore = new FileKeyStore(basePath);
+        assertTrue(fileKeyStore.exists(vault));
+        assertEquals("legacy-key", fileKeyStore.read(vault));
+        assertFalse(new File(basePath, legacyKeyFileName).exists());
+        assertEquals(Collections.singletonList(vault), fileKeyStore.listVaults());
+    }
+}
@@ -0,0 +1,85 @@
+package me.hatter.integrations.tinyencrypt;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Concurrent key file readers and writers never see a partial file.
+ */
+public class KeyFileWriteStressTest {
+    private static final int WRITERS = 4;
+    private static final int READERS = 4;
+    private static final int WRITES_PER_WRITER = 200;
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void readersNeverSeePartialFiles() throws Exception {
+        final File keyFile = tempDir.resolve("vault").toFile();
+        final List<String> contents = new ArrayList<>();
+        for (int i = 0; i < WRITERS; i++) {
+            // different lengths, so a truncated or mixed file is never a valid content
+            contents.add(String.valueOf((char) ('a' + i)).repeat(1024 * (i + 1)) + "#end");
+        }
+        final Set<String> validContents = new HashSet<>(contents);
+        Utils.writeFile(keyFile, contents.get(0), false);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(WRITERS + READERS);
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        try {
+            final List<Future<?>> writers = new ArrayList<>();
+            for (int i = 0; i < WRITERS; i++) {
+                final String content = contents.get(i);
+                final boolean sync = (i == 0);
+                writers.add(executor.submit(() -> {
+                    for (int j = 0; j < WRITES_PER_WRITER; j++) {
+                        Utils.writeFile(keyFile, content, sync);
+                    }
+                    return null;
+                }));
+            }
+            final List<Future<Integer>> readers = new ArrayList<>();
+            for (int i = 0; i < READERS; i++) {
+                readers.add(executor.submit(() -> {
+                    int reads = 0;
+                    while (writing.get()) {
+                        final String content = Utils.readFile(keyFile);
+                        assertTrue(validContents.contains(content), "Partial key file, length: " + content.length());
+                        reads++;
+                    }
+                    return reads;
+                }));
+            }
+            for (Future<?> writer : writers) {
+                writer.get(2, TimeUnit.MINUTES);
+            }
+            writing.set(false);
+            for (Future<Integer> reader : readers) {
+                assertTrue(reader.get(1, TimeUnit.MINUTES) > 0);
+            }
+        } finally {
+            writing.set(false);
+            executor.shutdownNow();
+        }
+
+        final String[] fileNames = Objects.requireNonNull(tempDir.toFile().list());
+        assertEquals(1, fileNames.length, "Temp files left: " + String.join(", ", fileNames));
+    }
+}
@@ -0,0 +1,57 @@
+package me.hatter.integrations.tinyencrypt;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Rotating to a new PBKDF password encrypts with the new password, not the one cached while decrypting the old key.
+ */
+public class KeyRotationPbkdfTest {
+    private static final String VAULT = "rotation-vault";
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void rotateFromPbkdfPasswordAToB() throws Exception {
+        final TinyEncryptConfig oldConfig = newPbkdfConfig("old", "password-a");
+        final TinyEncryptConfig newConfig = newPbkdfConfig("new", "password-b");
+        // same key store, as when only the PBKDF password is rotated
+        newConfig.setEncryptKeyBasePath(oldConfig.getEncryptKeyBasePath());
+
+        try (SecretBuffer password = SecretBuffer.wrap("vault-password")) {
+            final String encryptedKey = new ProcessCryptoBackend().encrypt(oldConfig, VAULT, password, "Vault");
+            Utils.getKeyStore(oldConfig).write(VAULT, encryptedKey, true);
+        }
+
+        final File resumeFile = tempDir.resolve("rotation.progress").toFile();
+        assertEquals(0, KeyRotation.rotate(oldConfig, newConfig, 1, resumeFile, new PrintStream(System.out)));
+
+        final String rotatedKey = Utils.getKeyStore(newConfig).read(VAULT);
+        try (SecretBuffer password = new ProcessCryptoBackend().decrypt(newConfig, VAULT, rotatedKey)) {
+            assertArrayEquals("vault-password".toCharArray(), password.toCharArray());
+        }
+        assertThrows(Exception.class, () -> new ProcessCryptoBackend().decrypt(oldConfig, VAULT, rotatedKey));
+    }
+
+    private TinyEncryptConfig newPbkdfConfig(String name, String pbkdfPassword) throws Exception {
+        final File directory = Files.createDirectories(tempDir.resolve(name)).toFile();
+        final TinyEncryptConfig tinyencryptConfig = FakeTinyencrypt.newConfig(directory);
+        tinyencryptConfig.setTinyencryptCommand(FakeTinyencrypt.installWithEnvironment(directory,
+                Collections.singletonMap("FAKE_TINYENCRYPT_PBKDF_PASSWORD", pbkdfPassword)).getAbsolutePath());
+        tinyencryptConfig.setEnablePbkdfEncryptionPassword(true);
+        // a wrong password must not open the circuit for the following calls
+        tinyencryptConfig.setFailureBackoffSeconds(0);
+        return tinyencryptConfig;
+    }
+}
@@ -0,0 +1,252 @@
+package me.hatter.integrations.tinyencrypt;
+
+import org.cryptomator.integrations.keychain.KeychainAccessException;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Concurrent load, store, delete and change calls of {@link TinyEncryptAccessProvider} against the fake tinyencrypt,
+ * reports latency percentiles, throughput, tinyencrypt process count and peak heap.
+ * <p>
+ * Run with <code>mvn -P soak test</code>, sized by system properties, e.g.
+ * <code>-Dload.threads=32 -Dload.vaults=5000 -Dload.operations=100000 -Dload.mix=load=90,store=5,change=4,delete=1</code>,
+ * fake tinyencrypt with <code>-Dload.fakeLatencyMs -Dload.fakePromptMs -Dload.fakeFailurePercent -Dload.pbkdf</code>.
+ */
+@Tag("soak")
+public class KeychainLoadTest {
+    private static final int THREADS = Integer.getInteger("load.threads", 16);
+    private static final int VAULTS = Integer.getInteger("load.vaults", 2000);
+    private static final int OPERATIONS = Integer.getInteger("load.operations", 20000);
+    private static final String MIX = System.getProperty("load.mix", "load=70,store=15,change=10,delete=5");
+    private static final int FAKE_LATENCY_MS = Integer.getInteger("load.fakeLatencyMs", 5);
+    private static final int FAKE_PROMPT_MS = Integer.getInteger("load.fakePromptMs", 20);
+    private static final int FAKE_FAILURE_PERCENT = Integer.getInteger("load.fakeFailurePercent", 1);
+    private static final boolean PBKDF = Boolean.parseBoolean(System.getProperty("load.pbkdf", "true"));
+    private static final int VERIFY_VAULTS = 50;
+    private static final int VERIFY_ATTEMPTS = 10;
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void concurrentMixedOperations() throws Exception {
+        final File home = new File(System.getProperty("user.home"));
+        assumeTrue("soak-home".equals(home.getName()), "Run with mvn -P soak test, the tinyencrypt config is written under user.home");
+        final File callLog = tempDir.resolve("calls.log").toFile();
+        final Map<String, String> environment = new LinkedHashMap<>();
+        environment.put("FAKE_TINYENCRYPT_LATENCY_MS", String.valueOf(FAKE_LATENCY_MS));
+        environment.put("FAKE_TINYENCRYPT_PROMPT_MS", String.valueOf(FAKE_PROMPT_MS));
+        environment.put("FAKE_TINYENCRYPT_FAILURE_PERCENT", String.valueOf(FAKE_FAILURE_PERCENT));
+        environment.put("FAKE_TINYENCRYPT_CALL_LOG", callLog.getAbsolutePath());
+        final File command = FakeTinyencrypt.installWithEnvironment(tempDir.toFile(), environment);
+        final File keyBasePath = tempDir.resolve("keys").toFile();
+        final File configFile = new File(home, ".config/cryptomator/tinyencrypt_config.json");
+        Files.createDirectories(configFile.getParentFile().toPath());
+        Files.writeString(configFile.toPath(), "{"
+                + "\"keyId\": \"fake-key\", "
+                + "\"tinyencryptCommand\": \"" + command.getAbsolutePath() + "\", "
+                + "\"encryptKeyBasePath\": \"" + keyBasePath.getAbsolutePath() + "\", "
+                + "\"enableVaultPasswordCache\": true, "
+                + "\"enablePbkdfEncryptionPassword\": " + PBKDF + ", "
+                // injected failures must not trip the circuit breaker
+                + "\"failureBackoffSeconds\": 0"
+                + "}");
+
+        final TinyEncryptAccessProvider provider = new TinyEncryptAccessProvider();
+        final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            // half of the vaults stored up front, so loads find keys from the start
+            final List<Future<?>> seedFutures = new ArrayList<>();
+            for (int i = 0; i < VAULTS; i += 2) {
+                final String vault = "vault-" + i;
+                seedFutures.add(executor.submit(() -> {
+                    storeWithRetry(provider, vault, "seed-" + vault);
+                    return null;
+                }));
+            }
+            for (Future<?> seedFuture : seedFutures) {
+                seedFuture.get(10, TimeUnit.MINUTES);
+            }
+
+            final List<String> operations = new ArrayList<>();
+            final List<Integer> weights = new ArrayList<>();
+            for (String operationWeight : MIX.split(",")) {
+                final String[] parts = operationWeight.trim().split("=");
+                operations.add(parts[0]);
+                weights.add(Integer.parseInt(parts[1]));
+            }
+            final int totalWeight = weights.stream().mapToInt(Integer::intValue).sum();
+            final Map<String, LatencyHistogram> latencies = new LinkedHashMap<>();
+            final Map<String, LongAdder> failures = new LinkedHashMap<>();
+            for (String operation : operations) {
+                latencies.put(operation, new LatencyHistogram());
+                failures.put(operation, new LongAdder());
+            }
+            final ConcurrentLinkedQueue<Throwable> unexpectedErrors = new ConcurrentLinkedQueue<>();
+            final AtomicInteger issuedOperations = new AtomicInteger();
+
+            final int seedProcesses = countLines(callLog);
+            resetPeakHeap();
+            final long startNanos = System.nanoTime();
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                futures.add(executor.submit(() -> {
+                    final ThreadLocalRandom random = ThreadLocalRandom.current();
+                    while (issuedOperations.getAndIncrement() < OPERATIONS) {
+                        final String operation = pickOperation(operations, weights, random.nextInt(totalWeight));
+                        final String vault = "vault-" + random.nextInt(VAULTS);
+                        final long operationStartNanos = System.nanoTime();
+                        try {
+                            runOperation(provider, operation, vault, random);
+                        } catch (KeychainAccessException e) {
+                            // injected failures, or a vault deleted by another thread
+                            failures.get(operation).increment();
+                        } catch (Throwable e) {
+                            unexpectedErrors.add(e);
+                        }
+                        latencies.get(operation).record(System.nanoTime() - operationStartNanos);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(30, TimeUnit.MINUTES);
+            }
+            final long elapsedNanos = System.nanoTime() - startNanos;
+
+            final StringBuilder report = new StringBuilder();
+            report.append("threads: ").append(THREADS).append(", vaults: ").append(VAULTS).append(", operations: ").append(OPERATIONS)
+                    .append(", mix: ").append(MIX).append(", pbkdf: ").append(PBKDF).append('\n');
+            report.append("fake latency: ").append(FAKE_LATENCY_MS).append("ms, prompt: ").append(FAKE_PROMPT_MS)
+                    .append("ms, failure: ").append(FAKE_FAILURE_PERCENT).append("%\n");
+            for (String operation : operations) {
+                final LatencyHistogram histogram = latencies.get(operation);
+                report.append(String.format("%-7s count: %7d, failed: %6d, p50: %8.3fms, p99: %8.3fms, p999: %8.3fms, max: %8.3fms%n",
+                        operation, histogram.getCount(), failures.get(operation).sum(),
+                        histogram.getPercentileNanos(50) / 1e6, histogram.getPercentileNanos(99) / 1e6,
+                        histogram.getPercentileNanos(99.9) / 1e6, histogram.getMaxNanos() / 1e6));
+            }
+            report.append(String.format("throughput: %.1f ops/s, elapsed: %.1fs%n", OPERATIONS / (elapsedNanos / 1e9), elapsedNanos / 1e9));
+            report.append("tinyencrypt processes: ").append(countLines(callLog) - seedProcesses).append('\n');
+            report.append("peak heap: ").append(getPeakHeap() / (1024 * 1024)).append(" MiB\n");
+            System.out.print(report);
+            Files.writeString(new File(home.getParentFile(), "soak-report.txt").toPath(), report);
+
+            assertTrue(unexpectedErrors.isEmpty(), "Unexpected errors: " + unexpectedErrors);
+
+            // the caches and the key store still agree after the load
+            for (int i = 0; i < VERIFY_VAULTS; i++) {
+                final String vault = "vault-" + i;
+                storeWithRetry(provider, vault, "verify-" + vault);
+                assertArrayEquals(("verify-" + vault).toCharArray(), loadWithRetry(provider, vault));
+            }
+            final String[] leftFiles = Objects.requireNonNull(keyBasePath.list((dir, name) -> name.endsWith(".tmp")));
+            assertTrue(leftFiles.length == 0, "Temp files left: " + Arrays.toString(leftFiles));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void runOperation(TinyEncryptAccessProvider provider, String operation, String vault, ThreadLocalRandom random) throws KeychainAccessException {
+        switch (operation) {
+            case "load":
+                final char[] password = provider.loadPassphrase(vault);
+                Arrays.fill(password, '\0');
+                break;
+            case "store":
+                provider.storePassphrase(vault, "Vault", "store-" + random.nextInt());
+                break;
+            case "change":
+                provider.changePassphrase(vault, "Vault", "change-" + random.nextInt());
+                break;
+            case "delete":
+                provider.deletePassphrase(vault);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown operation: " + operation);
+        }
+    }
+
+    private static String pickOperation(List<String> operations, List<Integer> weights, int value) {
+        for (int i = 0; i < operations.size(); i++) {
+            value -= weights.get(i);
+            if (value < 0) {
+                return operations.get(i);
+            }
+        }
+        return operations.get(operations.size() - 1);
+    }
+
+    private static void storeWithRetry(TinyEncryptAccessProvider provider, String vault, String password) throws KeychainAccessException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                provider.storePassphrase(vault, "Vault", password);
+                return;
+            } catch (KeychainAccessException e) {
+                if (attempt >= VERIFY_ATTEMPTS) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private static char[] loadWithRetry(TinyEncryptAccessProvider provider, String vault) throws KeychainAccessException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return provider.loadPassphrase(vault);
+            } catch (KeychainAccessException e) {
+                if (attempt >= VERIFY_ATTEMPTS) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private static int countLines(File file) throws Exception {
+        return file.isFile() ? Files.readAllLines(file.toPath()).size() : 0;
+    }
+
+    private static void resetPeakHeap() {
+        for (MemoryPoolMXBean memoryPool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (memoryPool.getType() == MemoryType.HEAP) {
+                memoryPool.resetPeakUsage();
+            }
+        }
+    }
+
+    private static long getPeakHeap() {
+        long peakHeap = 0;
+        for (MemoryPoolMXBean memoryPool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (memoryPool.getType() == MemoryType.HEAP) {
+                peakHeap += memoryPool.getPeakUsage().getUsed();
+            }
+        }
+        return peakHeap;
+    }
+}
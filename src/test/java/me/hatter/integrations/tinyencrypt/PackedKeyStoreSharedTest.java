@@ -0,0 +1,48 @@
+package me.hatter.integrations.tinyencrypt;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Two stores on the same pack file, as Cryptomator and a key rotation CLI, see appends and compactions of each other.
+ */
+public class PackedKeyStoreSharedTest {
+    private static final int COMPACT_WRITES = 200;
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void storesSeeEachOthersAppendsAndCompaction() throws Exception {
+        final PackedKeyStore cryptomatorStore = new PackedKeyStore(tempDir.toFile());
+        final PackedKeyStore rotationStore = new PackedKeyStore(tempDir.toFile());
+
+        cryptomatorStore.write("vault-a", "key-a", false);
+        assertTrue(rotationStore.exists("vault-a"));
+        assertEquals("key-a", rotationStore.read("vault-a"));
+
+        // enough dead records for a compaction, the pack file is replaced
+        final String largeKey = "k".repeat(1024);
+        for (int i = 0; i < COMPACT_WRITES; i++) {
+            rotationStore.write("vault-b", largeKey + i, false);
+        }
+        assertEquals("key-a", cryptomatorStore.read("vault-a"));
+        assertEquals(largeKey + (COMPACT_WRITES - 1), cryptomatorStore.read("vault-b"));
+
+        // appended to the new pack file, not to the replaced one
+        cryptomatorStore.write("vault-c", "key-c", false);
+        cryptomatorStore.delete("vault-a");
+        assertEquals("key-c", rotationStore.read("vault-c"));
+        assertFalse(rotationStore.exists("vault-a"));
+        assertEquals(new HashSet<>(Arrays.asList("vault-b", "vault-c")), new HashSet<>(rotationStore.listVaults()));
+        assertEquals(new HashSet<>(Arrays.asList("vault-b", "vault-c")), new HashSet<>(new PackedKeyStore(tempDir.toFile()).listVaults()));
+    }
+}
@@ -0,0 +1,157 @@
+package me.hatter.integrations.tinyencrypt;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Repeat unlocks with a cached PBKDF derived key skip the key derivation and pinentry, repeat unlocks with
+ * a cached PBKDF password skip the tinyencrypt prompt, the password is passed in the environment of tinyencrypt,
+ * in argv only when tinyencrypt lacks <code>--password-env</code> and it is allowed.
+ */
+public class PbkdfKeyCacheLatencyTest {
+    private static final String VAULT = "pbkdf-vault";
+    private static final int REPEAT_UNLOCKS = 20;
+    private static final String PBKDF_PASSWORD = "typed-pbkdf-password";
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void repeatUnlockSkipsKeyDerivation() throws Exception {
+        final File directory = tempDir.toFile();
+        final TinyEncryptConfig tinyencryptConfig = FakeTinyencrypt.newConfig(directory);
+        tinyencryptConfig.setJcaKeyFile(new File(directory, "jca.key").getAbsolutePath());
+        tinyencryptConfig.setPinentryCommand(FakeTinyencrypt.installPinentry(directory).getAbsolutePath());
+        tinyencryptConfig.setEnablePbkdfEncryptionPassword(true);
+        final JcaCryptoBackend jcaCryptoBackend = new JcaCryptoBackend(new ProcessCryptoBackend());
+
+        final String encryptedKey;
+        try (SecretBuffer password = SecretBuffer.wrap("vault-password")) {
+            encryptedKey = jcaCryptoBackend.encrypt(tinyencryptConfig, VAULT, password, "Vault");
+        }
+        // start cold, as after a restart
+        jcaCryptoBackend.forget(tinyencryptConfig, VAULT);
+
+        final long firstStartNanos = System.nanoTime();
+        assertUnlock(jcaCryptoBackend, tinyencryptConfig, encryptedKey);
+        final long firstNanos = System.nanoTime() - firstStartNanos;
+
+        final long[] repeatNanos = new long[REPEAT_UNLOCKS];
+        for (int i = 0; i < REPEAT_UNLOCKS; i++) {
+            final long repeatStartNanos = System.nanoTime();
+            assertUnlock(jcaCryptoBackend, tinyencryptConfig, encryptedKey);
+            repeatNanos[i] = System.nanoTime() - repeatStartNanos;
+        }
+        Arrays.sort(repeatNanos);
+        final long medianRepeatNanos = repeatNanos[REPEAT_UNLOCKS / 2];
+
+        assertTrue(medianRepeatNanos * 10 < firstNanos,
+                "First unlock: " + firstNanos / 1000 + "us, median repeat unlock: " + medianRepeatNanos / 1000 + "us");
+    }
+
+    @Test
+    public void processBackendRepeatUnlockSkipsPromptByDefault() throws Exception {
+        final File argvLog = new File(tempDir.toFile(), "argv.log");
+        final TinyEncryptConfig tinyencryptConfig = newProcessConfig(argvLog, 500, false);
+        final ProcessCryptoBackend processCryptoBackend = new ProcessCryptoBackend();
+
+        assertRepeatUnlockSkipsPrompt(processCryptoBackend, tinyencryptConfig);
+        final List<String> commandLines = Files.readAllLines(argvLog.toPath());
+        assertTrue(commandLines.stream().anyMatch(commandLine -> commandLine.contains("--password-env")), "Command lines: " + commandLines);
+        for (String commandLine : commandLines) {
+            assertFalse(commandLine.contains(PBKDF_PASSWORD), "Password in argv: " + commandLine);
+        }
+    }
+
+    @Test
+    public void processBackendWithoutPasswordEnvKeepsCachedPasswordOutOfArgv() throws Exception {
+        final File argvLog = new File(tempDir.toFile(), "argv.log");
+        final TinyEncryptConfig tinyencryptConfig = newProcessConfig(argvLog, 0, true);
+        final ProcessCryptoBackend processCryptoBackend = new ProcessCryptoBackend();
+
+        final String encryptedKey = encrypt(processCryptoBackend, tinyencryptConfig);
+        for (int i = 0; i < 3; i++) {
+            assertUnlock(processCryptoBackend, tinyencryptConfig, encryptedKey);
+        }
+        final List<String> commandLines = Files.readAllLines(argvLog.toPath());
+        assertTrue(commandLines.size() >= 4, "Command lines: " + commandLines);
+        for (String commandLine : commandLines) {
+            assertFalse(commandLine.contains(PBKDF_PASSWORD), "Password in argv: " + commandLine);
+        }
+    }
+
+    @Test
+    public void processBackendWithoutPasswordEnvRepeatUnlockSkipsPromptWhenArgvAllowed() throws Exception {
+        final File argvLog = new File(tempDir.toFile(), "argv.log");
+        final TinyEncryptConfig tinyencryptConfig = newProcessConfig(argvLog, 500, true);
+        tinyencryptConfig.setAllowPbkdfPasswordInArgv(true);
+        final ProcessCryptoBackend processCryptoBackend = new ProcessCryptoBackend();
+
+        assertRepeatUnlockSkipsPrompt(processCryptoBackend, tinyencryptConfig);
+        assertTrue(Files.readAllLines(argvLog.toPath()).stream().anyMatch(commandLine -> commandLine.contains(PBKDF_PASSWORD)));
+    }
+
+    private static void assertRepeatUnlockSkipsPrompt(ProcessCryptoBackend processCryptoBackend, TinyEncryptConfig tinyencryptConfig) throws Exception {
+        final String encryptedKey = encrypt(processCryptoBackend, tinyencryptConfig);
+        // start cold, as after a restart
+        processCryptoBackend.forget(tinyencryptConfig, VAULT);
+
+        final long firstStartNanos = System.nanoTime();
+        assertUnlock(processCryptoBackend, tinyencryptConfig, encryptedKey);
+        final long firstNanos = System.nanoTime() - firstStartNanos;
+
+        final long[] repeatNanos = new long[REPEAT_UNLOCKS / 4];
+        for (int i = 0; i < repeatNanos.length; i++) {
+            final long repeatStartNanos = System.nanoTime();
+            assertUnlock(processCryptoBackend, tinyencryptConfig, encryptedKey);
+            repeatNanos[i] = System.nanoTime() - repeatStartNanos;
+        }
+        Arrays.sort(repeatNanos);
+        final long medianRepeatNanos = repeatNanos[repeatNanos.length / 2];
+
+        assertTrue(medianRepeatNanos * 2 < firstNanos,
+                "First unlock: " + firstNanos / 1000 + "us, median repeat unlock: " + medianRepeatNanos / 1000 + "us");
+    }
+
+    /**
+     * @param noPasswordEnv tinyencrypt rejects <code>--password-env</code>, e.g. an older release
+     */
+    private TinyEncryptConfig newProcessConfig(File argvLog, int promptMillis, boolean noPasswordEnv) throws Exception {
+        final File directory = tempDir.toFile();
+        final Map<String, String> environment = new HashMap<>();
+        environment.put("FAKE_TINYENCRYPT_PBKDF_PASSWORD", PBKDF_PASSWORD);
+        environment.put("FAKE_TINYENCRYPT_PROMPT_MS", String.valueOf(promptMillis));
+        environment.put("FAKE_TINYENCRYPT_ARGV_LOG", argvLog.getAbsolutePath());
+        if (noPasswordEnv) {
+            environment.put("FAKE_TINYENCRYPT_NO_PASSWORD_ENV", "true");
+        }
+        final TinyEncryptConfig tinyencryptConfig = FakeTinyencrypt.newConfig(directory);
+        tinyencryptConfig.setTinyencryptCommand(FakeTinyencrypt.installWithEnvironment(directory, environment).getAbsolutePath());
+        tinyencryptConfig.setEnablePbkdfEncryptionPassword(true);
+        return tinyencryptConfig;
+    }
+
+    private static String encrypt(CryptoBackend cryptoBackend, TinyEncryptConfig tinyencryptConfig) throws Exception {
+        try (SecretBuffer password = SecretBuffer.wrap("vault-password")) {
+            return cryptoBackend.encrypt(tinyencryptConfig, VAULT, password, "Vault");
+        }
+    }
+
+    private static void assertUnlock(CryptoBackend cryptoBackend, TinyEncryptConfig tinyencryptConfig, String encryptedKey) throws Exception {
+        try (SecretBuffer password = cryptoBackend.decrypt(tinyencryptConfig, VAULT, encryptedKey)) {
+            assertArrayEquals("vault-password".toCharArray(), password.toCharArray());
+        }
+    }
+}
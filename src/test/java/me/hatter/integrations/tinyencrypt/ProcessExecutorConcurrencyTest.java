@@ -0,0 +1,79 @@
+package me.hatter.integrations.tinyencrypt;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * More concurrent calls than pool threads, e.g. dozens of vaults unlocked at login, wait for a process slot instead of failing.
+ */
+public class ProcessExecutorConcurrencyTest {
+    private static final int CALLS = 80;
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void manyConcurrentCallsAllSucceed() throws Exception {
+        final File directory = tempDir.toFile();
+        final String command = FakeTinyencrypt.installWithEnvironment(directory,
+                Collections.singletonMap("FAKE_TINYENCRYPT_LATENCY_MS", "100")).getAbsolutePath();
+        final ExecutorService callers = Executors.newFixedThreadPool(CALLS);
+        try {
+            final List<Future<CompletableFuture<UtilsCommandResult>>> calls = new ArrayList<>();
+            for (int i = 0; i < CALLS; i++) {
+                final byte[] input = ("value-" + i).getBytes(StandardCharsets.UTF_8);
+                calls.add(callers.submit(() -> ProcessExecutor.execute(
+                        Arrays.asList(command, "simple-encrypt", "--value-stdin"), input, 1024 * 1024, TimeUnit.MINUTES.toMillis(2))));
+            }
+            for (Future<CompletableFuture<UtilsCommandResult>> call : calls) {
+                final UtilsCommandResult result = call.get(2, TimeUnit.MINUTES).get(2, TimeUnit.MINUTES);
+                assertEquals(0, result.getExitValue(), "Result: " + result);
+                assertTrue(new String(result.getStdout(), StandardCharsets.UTF_8).contains("fake:"));
+            }
+        } finally {
+            callers.shutdownNow();
+        }
+    }
+
+    @Test
+    public void queuedCallReturnsAtOnceAndTimesOutWhileWaitingForSlot() throws Exception {
+        final File directory = tempDir.toFile();
+        final String command = FakeTinyencrypt.installWithEnvironment(directory,
+                Collections.singletonMap("FAKE_TINYENCRYPT_LATENCY_MS", "3000")).getAbsolutePath();
+        final List<String> commands = Arrays.asList(command, "simple-encrypt", "--value-stdin");
+        final byte[] input = "value".getBytes(StandardCharsets.UTF_8);
+        final List<CompletableFuture<UtilsCommandResult>> runningCalls = new ArrayList<>();
+        for (int i = 0; i < ProcessExecutor.MAX_CONCURRENT_PROCESSES; i++) {
+            runningCalls.add(ProcessExecutor.execute(commands, input, 1024 * 1024, TimeUnit.MINUTES.toMillis(2)));
+        }
+
+        final long startNanos = System.nanoTime();
+        final CompletableFuture<UtilsCommandResult> queuedCall = ProcessExecutor.execute(commands, input, 1024 * 1024, 500);
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos) < 250, "execute blocked while waiting for a slot");
+        final ExecutionException e = assertThrows(ExecutionException.class, () -> queuedCall.get(2, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof TimeoutException, "Cause: " + e.getCause());
+
+        for (CompletableFuture<UtilsCommandResult> runningCall : runningCalls) {
+            assertEquals(0, runningCall.get(2, TimeUnit.MINUTES).getExitValue());
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package me.hatter.integrations.tinyencrypt;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * A restart refills the password caches of all vaults with one tinyencrypt decrypt of the session bundle.
+ */
+public class SessionBundleRestoreTest {
+    private static final int VAULTS = 20;
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void restoreAllVaultsWithOneDecrypt() throws Exception {
+        final File directory = tempDir.toFile();
+        final File callLog = new File(directory, "calls.log");
+        final TinyEncryptConfig tinyencryptConfig = FakeTinyencrypt.newConfig(directory);
+        tinyencryptConfig.setTinyencryptCommand(FakeTinyencrypt.installWithEnvironment(directory,
+                Collections.singletonMap("FAKE_TINYENCRYPT_CALL_LOG", callLog.getAbsolutePath())).getAbsolutePath());
+        tinyencryptConfig.setEnableSessionBundle(true);
+        final File bundleFile = new File(directory, "session.bundle");
+        final ProcessCryptoBackend processCryptoBackend = new ProcessCryptoBackend();
+
+        final PasswordCache vaultPasswordCache = new PasswordCache("vault");
+        final SessionBundle sessionBundle = new SessionBundle(bundleFile, processCryptoBackend, vaultPasswordCache);
+        sessionBundle.restore(tinyencryptConfig, vault -> true);
+        for (int i = 0; i < VAULTS; i++) {
+            vaultPasswordCache.putPassword(tinyencryptConfig, "vault-" + i, "password-" + i);
+        }
+        sessionBundle.write();
+
+        // as after a restart, vault-0 was deleted meanwhile
+        final PasswordCache restoredPasswordCache = new PasswordCache("vault");
+        new SessionBundle(bundleFile, processCryptoBackend, restoredPasswordCache)
+                .restore(tinyencryptConfig, vault -> !"vault-0".equals(vault));
+
+        final List<String> calls = Files.readAllLines(callLog.toPath());
+        assertEquals(1, Collections.frequency(calls, "simple-decrypt"), "Calls: " + calls);
+        assertEquals(VAULTS - 1, restoredPasswordCache.size());
+        assertNull(restoredPasswordCache.getPassword(tinyencryptConfig, "vault-0"));
+        for (int i = 1; i < VAULTS; i++) {
+            assertArrayEquals(("password-" + i).toCharArray(), restoredPasswordCache.getPassword(tinyencryptConfig, "vault-" + i));
+        }
+    }
+
+    @Test
+    public void pbkdfPasswordsStayBehindPbkdfEncryption() throws Exception {
+        final File directory = tempDir.toFile();
+        final TinyEncryptConfig tinyencryptConfig = FakeTinyencrypt.newConfig(directory);
+        tinyencryptConfig.setEnableSessionBundle(true);
+        tinyencryptConfig.setEnablePbkdfEncryptionPassword(true);
+        final File bundleFile = new File(directory, "session.bundle");
+        final ProcessCryptoBackend processCryptoBackend = new ProcessCryptoBackend();
+        final PasswordCache pbkdfPasswordCache = processCryptoBackend.getPbkdfPasswordCache();
+        final SessionBundle sessionBundle = new SessionBundle(bundleFile, processCryptoBackend, pbkdfPasswordCache);
+        sessionBundle.restore(tinyencryptConfig, vault -> true);
+        pbkdfPasswordCache.putPassword(tinyencryptConfig, "vault-1", "pbkdf-password-1");
+        sessionBundle.write();
+
+        // encrypted with a PBKDF password of its own, which is not sealed in the bundle
+        assertArrayEquals("fake-pbkdf".toCharArray(), pbkdfPasswordCache.getPassword(tinyencryptConfig, ProcessCryptoBackend.SESSION_BUNDLE_KEY));
+        final ProcessCryptoBackend restoredCryptoBackend = new ProcessCryptoBackend();
+        final PasswordCache restoredPasswordCache = restoredCryptoBackend.getPbkdfPasswordCache();
+        new SessionBundle(bundleFile, restoredCryptoBackend, restoredPasswordCache).restore(tinyencryptConfig, vault -> true);
+        assertArrayEquals("pbkdf-password-1".toCharArray(), restoredPasswordCache.getPassword(tinyencryptConfig, "vault-1"));
+        // asked once by the restore, not read from the bundle
+        assertArrayEquals("fake-pbkdf".toCharArray(), restoredPasswordCache.getPassword(tinyencryptConfig, ProcessCryptoBackend.SESSION_BUNDLE_KEY));
+        assertEquals(2, restoredPasswordCache.size());
+    }
+}
@@ -0,0 +1,117 @@
+package me.hatter.integrations.tinyencrypt;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Worker mode with {@link TinyEncryptWorkerStandIn} in front of a tinyencrypt without worker mode.
+ */
+public class TinyEncryptWorkerTest {
+    private static final int REQUESTS = 20;
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void standInAnswersPipelinedRequests() throws Exception {
+        final TinyEncryptConfig tinyencryptConfig = FakeTinyencrypt.newConfig(tempDir.toFile());
+        tinyencryptConfig.setEnableWorkerMode(true);
+        tinyencryptConfig.setWorkerCommand(getStandInCommand());
+        final TinyEncryptWorker worker = TinyEncryptWorker.getWorker(tinyencryptConfig, tinyencryptConfig.getTinyencryptCommand());
+        try {
+            final List<CompletableFuture<UtilsCommandResult>> futures = new ArrayList<>();
+            for (int i = 0; i < REQUESTS; i++) {
+                final CompletableFuture<UtilsCommandResult> future = worker.submit(
+                        ("value-" + i).getBytes(StandardCharsets.UTF_8), "simple-encrypt", "--value-stdin");
+                assertNotNull(future, "worker not started");
+                futures.add(future);
+            }
+            for (CompletableFuture<UtilsCommandResult> future : futures) {
+                final UtilsCommandResult result = future.get(1, TimeUnit.MINUTES);
+                assertEquals(0, result.getExitValue(), "Result: " + result);
+                assertTrue(new String(result.getStdout(), StandardCharsets.UTF_8).contains("fake:"));
+            }
+
+            final ProcessCryptoBackend processCryptoBackend = new ProcessCryptoBackend();
+            final Map<String, String> encryptedKeys = new LinkedHashMap<>();
+            for (int i = 0; i < REQUESTS; i++) {
+                try (SecretBuffer password = SecretBuffer.wrap("password-" + i)) {
+                    encryptedKeys.put("vault-" + i, processCryptoBackend.encrypt(tinyencryptConfig, "vault-" + i, password, "Vault"));
+                }
+            }
+            final Map<String, SecretBuffer> passwords = processCryptoBackend.decryptAll(tinyencryptConfig, encryptedKeys);
+            assertEquals(REQUESTS, passwords.size());
+            for (int i = 0; i < REQUESTS; i++) {
+                assertArrayEquals(("password-" + i).toCharArray(), passwords.get("vault-" + i).toCharArray());
+            }
+            assertFalse(worker.isUnsupported());
+        } finally {
+            worker.shutdown();
+        }
+    }
+
+    @Test
+    public void unsupportedWorkerIsProbedAgainAfterBackoff() throws Exception {
+        final File directory = tempDir.toFile();
+        final File supportedFlag = new File(directory, "worker-supported");
+        // fails the handshake until the flag exists, e.g. until tinyencrypt is upgraded
+        final File workerCommand = new File(directory, "flagged-worker.sh");
+        Files.writeString(workerCommand.toPath(), "#!/bin/sh\n"
+                + "[ -f '" + supportedFlag.getAbsolutePath() + "' ] || exit 1\n"
+                + "exec " + String.join(" ", quote(getStandInCommand())) + " \"$@\"\n");
+        assertTrue(workerCommand.setExecutable(true));
+        final TinyEncryptConfig tinyencryptConfig = FakeTinyencrypt.newConfig(directory);
+        tinyencryptConfig.setEnableWorkerMode(true);
+        tinyencryptConfig.setWorkerCommand(Arrays.asList(workerCommand.getAbsolutePath()));
+        tinyencryptConfig.setWorkerRetrySeconds(1);
+        final TinyEncryptWorker worker = TinyEncryptWorker.getWorker(tinyencryptConfig, tinyencryptConfig.getTinyencryptCommand());
+        try {
+            final long timeoutMillis = TimeUnit.MINUTES.toMillis(1);
+            assertNull(worker.run(null, timeoutMillis, "version"));
+            assertTrue(worker.isUnsupported());
+
+            assertTrue(supportedFlag.createNewFile());
+            // within the back-off the worker is not started again
+            assertNull(worker.run(null, timeoutMillis, "version"));
+            Thread.sleep(TimeUnit.SECONDS.toMillis(1) + 200);
+            final UtilsCommandResult result = worker.run(null, timeoutMillis, "version");
+            assertNotNull(result, "worker not probed again");
+            assertEquals(0, result.getExitValue(), "Result: " + result);
+            assertFalse(worker.isUnsupported());
+        } finally {
+            worker.shutdown();
+        }
+    }
+
+    private static List<String> getStandInCommand() {
+        return Arrays.asList(new File(System.getProperty("java.home"), "bin/java").getAbsolutePath(),
+                "-cp", System.getProperty("java.class.path"), TinyEncryptWorkerStandIn.class.getName());
+    }
+
+    private static List<String> quote(List<String> arguments) {
+        final List<String> quotedArguments = new ArrayList<>();
+        for (String argument : arguments) {
+            quotedArguments.add("'" + argument + "'");
+        }
+        return quotedArguments;
+    }
+}
@@ -0,0 +1,19 @@
+#!/bin/sh
+# Fake pinentry for tests, answers GETPIN with $FAKE_PINENTRY_PIN or "fake-pin".
+
+echo "OK Pleased to meet you"
+while read -r line; do
+  case "$line" in
+    GETPIN)
+      echo "D ${FAKE_PINENTRY_PIN:-fake-pin}"
+      echo "OK"
+      ;;
+    BYE)
+      echo "OK closing connection"
+      exit 0
+      ;;
+    *)
+      echo "OK"
+      ;;
+  esac
+done
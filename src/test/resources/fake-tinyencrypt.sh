@@ -0,0 +1,109 @@
+#!/bin/sh
+# Fake tinyencrypt for benchmarks and load tests, values must not contain '"' or '\'.
+#
+# simple-encrypt outputs "fake:<base64 of stdin>", simple-decrypt reverses it.
+# With --outputs-password the PBKDF password is "typed" and returned, see FAKE_TINYENCRYPT_PBKDF_PASSWORD.
+# With --with-pbkdf-encryption simple-encrypt outputs "fake-pbkdf:<base64 of password>:<base64 of stdin>",
+# simple-decrypt fails unless the password given by --password, or typed, matches.
+# --password-env <name> reads the password from the environment variable <name> instead.
+#
+# Load test knobs, from the environment:
+#   FAKE_TINYENCRYPT_LATENCY_MS      sleep before answering encrypt/decrypt, e.g. a hardware token
+#   FAKE_TINYENCRYPT_PROMPT_MS       extra sleep with --outputs-password, e.g. a user typing the PBKDF password
+#   FAKE_TINYENCRYPT_FAILURE_PERCENT fail encrypt/decrypt with exit value 1 at this rate
+#   FAKE_TINYENCRYPT_CALL_LOG        append one line per call to this file
+#   FAKE_TINYENCRYPT_ARGV_LOG        append the command line of each call to this file
+#   FAKE_TINYENCRYPT_PBKDF_PASSWORD  PBKDF password typed at the prompt, default "fake-pbkdf"
+#   FAKE_TINYENCRYPT_NO_PASSWORD_ENV reject --password-env, e.g. an older tinyencrypt
+
+command="$1"
+shift
+typed_password="${FAKE_TINYENCRYPT_PBKDF_PASSWORD:-fake-pbkdf}"
+outputs_password=""
+with_pbkdf=""
+password=""
+previous_arg=""
+for arg in "$@"; do
+  if [ "$previous_arg" = "--password" ]; then
+    password="$arg"
+  elif [ "$previous_arg" = "--password-env" ]; then
+    password=$(printenv "$arg")
+  fi
+  if [ "$arg" = "--password-env" ] && [ -n "$FAKE_TINYENCRYPT_NO_PASSWORD_ENV" ]; then
+    cat > /dev/null
+    echo "error: unexpected argument '--password-env' found" >&2
+    exit 2
+  elif [ "$arg" = "--outputs-password" ]; then
+    outputs_password=",\"password\":\"${typed_password}\""
+  elif [ "$arg" = "--with-pbkdf-encryption" ]; then
+    with_pbkdf="true"
+  fi
+  previous_arg="$arg"
+done
+# no --password, the password is typed
+password="${password:-$typed_password}"
+
+if [ -n "$FAKE_TINYENCRYPT_CALL_LOG" ]; then
+  echo "$command" >> "$FAKE_TINYENCRYPT_CALL_LOG"
+fi
+if [ -n "$FAKE_TINYENCRYPT_ARGV_LOG" ]; then
+  echo "$command $*" >> "$FAKE_TINYENCRYPT_ARGV_LOG"
+fi
+
+fake_sleep() {
+  if [ -n "$1" ] && [ "$1" -gt 0 ]; then
+    sleep "$(awk "BEGIN { print $1 / 1000 }")"
+  fi
+}
+
+fake_delay_or_fail() {
+  fake_sleep "$FAKE_TINYENCRYPT_LATENCY_MS"
+  if [ -n "$outputs_password" ]; then
+    fake_sleep "$FAKE_TINYENCRYPT_PROMPT_MS"
+  fi
+  if [ -n "$FAKE_TINYENCRYPT_FAILURE_PERCENT" ] && [ "$FAKE_TINYENCRYPT_FAILURE_PERCENT" -gt 0 ]; then
+    random=$(od -An -N2 -tu2 /dev/urandom | tr -d ' ')
+    if [ $((random % 100)) -lt "$FAKE_TINYENCRYPT_FAILURE_PERCENT" ]; then
+      cat > /dev/null
+      echo "fake failure" >&2
+      exit 1
+    fi
+  fi
+}
+
+case "$command" in
+  version)
+    echo "tinyencrypt-fake 0.0.0"
+    ;;
+  simple-encrypt)
+    fake_delay_or_fail
+    value=$(base64 | tr -d '\n')
+    if [ -n "$with_pbkdf" ]; then
+      value="fake-pbkdf:$(printf '%s' "$password" | base64 | tr -d '\n'):${value}"
+    else
+      value="fake:${value}"
+    fi
+    echo "{\"code\":0,\"result\":\"${value}\"${outputs_password}}"
+    ;;
+  simple-decrypt)
+    fake_delay_or_fail
+    value=$(cat)
+    case "$value" in
+      fake-pbkdf:*)
+        value="${value#fake-pbkdf:}"
+        if [ "$(printf '%s' "${value%%:*}" | base64 -d)" != "$password" ]; then
+          echo "wrong PBKDF password" >&2
+          exit 1
+        fi
+        value="${value#*:}"
+        ;;
+    esac
+    plain=$(printf '%s' "${value#fake:}" | base64 -d)
+    echo "[INFO ] fake decrypt"
+    echo "{\"code\":0,\"result\":\"${plain}\"${outputs_password}}"
+    ;;
+  *)
+    echo "unsupported command: $command" >&2
+    exit 1
+    ;;
+esac